@@ -0,0 +1,194 @@
+/*-
+ * #%L
+ * A collection of plugins developed at the FMI Basel.
+ * %%
+ * Copyright (C) 2016 - 2024 FMI Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+package ch.fmi;
+
+import java.util.Arrays;
+
+import org.scijava.ItemIO;
+import org.scijava.command.Command;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import ch.fmi.registration.ClosedFormFitter;
+import ch.fmi.registration.FrameIndex;
+import ch.fmi.registration.RansacFitter;
+import ch.fmi.registration.RegUtils;
+import ch.fmi.util.Parallel;
+import mpicbg.models.InvertibleBoundable;
+import mpicbg.models.Model;
+
+/**
+ * Grouped version of {@link ModelFitter}: fits one model per group of paired
+ * points, with the groups fitted in parallel.
+ * <p>
+ * For each group, in ascending order of group ID, {@code affines} holds a
+ * row-major 3x4 matrix, {@code costs} the mean residual of the inliers and
+ * {@code inliers} their number. Groups whose model cannot be fitted get NaN
+ * matrices and costs and zero inliers.
+ * </p>
+ */
+@Plugin(type = Command.class, headless = true,
+	menuPath = "FMI>Fit Transformation Models to Grouped Paired Point Sets")
+public class GroupedModelFitter implements Command {
+
+	@Parameter(label = "Type of Transformation", choices = { RegUtils.TRANSLATION, RegUtils.RIGID,
+		RegUtils.SIMILARITY, RegUtils.AFFINE })
+	private String transformType;
+
+	@Parameter(label = "Dimensionality", choices = { RegUtils.DIM2D, RegUtils.DIM3D })
+	private String dim;
+
+	@Parameter(label = "Group IDs")
+	private double[] group;
+
+	@Parameter(label = "Set 1 - X Coordinates")
+	private double[] x1;
+
+	@Parameter(label = "Set 1 - Y Coordinates")
+	private double[] y1;
+
+	@Parameter(label = "Set 1 - Z Coordinates", required = false)
+	private double[] z1 = null;
+
+	@Parameter(label = "Set 2 - X Coordinates")
+	private double[] x2;
+
+	@Parameter(label = "Set 2 - Y Coordinates")
+	private double[] y2;
+
+	@Parameter(label = "Set 2 - Z Coordinates", required = false)
+	private double[] z2 = null;
+
+	@Parameter(label = "Robust fit (RANSAC)", required = false)
+	private boolean robust = false;
+
+	@Parameter(label = "RANSAC iterations", min = "1", required = false)
+	private Integer ransacIterations = 1000;
+
+	@Parameter(label = "RANSAC epsilon", description = "Maximum residual of an inlier", required = false)
+	private Double epsilon = 1.0;
+
+	@Parameter(label = "Number of threads", min = "1", required = false)
+	private Integer numThreads = Parallel.availableThreads();
+
+	@Parameter(type = ItemIO.OUTPUT)
+	private int[] groupIds;
+
+	@Parameter(type = ItemIO.OUTPUT)
+	private double[] affines;
+
+	@Parameter(type = ItemIO.OUTPUT)
+	private double[] costs;
+
+	@Parameter(type = ItemIO.OUTPUT)
+	private int[] inliers;
+
+	@Override
+	public void run() {
+		int n = group.length;
+		int d = dim.equals(RegUtils.DIM2D) ? 2 : 3;
+		if (x1.length != n || y1.length != n || x2.length != n || y2.length != n
+			|| d == 3 && (z1 == null || z2 == null || z1.length != n || z2.length != n)) {
+			throw new IllegalArgumentException("All input vectors have to be same length.");
+		}
+		// mpicbg model for RANSAC; the default path fits in closed form
+		Model<?> model = robust ? RegUtils.suitableModel(dim, transformType) : null;
+
+		// stable counting sort of the points by group
+		int[] groupNumbers = Arrays.stream(group).mapToInt(v -> (int) v).toArray();
+		groupIds = Arrays.stream(groupNumbers).distinct().sorted().toArray();
+		int nGroups = groupIds.length;
+		int[] groupIndices = new FrameIndex(groupIds).indicesOf(groupNumbers);
+		int[] offsets = new int[nGroups + 1];
+		for (int g : groupIndices) {
+			offsets[g + 1]++;
+		}
+		for (int g = 0; g < nGroups; g++) {
+			offsets[g + 1] += offsets[g];
+		}
+		double[] p1 = new double[n * d];
+		double[] p2 = new double[n * d];
+		int[] next = Arrays.copyOf(offsets, nGroups);
+		for (int i = 0; i < n; i++) {
+			int o = d * next[groupIndices[i]]++;
+			p1[o] = x1[i];
+			p1[o + 1] = y1[i];
+			p2[o] = x2[i];
+			p2[o + 1] = y2[i];
+			if (d == 3) {
+				p1[o + 2] = z1[i];
+				p2[o + 2] = z2[i];
+			}
+		}
+
+		affines = new double[12 * nGroups];
+		costs = new double[nGroups];
+		inliers = new int[nGroups];
+		Parallel.forEach(nGroups, numThreads, g -> {
+			double[] g1 = Arrays.copyOfRange(p1, d * offsets[g], d * offsets[g + 1]);
+			double[] g2 = Arrays.copyOfRange(p2, d * offsets[g], d * offsets[g + 1]);
+			fitGroup(model, g1, g2, d, g);
+		});
+	}
+
+	private void fitGroup(Model<?> model, double[] g1, double[] g2, int d, int g) {
+		double[] residuals;
+		boolean[] inlierMask = null;
+		try {
+			if (robust) {
+				Model<?> groupModel = model.copy();
+				RansacFitter fitter = new RansacFitter(ransacIterations, epsilon);
+				fitter.fit(groupModel, g1, g2, d);
+				RegUtils.flattenModel((InvertibleBoundable) groupModel, dim, new double[12], affines, 12 * g);
+				residuals = fitter.getResiduals();
+				inlierMask = fitter.getInliers();
+			}
+			else {
+				ClosedFormFitter fitter = new ClosedFormFitter(dim, transformType);
+				for (int k = 0; k < g1.length; k += d) {
+					fitter.add(g1[k], g1[k + 1], d == 3 ? g1[k + 2] : 0, g2[k], g2[k + 1], d == 3 ? g2[k + 2] : 0);
+				}
+				fitter.fit(affines, 12 * g);
+				residuals = RegUtils.residuals(affines, 12 * g, g1, g2, d);
+			}
+		}
+		catch (RuntimeException exc) {
+			if (!RegUtils.isFitFailure(exc)) {
+				throw exc;
+			}
+			// too few or degenerate points in this group
+			Arrays.fill(affines, 12 * g, 12 * g + 12, Double.NaN);
+			costs[g] = Double.NaN;
+			return;
+		}
+		double sum = 0;
+		int count = 0;
+		for (int i = 0; i < residuals.length; i++) {
+			if (inlierMask == null || inlierMask[i]) {
+				sum += residuals[i];
+				count++;
+			}
+		}
+		costs[g] = count > 0 ? sum / count : Double.NaN;
+		inliers[g] = count;
+	}
+}
@@ -24,19 +24,13 @@ package ch.fmi;
 import com.google.common.primitives.Doubles;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Vector;
 
 import mpicbg.imglib.algorithm.scalespace.DifferenceOfGaussian.SpecialPoint;
 import mpicbg.imglib.algorithm.scalespace.DifferenceOfGaussianPeak;
 import mpicbg.imglib.type.numeric.real.FloatType;
-import mpicbg.models.AbstractAffineModel3D;
-import mpicbg.models.AffineModel3D;
-import mpicbg.models.InvertibleBoundable;
-import mpicbg.models.Point;
 import mpicbg.models.PointMatch;
-import mpicbg.models.RigidModel3D;
-import mpicbg.models.SimilarityModel3D;
-import mpicbg.models.TranslationModel3D;
 
 import org.scijava.ItemIO;
 import org.scijava.command.Command;
@@ -44,16 +38,20 @@ import org.scijava.log.LogService;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 
+import ch.fmi.registration.ClosedFormFitter;
+import ch.fmi.registration.DescriptorMatcher;
+import ch.fmi.registration.PointCloud;
+import ch.fmi.registration.RegUtils;
 import plugin.DescriptorParameters;
 import process.ComparePair;
 import process.Matching;
 
 @Plugin(type = Command.class, headless = true, menuPath = "FMI>Measure 3D Transformation Between Spots")
 public class MeasureAberration implements Command {
-	final static private String TRANSLATION = "Translation";
-	final static private String RIGID = "Rigid";
-	final static private String SIMILARITY = "Similarity";
-	final static private String AFFINE = "Affine";
+	final static private String TRANSLATION = RegUtils.TRANSLATION;
+	final static private String RIGID = RegUtils.RIGID;
+	final static private String SIMILARITY = RegUtils.SIMILARITY;
+	final static private String AFFINE = RegUtils.AFFINE;
 
 	@Parameter
 	private LogService log;
@@ -62,6 +60,9 @@ public class MeasureAberration implements Command {
 			RIGID, SIMILARITY, AFFINE })
 	private String transformType;
 
+	@Parameter(label = "KD-tree matching", description = "Match the spots with the built-in KD-tree descriptor matcher instead of the descriptor-based registration plugin", required = false)
+	private boolean kdTreeMatching = false;
+
 	@Parameter(label = "Set 1 - X Coordinates")
 	private double[] x1;
 
@@ -133,21 +134,7 @@ public class MeasureAberration implements Command {
 		listOfSpotLists.add(spotList2);
 
 		DescriptorParameters params = new DescriptorParameters();
-		switch (transformType) {
-		case TRANSLATION:
-			params.model = new TranslationModel3D();
-			break;
-		case RIGID:
-			params.model = new RigidModel3D();
-			break;
-		case SIMILARITY:
-			params.model = new SimilarityModel3D();
-			break;
-		case AFFINE:
-		default:
-			params.model = new AffineModel3D();
-			break;
-		}
+		params.model = RegUtils.suitableModel(RegUtils.DIM3D, transformType);
 		params.dimensionality = 3;
 		params.localization = 1;
 		params.numNeighbors = 3;
@@ -159,72 +146,71 @@ public class MeasureAberration implements Command {
 		params.redundancy = 1;
 		params.fuse = 2; // no Overlay image
 
-		Vector<ComparePair> pair = Matching.descriptorMatching(listOfSpotLists,
-				2, params, 1.0f); // what about the original coordinates? changed?
-
-		ArrayList<Double> distanceList = new ArrayList<>();
-		ArrayList<Double> cDistanceList = new ArrayList<>();
-		ArrayList<Double> x1List = new ArrayList<>();
-		ArrayList<Double> y1List = new ArrayList<>();
-		ArrayList<Double> z1List = new ArrayList<>();
-		ArrayList<Double> x2List = new ArrayList<>();
-		ArrayList<Double> y2List = new ArrayList<>();
-		ArrayList<Double> z2List = new ArrayList<>();
-		ArrayList<Double> cx1List = new ArrayList<>();
-		ArrayList<Double> cy1List = new ArrayList<>();
-		ArrayList<Double> cz1List = new ArrayList<>();
+		Vector<ComparePair> pair;
+		if (kdTreeMatching) {
+			int[] frames = new int[x1.length + x2.length];
+			Arrays.fill(frames, x1.length, frames.length, 1);
+			PointCloud cloud = PointCloud.fromArrays(frames, Doubles.concat(x1, x2), Doubles.concat(y1, y2),
+					Doubles.concat(z1, z2), null);
+			DescriptorMatcher matcher = new DescriptorMatcher(params.numNeighbors, params.redundancy,
+					params.significance, params.ransacThreshold);
+			pair = new Vector<>(matcher.match(cloud, 1, params.model));
+		} else {
+			pair = Matching.descriptorMatching(listOfSpotLists,
+					2, params, 1.0f); // what about the original coordinates? changed?
+		}
 
 		ArrayList<PointMatch> matches = pair.get(0).inliers;
 		nRemaining = matches.size();
-		for (PointMatch match : matches) {
-			// get local, immutable coordinates
-			Point p1 = match.getP1();
-			Point p2 = match.getP2();
-			double[] p1loc = p1.getL();
-			double[] p2loc = p2.getL();
-			distanceList.add(Point.localDistance(p1, p2));
-			x1List.add(p1loc[0]);
-			y1List.add(p1loc[1]);
-			z1List.add(p1loc[2]);
-			x2List.add(p2loc[0]);
-			y2List.add(p2loc[1]);
-			z2List.add(p2loc[2]);
+		ix1 = new double[nRemaining];
+		iy1 = new double[nRemaining];
+		iz1 = new double[nRemaining];
+		ix2 = new double[nRemaining];
+		iy2 = new double[nRemaining];
+		iz2 = new double[nRemaining];
+		distances = new double[nRemaining];
+		for (int i = 0; i < nRemaining; i++) {
+			// local, immutable coordinates
+			double[] p1loc = matches.get(i).getP1().getL();
+			double[] p2loc = matches.get(i).getP2().getL();
+			ix1[i] = p1loc[0];
+			iy1[i] = p1loc[1];
+			iz1[i] = p1loc[2];
+			ix2[i] = p2loc[0];
+			iy2[i] = p2loc[1];
+			iz2[i] = p2loc[2];
+			distances[i] = distance(p1loc, p2loc);
 		}
 
-		ix1 = Doubles.toArray(x1List);
-		iy1 = Doubles.toArray(y1List);
-		iz1 = Doubles.toArray(z1List);
-		ix2 = Doubles.toArray(x2List);
-		iy2 = Doubles.toArray(y2List);
-		iz2 = Doubles.toArray(z2List);
-
-		distances = Doubles.toArray(distanceList);
-
-		ArrayList<InvertibleBoundable> modelList = Matching.globalOptimization(
-				pair, 2, params); // this will modify the points inside pair!
-
-		AbstractAffineModel3D<?> model = (AbstractAffineModel3D<?>) modelList
-				.get(1);
-
-		affine = model.getMatrix(affine);
-
-		// TODO use static PointMatch.apply(Collection, model) to get new points
-		// and distances?
-
-		for (PointMatch match : matches) {
-			double[] p1loc = match.getP1().getW(); // this should be the
-													// transformed coordinates?
-			cDistanceList.add(match.getDistance());
-			cx1List.add(p1loc[0]);
-			cy1List.add(p1loc[1]);
-			cz1List.add(p1loc[2]);
+		// fit set 2 -> set 1 directly on the RANSAC inliers; with only two
+		// sets, a global optimization with the first tile fixed converges to
+		// the same model
+		ClosedFormFitter fitter = new ClosedFormFitter(RegUtils.DIM3D, transformType);
+		fitter.addAll(ix2, iy2, iz2, ix1, iy1, iz1);
+		affine = fitter.fit();
+
+		// set 2 spots transformed into the coordinates of set 1
+		cx1 = new double[nRemaining];
+		cy1 = new double[nRemaining];
+		cz1 = new double[nRemaining];
+		correctedDistances = new double[nRemaining];
+		double[] a = affine;
+		for (int i = 0; i < nRemaining; i++) {
+			cx1[i] = a[0] * ix2[i] + a[1] * iy2[i] + a[2] * iz2[i] + a[3];
+			cy1[i] = a[4] * ix2[i] + a[5] * iy2[i] + a[6] * iz2[i] + a[7];
+			cz1[i] = a[8] * ix2[i] + a[9] * iy2[i] + a[10] * iz2[i] + a[11];
+			double dx = cx1[i] - ix1[i];
+			double dy = cy1[i] - iy1[i];
+			double dz = cz1[i] - iz1[i];
+			correctedDistances[i] = Math.sqrt(dx * dx + dy * dy + dz * dz);
 		}
+	}
 
-		cx1 = Doubles.toArray(cx1List);
-		cy1 = Doubles.toArray(cy1List);
-		cz1 = Doubles.toArray(cz1List);
-
-		correctedDistances = Doubles.toArray(cDistanceList);
+	private static double distance(double[] a, double[] b) {
+		double dx = a[0] - b[0];
+		double dy = a[1] - b[1];
+		double dz = a[2] - b[2];
+		return Math.sqrt(dx * dx + dy * dy + dz * dz);
 	}
 
 	private ArrayList<DifferenceOfGaussianPeak<FloatType>> populateSpotList(
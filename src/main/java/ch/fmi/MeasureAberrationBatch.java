@@ -0,0 +1,248 @@
+/*-
+ * #%L
+ * A collection of plugins developed at the FMI Basel.
+ * %%
+ * Copyright (C) 2016 - 2024 FMI Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+package ch.fmi;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.scijava.ItemIO;
+import org.scijava.command.Command;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import ch.fmi.registration.DescriptorMatcher;
+import ch.fmi.registration.FrameIndex;
+import ch.fmi.registration.PointCloud;
+import ch.fmi.registration.RegUtils;
+import ch.fmi.util.Parallel;
+import mpicbg.models.AbstractModel;
+import mpicbg.models.IllDefinedDataPointsException;
+import mpicbg.models.InvertibleBoundable;
+import mpicbg.models.Model;
+import mpicbg.models.NotEnoughDataPointsException;
+import mpicbg.models.PointMatch;
+import process.ComparePair;
+
+/**
+ * Batch version of {@link MeasureAberration}: matches the spots of all
+ * channel pairs in all fields of view in one call.
+ * <p>
+ * Input is one row per spot with field-of-view ID, channel and coordinates.
+ * For every field of view and pair of channels {@code (c1, c2)} with
+ * {@code c1 < c2}, the affine maps the coordinates of {@code c2} onto those of
+ * {@code c1}, as {@code affine} of {@link MeasureAberration} maps set 2 onto
+ * set 1. The pooled affines are fitted to the inliers of all fields of view
+ * per channel pair.
+ * </p>
+ */
+@Plugin(type = Command.class, headless = true, menuPath = "FMI>Measure Transformations Between Channels (Batch)")
+public class MeasureAberrationBatch implements Command {
+
+	@Parameter(label = "Type of transformation", choices = { RegUtils.TRANSLATION, RegUtils.RIGID,
+			RegUtils.SIMILARITY, RegUtils.AFFINE })
+	private String transformType;
+
+	@Parameter(label = "Dimensionality", choices = { RegUtils.DIM2D, RegUtils.DIM3D })
+	private String dim = RegUtils.DIM3D;
+
+	@Parameter(label = "Field of view IDs")
+	private double[] fov;
+
+	@Parameter(label = "Channels")
+	private double[] channel;
+
+	@Parameter(label = "X Coordinates")
+	private double[] x;
+
+	@Parameter(label = "Y Coordinates")
+	private double[] y;
+
+	@Parameter(label = "Z Coordinates", required = false)
+	private double[] z = null;
+
+	@Parameter(label = "Number of neighbors", min = "1", required = false)
+	private Integer numNeighbors = 3;
+
+	@Parameter(label = "Redundancy", min = "0", required = false)
+	private Integer redundancy = 1;
+
+	@Parameter(label = "Significance", required = false)
+	private Double significance = 3.0;
+
+	@Parameter(label = "RANSAC threshold", required = false)
+	private Double ransacThreshold = 5.0;
+
+	@Parameter(label = "Number of threads", description = "Number of fields of view matched in parallel", min = "1", required = false)
+	private Integer numThreads = Parallel.availableThreads();
+
+	// --- OUTPUTS ---
+
+	@Parameter(type = ItemIO.OUTPUT)
+	private int[] pairFov;
+
+	@Parameter(type = ItemIO.OUTPUT)
+	private int[] pairChannel1;
+
+	@Parameter(type = ItemIO.OUTPUT)
+	private int[] pairChannel2;
+
+	@Parameter(type = ItemIO.OUTPUT)
+	private int[] pairInliers;
+
+	@Parameter(type = ItemIO.OUTPUT)
+	private double[] pairAffines;
+
+	@Parameter(type = ItemIO.OUTPUT)
+	private int[] pooledChannel1;
+
+	@Parameter(type = ItemIO.OUTPUT)
+	private int[] pooledChannel2;
+
+	@Parameter(type = ItemIO.OUTPUT)
+	private int[] pooledInliers;
+
+	@Parameter(type = ItemIO.OUTPUT)
+	private double[] pooledAffines;
+
+	@Override
+	public void run() {
+		boolean is3D = dim.equals(RegUtils.DIM3D);
+		if (!(fov.length == channel.length && fov.length == x.length && fov.length == y.length
+				&& (!is3D || fov.length == z.length))) {
+			throw new IllegalArgumentException("All input vectors have to be same length.");
+		}
+		AbstractModel<?> model = RegUtils.suitableModel(dim, transformType);
+
+		// group spots by field of view, keeping the channel index as ID
+		int[] channels = Arrays.stream(channel).mapToInt(v -> (int) v).distinct().sorted().toArray();
+		int[] channelIndices = new FrameIndex(channels).indicesOf(Arrays.stream(channel).mapToInt(v -> (int) v)
+				.toArray());
+		PointCloud spots = PointCloud.fromArrays(Arrays.stream(fov).mapToInt(v -> (int) v).toArray(), x, y,
+				is3D ? z : null, channelIndices);
+		int nFovs = spots.numFrames();
+		int nChannels = channels.length;
+		int nPairs = nChannels * (nChannels - 1) / 2;
+
+		// flipped inliers (channel 2 -> channel 1) per field of view and channel pair
+		List<List<List<PointMatch>>> inliers = new ArrayList<>(nFovs);
+		for (int f = 0; f < nFovs; f++) {
+			inliers.add(null);
+		}
+		DescriptorMatcher matcher = new DescriptorMatcher(numNeighbors, redundancy, significance, ransacThreshold);
+		matcher.setNumThreads(1);
+		Parallel.forEach(nFovs, numThreads, f -> inliers.set(f, matchFov(spots, f, nChannels, model, matcher)));
+
+		pairFov = new int[nFovs * nPairs];
+		pairChannel1 = new int[nFovs * nPairs];
+		pairChannel2 = new int[nFovs * nPairs];
+		pairInliers = new int[nFovs * nPairs];
+		pairAffines = new double[12 * nFovs * nPairs];
+		pooledChannel1 = new int[nPairs];
+		pooledChannel2 = new int[nPairs];
+		pooledInliers = new int[nPairs];
+		pooledAffines = new double[12 * nPairs];
+
+		List<List<PointMatch>> pooled = new ArrayList<>(nPairs);
+		for (int p = 0; p < nPairs; p++) {
+			pooled.add(new ArrayList<>());
+		}
+		for (int f = 0; f < nFovs; f++) {
+			int p = 0;
+			for (int c1 = 0; c1 < nChannels; c1++) {
+				for (int c2 = c1 + 1; c2 < nChannels; c2++, p++) {
+					int row = f * nPairs + p;
+					List<PointMatch> matches = inliers.get(f).get(p);
+					pairFov[row] = spots.frames()[f];
+					pairChannel1[row] = channels[c1];
+					pairChannel2[row] = channels[c2];
+					pairInliers[row] = matches.size();
+					fitFlat(model, matches, pairAffines, 12 * row);
+					pooled.get(p).addAll(matches);
+				}
+			}
+		}
+		int p = 0;
+		for (int c1 = 0; c1 < nChannels; c1++) {
+			for (int c2 = c1 + 1; c2 < nChannels; c2++, p++) {
+				pooledChannel1[p] = channels[c1];
+				pooledChannel2[p] = channels[c2];
+				pooledInliers[p] = pooled.get(p).size();
+				fitFlat(model, pooled.get(p), pooledAffines, 12 * p);
+			}
+		}
+	}
+
+	/**
+	 * Match all channels of field of view {@code f}.
+	 *
+	 * @return flipped inliers per channel pair, in the order (0, 1), (0, 2),
+	 *         ..., (1, 2), ...
+	 */
+	private List<List<PointMatch>> matchFov(PointCloud spots, int f, int nChannels, Model<?> model,
+			DescriptorMatcher matcher) {
+		int start = spots.start(f);
+		int n = spots.end(f) - start;
+		int[] spotChannels = new int[n];
+		double[] sx = new double[n];
+		double[] sy = new double[n];
+		double[] sz = spots.numDimensions() == 3 ? new double[n] : null;
+		for (int i = 0; i < n; i++) {
+			spotChannels[i] = spots.id(start + i);
+			sx[i] = spots.x(start + i);
+			sy[i] = spots.y(start + i);
+			if (sz != null) {
+				sz[i] = spots.z(start + i);
+			}
+		}
+		PointCloud cloud = PointCloud.fromArrays(spotChannels, sx, sy, sz, null);
+
+		List<List<PointMatch>> matches = new ArrayList<>();
+		for (int p = 0; p < nChannels * (nChannels - 1) / 2; p++) {
+			matches.add(new ArrayList<>());
+		}
+		for (ComparePair pair : matcher.match(cloud, nChannels, model)) {
+			int c1 = cloud.frames()[pair.indexA];
+			int c2 = cloud.frames()[pair.indexB];
+			// index of (c1, c2) in the upper triangle, row by row
+			int p = c1 * nChannels - c1 * (c1 + 1) / 2 + (c2 - c1 - 1);
+			matches.get(p).addAll(PointMatch.flip(pair.inliers));
+		}
+		return matches;
+	}
+
+	/**
+	 * Fit a copy of {@code model} to {@code matches} and write it as row-major
+	 * 3x4 matrix, or NaN if there are too few matches.
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private void fitFlat(Model<?> model, List<PointMatch> matches, double[] target, int offset) {
+		Model fitted = model.copy();
+		try {
+			fitted.fit(matches);
+			RegUtils.flattenModel((InvertibleBoundable) fitted, dim, new double[12], target, offset);
+		}
+		catch (NotEnoughDataPointsException | IllDefinedDataPointsException exc) {
+			Arrays.fill(target, offset, offset + 12, Double.NaN);
+		}
+	}
+}
@@ -22,22 +22,14 @@
 
 package ch.fmi;
 
-import java.util.ArrayList;
-import mpicbg.models.Affine2D;
-import mpicbg.models.Affine3D;
-import mpicbg.models.AffineModel2D;
-import mpicbg.models.AffineModel3D;
-import mpicbg.models.IllDefinedDataPointsException;
+import java.util.Arrays;
+
+import ch.fmi.registration.ClosedFormFitter;
+import ch.fmi.registration.RansacFitter;
+import ch.fmi.registration.RegUtils;
+import ch.fmi.util.Parallel;
+import mpicbg.models.InvertibleBoundable;
 import mpicbg.models.Model;
-import mpicbg.models.NotEnoughDataPointsException;
-import mpicbg.models.Point;
-import mpicbg.models.PointMatch;
-import mpicbg.models.RigidModel2D;
-import mpicbg.models.RigidModel3D;
-import mpicbg.models.SimilarityModel2D;
-import mpicbg.models.SimilarityModel3D;
-import mpicbg.models.TranslationModel2D;
-import mpicbg.models.TranslationModel3D;
 import org.scijava.ItemIO;
 import org.scijava.command.Command;
 import org.scijava.plugin.Parameter;
@@ -47,12 +39,12 @@ import org.scijava.plugin.Plugin;
 	menuPath = "FMI>Fit Transformation Model to Paired Point Sets")
 public class ModelFitter implements Command {
 
-	final static protected String TRANSLATION = "Translation";
-	final static protected String RIGID = "Rigid";
-	final static protected String SIMILARITY = "Similarity";
-	final static protected String AFFINE = "Affine";
-	final static protected String DIM2D = "2D";
-	final static protected String DIM3D = "3D";
+	final static protected String TRANSLATION = RegUtils.TRANSLATION;
+	final static protected String RIGID = RegUtils.RIGID;
+	final static protected String SIMILARITY = RegUtils.SIMILARITY;
+	final static protected String AFFINE = RegUtils.AFFINE;
+	final static protected String DIM2D = RegUtils.DIM2D;
+	final static protected String DIM3D = RegUtils.DIM3D;
 
 	@Parameter(label = "Type of Transformation", choices = { TRANSLATION, RIGID,
 		SIMILARITY, AFFINE })
@@ -79,110 +71,67 @@ public class ModelFitter implements Command {
 	@Parameter(label = "Set 2 - Z Coordinates", required = false)
 	private double[] z2 = null;
 
+	@Parameter(label = "Weights", description = "Optional weight per point pair, e.g. spot quality", required = false)
+	private double[] weights = null;
+
+	@Parameter(label = "Robust fit (RANSAC)", description = "Tolerate mis-paired points by fitting random minimal samples and refitting to the inliers of the best one", required = false)
+	private boolean robust = false;
+
+	@Parameter(label = "RANSAC iterations", min = "1", required = false)
+	private Integer ransacIterations = 1000;
+
+	@Parameter(label = "RANSAC epsilon", description = "Maximum residual of an inlier", required = false)
+	private Double epsilon = 1.0;
+
+	@Parameter(label = "Number of threads", min = "1", required = false)
+	private Integer numThreads = Parallel.availableThreads();
+
 	@Parameter(type = ItemIO.OUTPUT)
 	private double[] affine;
 
-	private Model<?> model;
+	@Parameter(type = ItemIO.OUTPUT)
+	private boolean[] inlierMask;
+
+	@Parameter(type = ItemIO.OUTPUT)
+	private double[] residuals;
 
 	@Override
 	public void run() {
-		// Choose model
-		switch (transformType) {
-			case TRANSLATION:
-				model = dim.equals(DIM2D) ? //
-					new TranslationModel2D() : new TranslationModel3D();
-				break;
-			case RIGID:
-				model = dim.equals(DIM2D) ? //
-					new RigidModel2D() : new RigidModel3D();
-				break;
-			case SIMILARITY:
-				model = dim.equals(DIM2D) ? //
-					new SimilarityModel2D() : new SimilarityModel3D();
-				break;
-			case AFFINE:
-				model = dim.equals(DIM2D) ? //
-					new AffineModel2D() : new AffineModel3D();
-				break;
-		}
-
 		// Prepare point correspondences (assuming positional correspondence)
 		assert x1.length == y1.length : "X and Y vectors for first point set need to be equal length";
 		assert x2.length == y2.length : "X and Y vectors for second point set need to be equal length";
 		assert x1.length == x2.length : "Both point sets need to have equal length";
 
-		ArrayList<PointMatch> correspondences = new ArrayList<>();
+		int d = dim.equals(DIM2D) ? 2 : 3;
+		double[] p1 = new double[x1.length * d];
+		double[] p2 = new double[x2.length * d];
 		for (int i = 0; i < x1.length; i++) {
-			double[] pos1 = new double[dim.equals(DIM2D) ? 2 : 3];
-			pos1[0] = x1[i];
-			pos1[1] = y1[i];
-			if (dim.equals(DIM3D)) pos1[2] = z1[i];
-			Point p1 = new Point(pos1);
-			double[] pos2 = new double[dim.equals(DIM2D) ? 2 : 3];
-			pos2[0] = x2[i];
-			pos2[1] = y2[i];
-			if (dim.equals(DIM3D)) pos2[2] = z2[i];
-			Point p2 = new Point(pos2);
-			correspondences.add(new PointMatch(p1, p2));
-		}
-
-		// Fit the model
-		try {
-			model.fit(correspondences);
-		}
-		catch (NotEnoughDataPointsException exc) {
-			// TODO Auto-generated catch block
-			exc.printStackTrace();
-		}
-		catch (IllDefinedDataPointsException exc) {
-			// TODO Auto-generated catch block
-			exc.printStackTrace();
+			p1[i * d] = x1[i];
+			p1[i * d + 1] = y1[i];
+			if (d == 3) p1[i * d + 2] = z1[i];
+			p2[i * d] = x2[i];
+			p2[i * d + 1] = y2[i];
+			if (d == 3) p2[i * d + 2] = z2[i];
 		}
 
-		// Retrieve results
+		// Fit the model and retrieve results
 		affine = new double[12];
-		double[] temp;
-		switch (dim) {
-			case DIM2D:
-				temp = new double[6];
-				((Affine2D<?>) model).toArray(temp);
-				map2DColsTo3DRows(temp, affine);
-				break;
-			case DIM3D:
-				temp = new double[12];
-				((Affine3D<?>) model).toArray(temp);
-				mapColsToRows(temp, affine);
-				break;
+		if (robust) {
+			Model<?> model = RegUtils.suitableModel(dim, transformType);
+			RansacFitter fitter = new RansacFitter(ransacIterations, epsilon);
+			fitter.setNumThreads(numThreads);
+			fitter.fit(model, p1, p2, weights, d);
+			RegUtils.flattenModel((InvertibleBoundable) model, dim, new double[12], affine, 0);
+			inlierMask = fitter.getInliers();
+			residuals = fitter.getResiduals();
+		}
+		else {
+			ClosedFormFitter fitter = new ClosedFormFitter(dim, transformType);
+			fitter.addAll(x1, y1, z1, x2, y2, z2, weights);
+			fitter.fit(affine, 0);
+			residuals = RegUtils.residuals(affine, 0, p1, p2, d);
+			inlierMask = new boolean[x1.length];
+			Arrays.fill(inlierMask, true);
 		}
-	}
-
-	private void map2DColsTo3DRows(double[] temp, double[] mat) {
-		mat[0] = temp[0];
-		mat[1] = temp[2];
-		mat[2] = 0; //
-		mat[3] = temp[4];
-		mat[4] = temp[1];
-		mat[5] = temp[3];
-		mat[6] = 0; //
-		mat[7] = temp[5];
-		mat[8] = 0; //
-		mat[9] = 0; //
-		mat[10] = 1; //
-		mat[11] = 0; //
-	}
-
-	private void mapColsToRows(double[] temp, double[] mat) {
-		mat[0] = temp[0];
-		mat[1] = temp[3];
-		mat[2] = temp[6];
-		mat[3] = temp[9];
-		mat[4] = temp[1];
-		mat[5] = temp[4];
-		mat[6] = temp[7];
-		mat[7] = temp[10];
-		mat[8] = temp[2];
-		mat[9] = temp[5];
-		mat[10] = temp[8];
-		mat[11] = temp[11];
 	}
 }
@@ -21,15 +21,7 @@
  */
 package ch.fmi;
 
-import com.google.common.primitives.Doubles;
-
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
-import java.util.SortedSet;
-import java.util.TreeSet;
-import java.util.Vector;
-import java.util.stream.Collectors;
 
 import org.scijava.ItemIO;
 import org.scijava.command.Command;
@@ -38,38 +30,24 @@ import org.scijava.log.LogService;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 
-import mpicbg.imglib.algorithm.scalespace.DifferenceOfGaussian.SpecialPoint;
-import mpicbg.imglib.algorithm.scalespace.DifferenceOfGaussianPeak;
-import mpicbg.imglib.type.numeric.real.FloatType;
-import mpicbg.models.AbstractAffineModel3D;
+import ch.fmi.registration.DescriptorMatcher;
+import ch.fmi.registration.RegUtils;
+import ch.fmi.registration.RegistrationEngine;
+import ch.fmi.registration.ResidualStatistics;
+import ch.fmi.registration.TileOptimizer;
+import ch.fmi.util.Parallel;
 import mpicbg.models.AbstractModel;
-import mpicbg.models.AffineModel2D;
-import mpicbg.models.AffineModel3D;
-import mpicbg.models.IllDefinedDataPointsException;
-import mpicbg.models.InvertibleBoundable;
-import mpicbg.models.NotEnoughDataPointsException;
-import mpicbg.models.RigidModel2D;
-import mpicbg.models.RigidModel3D;
-import mpicbg.models.SimilarityModel2D;
-import mpicbg.models.SimilarityModel3D;
-import mpicbg.models.Tile;
-import mpicbg.models.TileConfiguration;
-import mpicbg.models.TranslationModel2D;
-import mpicbg.models.TranslationModel3D;
-import plugin.DescriptorParameters;
-import process.ComparePair;
-import process.Matching;
 
 @Plugin(type = Command.class, headless = true,
 	menuPath = "FMI>Register Series of Point Clouds (with matching)")
 public class PointCloudSeriesRegistration <M extends AbstractModel<M>> extends ContextCommand {
 
-	final static protected String TRANSLATION = "Translation";
-	final static protected String RIGID = "Rigid";
-	final static protected String SIMILARITY = "Similarity";
-	final static protected String AFFINE = "Affine";
-	final static protected String DIM2D = "2D";
-	final static protected String DIM3D = "3D";
+	final static protected String TRANSLATION = RegUtils.TRANSLATION;
+	final static protected String RIGID = RegUtils.RIGID;
+	final static protected String SIMILARITY = RegUtils.SIMILARITY;
+	final static protected String AFFINE = RegUtils.AFFINE;
+	final static protected String DIM2D = RegUtils.DIM2D;
+	final static protected String DIM3D = RegUtils.DIM3D;
 
 	@Parameter
 	private LogService log;
@@ -96,6 +74,24 @@ public class PointCloudSeriesRegistration <M extends AbstractModel<M>> extends C
 	@Parameter(label = "Range", required = false)
 	private Integer range = 10;
 
+	@Parameter(label = "Parallel descriptor matching", description = "Match frames with the built-in descriptor matcher, which computes descriptors once per frame and matches frame pairs in parallel", required = false)
+	private boolean parallelMatching = false;
+
+	@Parameter(label = "Number of threads", description = "Number of threads used for parallel descriptor matching", min = "1", required = false)
+	private Integer numThreads = Parallel.availableThreads();
+
+	@Parameter(label = "Maximal error", description = "Mean error below which the global optimization may stop", required = false)
+	private Double maxError = TileOptimizer.DEFAULT_MAX_ERROR;
+
+	@Parameter(label = "Maximal iterations", description = "Maximum number of iterations of the global optimization", required = false)
+	private Integer maxIterations = TileOptimizer.DEFAULT_MAX_ITERATIONS;
+
+	@Parameter(label = "Maximal plateau width", description = "Number of iterations over which convergence is evaluated", required = false)
+	private Integer maxPlateauWidth = TileOptimizer.DEFAULT_MAX_PLATEAU_WIDTH;
+
+	@Parameter(label = "Initial models", description = "Flat models of a previous run (12 values per frame) used as starting point instead of pre-alignment", required = false)
+	private double[] initialModels = null;
+
 	// --- OUTPUTS ---
 
 	@Parameter(type = ItemIO.OUTPUT)
@@ -107,162 +103,57 @@ public class PointCloudSeriesRegistration <M extends AbstractModel<M>> extends C
 	@Parameter(type = ItemIO.OUTPUT)
 	private double[] modelCosts;
 
-	// TODO: update to newer API? using ImgLib2 FloatType etc.?
-	ArrayList<ArrayList<DifferenceOfGaussianPeak<FloatType>>> peaks;
-
-	// List of matrices
-	// List of frames
-
-	@SuppressWarnings("unchecked")
-	@Override
-	public void run() {
-		if (!(frame.length == xCoords.length && frame.length == yCoords.length)) {
-			throw new IllegalArgumentException("All input vectors have to be same length.");
-		}
+	@Parameter(type = ItemIO.OUTPUT)
+	private int[] matchCounts;
 
-		// create peakListList
-		createPeaks();
-		int nFrames = peaks.size();
-		DescriptorParameters params = defaultParameters();
-		params.model = suitableModel(dim, transformType);
-		params.range = range;
-		
-		Vector<ComparePair> comparePairs = Matching.descriptorMatching(peaks, nFrames, params, 1.0f);
-		//ArrayList<InvertibleBoundable> models = Matching.globalOptimization(comparePairs, nFrames, params);
-
-		final ArrayList<Tile<?>> tiles = new ArrayList<>();
-		// initialize tiles
-		for ( int t = 0; t < nFrames; ++t )
-		  tiles.add( new Tile<>( (M) params.model.copy() ) );
-		// TODO restore coordinates (needed?)
-		// add point matches to respective tiles
-		for ( final ComparePair pair : comparePairs )
-			Matching.addPointMatches( pair.inliers, tiles.get( pair.indexA ), tiles.get( pair.indexB ) );
-
-		final TileConfiguration tc = new TileConfiguration();
-
-		// add tiles / fix first tile
-		boolean fixed = false;
-		for (Tile<?> t : tiles) {
-			if (t.getConnectedTiles().size() > 0) {
-				tc.addTile(t);
-				if (!fixed) {
-					tc.fixTile(t);
-					fixed = true;
-				}
-			}
-		}
-		
-		try {
-			tc.preAlign();
-			tc.optimize(10, 10000, 200);
-		}
-		catch (NotEnoughDataPointsException exc) {
-			throw new RuntimeException("Not enough data points.", exc);
-		}
-		catch (IllDefinedDataPointsException exc) {
-			throw new RuntimeException("Ill-defined data points.", exc);
-		}
+	@Parameter(type = ItemIO.OUTPUT)
+	private double[] residualMean;
 
-		// loop through tiles: models.add(tile.getModel()) / params.model.copy() if not connected
-		List<InvertibleBoundable> models = new ArrayList<>();
-		List<Double> costs = new ArrayList<>();
-		InvertibleBoundable lastModel = null;
-		for (Tile<?> t : tiles) {
-			if (t.getConnectedTiles().size() > 0) {
-				lastModel = (InvertibleBoundable) t.getModel();
-				models.add(lastModel);
-				costs.add(t.getCost());
-			} else {
-				// models.add((InvertibleBoundable) params.model.copy());
-				models.add(lastModel);
-				costs.add(0.0);
-			}
-		}
-		// errors.add(tile.getCost()) / or tile.getModel().getCost() ? and difference?
+	@Parameter(type = ItemIO.OUTPUT)
+	private double[] residualMedian;
 
-		flatModels = flattenModels(models);
-		modelCosts = Doubles.toArray(costs);
-	}
+	@Parameter(type = ItemIO.OUTPUT)
+	private double[] residualPercentile95;
 
-	private AbstractModel<?> suitableModel(String d, String transform) {
-		switch (transform) {
-			case TRANSLATION:
-				return d.equals(DIM2D) ? new TranslationModel2D()
-					: new TranslationModel3D();
-			case RIGID:
-				return d.equals(DIM2D) ? new RigidModel2D() : new RigidModel3D();
-			case SIMILARITY:
-				return d.equals(DIM2D) ? new SimilarityModel2D()
-					: new SimilarityModel3D();
-			case AFFINE:
-			default:
-				return d.equals(DIM2D) ? new AffineModel2D() : new AffineModel3D();
-		}
-	}
+	@Parameter(type = ItemIO.OUTPUT)
+	private double[] residualMax;
 
-	private double[] flattenModels(List<InvertibleBoundable> models) {
-		List<Double> list = new ArrayList<>();
-		for (InvertibleBoundable m : models) {
-			double[] matrix = new double[12];
-			// TODO allow 2D model here!
-			// see ModelFitter for mapping of 2D/3D toMatrix order to affine
-			((AbstractAffineModel3D<?>) m).getMatrix(matrix);
-			list.addAll(Arrays.stream(matrix).boxed().collect(Collectors.toList()));
-		}
-		return Doubles.toArray(list);
-	}
+	@Parameter(type = ItemIO.OUTPUT)
+	private double[] iterationErrors;
 
-	private DescriptorParameters defaultParameters() {
-		DescriptorParameters params = new DescriptorParameters();
-		params.dimensionality = 3;
-		// params.localization = 1;
-		params.numNeighbors = 2;
-		params.significance = 3;
-		params.similarOrientation = true;
-		params.ransacThreshold = 3;
-		// params.channel1 = 0;
-		// params.channel2 = 0;
-		params.redundancy = 3;
-		// params.fuse = 2; // no Overlay image
-		params.globalOpt = 1;
-		params.range = 10;
-		params.silent = true;
-		return params;
-	}
+	@Parameter(type = ItemIO.OUTPUT)
+	private int nIterations;
 
-	private void createPeaks()
-	{
-		List<Integer> list = new ArrayList<>(frame.length);
-		Arrays.stream(frame).forEach(v -> list.add((int) v));
-		SortedSet<Integer> frameSet = new TreeSet<>(list);
-
-		// NB: KNIME only supports int[] output, but for SortedSet we need boxed types
-		Integer[] frameArray = new Integer[frameSet.size()];
-		frameSet.toArray(frameArray);
-		List<Integer> frameLookup = Arrays.asList(frameArray);
-		frameList = Arrays.stream(frameArray).mapToInt(Integer::intValue).toArray();
-
-		peaks = new ArrayList<>(frameSet.size());
-		for (int i=0; i < frameSet.size(); i++) {
-			peaks.add(new ArrayList<>());
-		}
+	@Parameter(type = ItemIO.OUTPUT)
+	private double optimizationTime;
 
-		for (int i=0; i < frame.length; i++) {
-			peaks.get(frameLookup.indexOf((int) frame[i])).add(createPeak(xCoords[i], yCoords[i], zCoords[i]));
+	@Override
+	public void run() {
+		RegistrationEngine engine = new RegistrationEngine(dim, RegUtils.suitableModel(dim, transformType));
+		engine.setRange(range);
+		engine.setOptimizerSettings(maxError, maxIterations, maxPlateauWidth);
+		engine.setInitialModels(initialModels);
+		if (parallelMatching) {
+			// same neighbors, redundancy, significance and RANSAC threshold as the plugin defaults
+			DescriptorMatcher matcher = new DescriptorMatcher(2, 3, 3, 3);
+			matcher.setNumThreads(numThreads);
+			engine.setDescriptorMatcher(matcher);
 		}
-	}
-
-	private DifferenceOfGaussianPeak<FloatType> createPeak(double x, double y,
-		double z)
-	{
-		int[] loc = new int[] { (int) x, (int) y, (int) z };
-		DifferenceOfGaussianPeak<FloatType> p = new DifferenceOfGaussianPeak<>(loc,
-			new FloatType(), SpecialPoint.MAX);
-		p.setSubPixelLocationOffset((float) (x - loc[0]), 0);
-		p.setSubPixelLocationOffset((float) (y - loc[1]), 1);
-		p.setSubPixelLocationOffset((float) (z - loc[2]), 2);
-		return p;
+		engine.registerUnmatched(Arrays.stream(frame).mapToInt(v -> (int) v).toArray(), xCoords, yCoords, zCoords);
+
+		// NB: KNIME only supports int[] output
+		frameList = engine.getFrameList();
+		flatModels = engine.getFlatModels();
+		modelCosts = engine.getModelCosts();
+		ResidualStatistics residuals = engine.getResiduals();
+		matchCounts = residuals.getMatchCounts();
+		residualMean = residuals.getMean();
+		residualMedian = residuals.getMedian();
+		residualPercentile95 = residuals.getPercentile95();
+		residualMax = residuals.getMax();
+		iterationErrors = engine.getIterationErrors();
+		nIterations = engine.getIterations();
+		optimizationTime = engine.getOptimizationTime();
 	}
 
 }
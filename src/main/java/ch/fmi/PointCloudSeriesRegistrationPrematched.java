@@ -21,10 +21,7 @@
  */
 package ch.fmi;
 
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
-import java.util.Vector;
 
 import org.scijava.ItemIO;
 import org.scijava.command.Command;
@@ -33,21 +30,12 @@ import org.scijava.log.LogService;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 
-import com.google.common.primitives.Doubles;
-
 import ch.fmi.registration.RegUtils;
-import mpicbg.imglib.algorithm.scalespace.DifferenceOfGaussianPeak;
-import mpicbg.imglib.type.numeric.real.FloatType;
+import ch.fmi.registration.RegistrationEngine;
+import ch.fmi.registration.ResidualStatistics;
+import ch.fmi.registration.TileOptimizer;
+import ch.fmi.util.Parallel;
 import mpicbg.models.AbstractModel;
-import mpicbg.models.IllDefinedDataPointsException;
-import mpicbg.models.InvertibleBoundable;
-import mpicbg.models.NotEnoughDataPointsException;
-import mpicbg.models.Tile;
-import mpicbg.models.TileConfiguration;
-import net.imglib2.util.Pair;
-import plugin.DescriptorParameters;
-import process.ComparePair;
-import process.Matching;
 
 @Plugin(type = Command.class, headless = true,
 	menuPath = "FMI>Register Series of Prematched Point Clouds")
@@ -81,6 +69,15 @@ public class PointCloudSeriesRegistrationPrematched <M extends AbstractModel<M>>
 	@Parameter(label = "Sliding-window radius", description = "Radius of the smoothening operation; a radius of 1 means smoothening over a 3-frame window (current +/- 1).", min = "0", required = false)
 	private Integer interpolationRadius = 2;
 
+	@Parameter(label = "Number of threads", description = "Number of threads used to build and fit the frame pairs", min = "1", required = false)
+	private Integer numThreads = Parallel.availableThreads();
+
+	@Parameter(label = "Block size", description = "Number of frames optimized together; blocks are solved in parallel and aligned via their shared frames. 0 optimizes all frames at once.", min = "0", required = false)
+	private Integer blockSize = 0;
+
+	@Parameter(label = "Block overlap", description = "Number of frames shared by adjacent blocks, at most half the block size", min = "1", required = false)
+	private Integer blockOverlap = 10;
+
 	@Parameter(label = "Frame Numbers", required = false)
 	private double[] frame;
 
@@ -96,6 +93,21 @@ public class PointCloudSeriesRegistrationPrematched <M extends AbstractModel<M>>
 	@Parameter(label = "Track IDs", required = false)
 	private double[] trackIDs;
 
+	@Parameter(label = "Weights", description = "Optional per-spot weight, e.g. spot quality; each correspondence is weighted by the geometric mean of its spot weights", required = false)
+	private double[] weights = null;
+
+	@Parameter(label = "Maximal error", description = "Mean error below which the global optimization may stop", required = false)
+	private Double maxError = TileOptimizer.DEFAULT_MAX_ERROR;
+
+	@Parameter(label = "Maximal iterations", description = "Maximum number of iterations of the global optimization", required = false)
+	private Integer maxIterations = TileOptimizer.DEFAULT_MAX_ITERATIONS;
+
+	@Parameter(label = "Maximal plateau width", description = "Number of iterations over which convergence is evaluated", required = false)
+	private Integer maxPlateauWidth = TileOptimizer.DEFAULT_MAX_PLATEAU_WIDTH;
+
+	@Parameter(label = "Initial models", description = "Flat models of a previous run (12 values per frame) used as starting point instead of pre-alignment", required = false)
+	private double[] initialModels = null;
+
 	// --- OUTPUTS ---
 
 	@Parameter(type = ItemIO.OUTPUT)
@@ -110,123 +122,74 @@ public class PointCloudSeriesRegistrationPrematched <M extends AbstractModel<M>>
 	@Parameter(type = ItemIO.OUTPUT)
 	private double[] modelCosts;
 
-	// TODO: update to newer API? using ImgLib2 FloatType etc.?
-	ArrayList<ArrayList<DifferenceOfGaussianPeak<FloatType>>> peaks;
+	@Parameter(type = ItemIO.OUTPUT)
+	private int[] matchCounts;
 
-	// List of matrices
-	// List of frames
+	@Parameter(type = ItemIO.OUTPUT)
+	private double[] residualMean;
 
-	@SuppressWarnings("unchecked")
-	@Override
-	public void run() {
-		if (!(frame.length == xCoords.length && frame.length == yCoords.length && frame.length == trackIDs.length)) {
-			throw new IllegalArgumentException("All input vectors have to be same length.");
-		}
+	@Parameter(type = ItemIO.OUTPUT)
+	private double[] residualMedian;
 
-		int[] frameInt = Arrays.stream(frame).mapToInt(v -> (int) v).toArray();
-		Integer[] sortedUniqueFrames = RegUtils.getSortedUniqueFrames(frameInt);
-		// Populate output for KNIME (needs to be int[])
-		frameList = Arrays.stream(sortedUniqueFrames).mapToInt(Integer::intValue).toArray();
+	@Parameter(type = ItemIO.OUTPUT)
+	private double[] residualPercentile95;
+
+	@Parameter(type = ItemIO.OUTPUT)
+	private double[] residualMax;
+
+	@Parameter(type = ItemIO.OUTPUT)
+	private double[] iterationErrors;
+
+	@Parameter(type = ItemIO.OUTPUT)
+	private int nIterations;
 
-		int[] ids = Arrays.stream(trackIDs).mapToInt(v -> (int) v).toArray();
-		Pair<ArrayList<ArrayList<DifferenceOfGaussianPeak<FloatType>>>, List<List<Integer>>> peaksAndCorrespondences = RegUtils
-				.getPeaksAndCorrespondencesFromArrays(Arrays.asList(sortedUniqueFrames), frameInt, xCoords, yCoords,
-						dim.equals(RegUtils.DIM3D) ? zCoords : null, ids);
-		peaks = peaksAndCorrespondences.getA();
-		List<List<Integer>> correspondences = peaksAndCorrespondences.getB();
+	@Parameter(type = ItemIO.OUTPUT)
+	private double optimizationTime;
 
-		DescriptorParameters params = defaultParameters();
-		params.regularize = regularize;
+	@Override
+	public void run() {
+		AbstractModel<?> model;
 		if (regularize) {
-			params.model = RegUtils.suitableRegularizedModel(dim, transformType, regularizationType, lambda);
+			model = RegUtils.suitableRegularizedModel(dim, transformType, regularizationType, lambda);
 		} else {
-			params.model = RegUtils.suitableModel(dim, transformType);
-		}
-		params.range = range;
-
-		Vector<ComparePair> pairs = RegUtils.getComparePairs(sortedUniqueFrames, peaks, range, params.model);
-		RegUtils.populateComparePairs(pairs, peaks, correspondences);
-
-		//ArrayList<InvertibleBoundable> models = Matching.globalOptimization(pairs, peaks.size(), params);
-
-		// Global Optimization
-
-		final ArrayList<Tile<?>> tiles = new ArrayList<>();
-		// initialize tiles
-		for ( int t = 0; t < peaks.size(); ++t )
-		  tiles.add( new Tile<>( (M) params.model.copy() ) );
-		// TODO restore coordinates (needed?)
-		// add point matches to respective tiles
-		for ( final ComparePair pair : pairs )
-			Matching.addPointMatches( pair.inliers, tiles.get( pair.indexA ), tiles.get( pair.indexB ) );
-
-		final TileConfiguration tc = new TileConfiguration();
-
-		// add tiles / fix first tile
-		boolean fixed = false;
-		for (Tile<?> t : tiles) {
-			if (t.getConnectedTiles().size() > 0) {
-				tc.addTile(t);
-				if (!fixed) {
-					tc.fixTile(t);
-					fixed = true;
-				}
-			}
-		}
-		
-		try {
-			tc.preAlign();
-			tc.optimize(10, 10000, 200);
-		}
-		catch (NotEnoughDataPointsException exc) {
-			throw new RuntimeException("Not enough data points.", exc);
-		}
-		catch (IllDefinedDataPointsException exc) {
-			throw new RuntimeException("Ill-defined data points.", exc);
+			model = RegUtils.suitableModel(dim, transformType);
 		}
 
-		// loop through tiles: models.add(tile.getModel()) / lastModel if not connected
-		List<InvertibleBoundable> models = new ArrayList<>();
-		List<Double> costs = new ArrayList<>();
-		InvertibleBoundable lastModel = null;
-		for (Tile<?> t : tiles) {
-			if (t.getConnectedTiles().size() > 0) {
-				lastModel = (InvertibleBoundable) t.getModel();
-				models.add(lastModel);
-				costs.add(t.getCost());
-			} else {
-				// models.add((InvertibleBoundable) params.model.copy());
-				models.add(lastModel);
-				costs.add(0.0);
-			}
+		RegistrationEngine engine = new RegistrationEngine(dim, model);
+		engine.setRange(range);
+		engine.setNumThreads(numThreads);
+		engine.setOptimizerSettings(maxError, maxIterations, maxPlateauWidth);
+		engine.setInitialModels(initialModels);
+		// clamp the overlap (default 10) to half the block size; invalid
+		// combinations are rejected by BlockSolver
+		int overlap = blockOverlap;
+		if (blockSize > 0 && overlap > blockSize / 2) {
+			overlap = blockSize / 2;
+			log.warn("Block overlap reduced to half the block size: " + overlap);
 		}
-		// errors.add(tile.getCost()) / or tile.getModel().getCost() ? and difference?
-
-		flatModels = RegUtils.flattenModels(models, dim);
+		engine.setBlocks(blockSize, overlap);
+		engine.registerPrematched(toInt(frame), xCoords, yCoords, zCoords, toInt(trackIDs), weights);
+
+		// NB: KNIME only supports int[] output
+		frameList = engine.getFrameList();
+		flatModels = engine.getFlatModels();
+		modelCosts = engine.getModelCosts();
+		ResidualStatistics residuals = engine.getResiduals();
+		matchCounts = residuals.getMatchCounts();
+		residualMean = residuals.getMean();
+		residualMedian = residuals.getMedian();
+		residualPercentile95 = residuals.getPercentile95();
+		residualMax = residuals.getMax();
+		iterationErrors = engine.getIterationErrors();
+		nIterations = engine.getIterations();
+		optimizationTime = engine.getOptimizationTime();
 		if (interpolate) {
-			List<InvertibleBoundable> interpolatedModels = RegUtils.interpolateModels(sortedUniqueFrames, models, interpolationRadius, dim);
-			flatModelsInterpolated = RegUtils.flattenModels(interpolatedModels, dim);
+			flatModelsInterpolated = RegUtils.smoothFlatModels(frameList, flatModels, interpolationRadius);
 		}
-		modelCosts = Doubles.toArray(costs);
 	}
 
-	private DescriptorParameters defaultParameters() {
-		DescriptorParameters params = new DescriptorParameters();
-		params.dimensionality = 3;
-		// params.localization = 1;
-		params.numNeighbors = 2;
-		params.significance = 3;
-		params.similarOrientation = true;
-		params.ransacThreshold = 3;
-		// params.channel1 = 0;
-		// params.channel2 = 0;
-		params.redundancy = 3;
-		// params.fuse = 2; // no Overlay image
-		params.globalOpt = 1;
-		params.range = 10;
-		params.silent = true;
-		params.lambda = 0.1;
-		return params;
+	private static int[] toInt(double[] values) {
+		return Arrays.stream(values).mapToInt(v -> (int) v).toArray();
 	}
 
 }
@@ -21,17 +21,14 @@
  */
 package ch.fmi;
 
-import java.util.ArrayList;
-
-import com.google.common.primitives.Doubles;
-import com.google.common.primitives.Ints;
-
 import org.scijava.ItemIO;
 import org.scijava.command.Command;
 import org.scijava.log.LogService;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 
+import ch.fmi.util.DoubleColumn;
+import ch.fmi.util.IntColumn;
 import fiji.plugin.trackmate.Model;
 import fiji.plugin.trackmate.Settings;
 import fiji.plugin.trackmate.Spot;
@@ -148,12 +145,13 @@ public class TrackMateCollectionTracker implements Command {
 		 * + trackmate.getErrorMessage()); return; }
 		 */
 
-		ArrayList<Integer> spotIDlist = new ArrayList<>();
-		ArrayList<Integer> trackIDlist = new ArrayList<>();
-		ArrayList<Double> frameList = new ArrayList<>();
-		ArrayList<Double> xList = new ArrayList<>();
-		ArrayList<Double> yList = new ArrayList<>();
-		ArrayList<Double> zList = new ArrayList<>();
+		int capacity = spotID.length;
+		IntColumn spotIDColumn = new IntColumn(capacity);
+		IntColumn trackIDColumn = new IntColumn(capacity);
+		DoubleColumn frameColumn = new DoubleColumn(capacity);
+		DoubleColumn xColumn = new DoubleColumn(capacity);
+		DoubleColumn yColumn = new DoubleColumn(capacity);
+		DoubleColumn zColumn = new DoubleColumn(capacity);
 
 		if (trackmate.execTracking()) {
 			TrackModel trackmodel = model.getTrackModel();
@@ -161,22 +159,22 @@ public class TrackMateCollectionTracker implements Command {
 			// fill outputs
 			for (Integer currentTrackID : trackmodel.trackIDs(false)) {
 				for (Spot spot : trackmodel.trackSpots(currentTrackID)) {
-					spotIDlist.add(spot.ID());
-					trackIDlist.add(currentTrackID);
-					frameList.add(spot.getFeature(Spot.FRAME));
-					xList.add(spot.getDoublePosition(0));
-					yList.add(spot.getDoublePosition(1));
-					zList.add(spot.getDoublePosition(2));
+					spotIDColumn.add(spot.ID());
+					trackIDColumn.add(currentTrackID);
+					frameColumn.add(spot.getFeature(Spot.FRAME));
+					xColumn.add(spot.getDoublePosition(0));
+					yColumn.add(spot.getDoublePosition(1));
+					zColumn.add(spot.getDoublePosition(2));
 				}
 			}
 		}
 
-		keptSpotID = Ints.toArray(spotIDlist);
-		trackID = Ints.toArray(trackIDlist);
-		keptFrame = Doubles.toArray(frameList);
-		keptX = Doubles.toArray(xList);
-		keptY = Doubles.toArray(yList);
-		keptZ = Doubles.toArray(zList);
+		keptSpotID = spotIDColumn.toArray();
+		trackID = trackIDColumn.toArray();
+		keptFrame = frameColumn.toArray();
+		keptX = xColumn.toArray();
+		keptY = yColumn.toArray();
+		keptZ = zColumn.toArray();
 
 		nSpotsFound = model.getSpots().getNSpots(false);
 		nTracksFound = model.getTrackModel().nTracks(false);
@@ -21,11 +21,6 @@
  */
 package ch.fmi;
 
-import java.util.ArrayList;
-
-import com.google.common.primitives.Doubles;
-import com.google.common.primitives.Ints;
-
 import org.scijava.ItemIO;
 import org.scijava.command.Command;
 import org.scijava.log.LogService;
@@ -33,6 +28,11 @@ import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 
 import ch.fmi.trackmate.features.MaxQualitySpotAnalyzerFactory;
+import ch.fmi.util.DoubleColumn;
+import ch.fmi.util.IntColumn;
+import ch.fmi.util.MaskRoiCache;
+import ch.fmi.util.Parallel;
+import ch.fmi.util.TiledSpotDetection;
 import fiji.plugin.trackmate.Model;
 import fiji.plugin.trackmate.Settings;
 import fiji.plugin.trackmate.Spot;
@@ -44,9 +44,7 @@ import fiji.plugin.trackmate.features.FeatureFilter;
 import fiji.plugin.trackmate.features.spot.SpotContrastAndSNRAnalyzerFactory;
 import fiji.plugin.trackmate.features.spot.SpotIntensityMultiCAnalyzerFactory;
 import ij.ImagePlus;
-import ij.gui.Roi;
-import ij.plugin.filter.ThresholdToSelection;
-import ij.process.ImageProcessor;
+import ij.ImageStack;
 
 @Plugin(type = Command.class, headless = true, menuPath = "FMI>Spot Detection (Subpixel localization)")
 public class TrackMateSpotDetector implements Command {
@@ -74,6 +72,21 @@ public class TrackMateSpotDetector implements Command {
 	@Parameter(label = "Use mask?")
 	private boolean useMask = true;
 
+	@Parameter(label = "Streaming detection", description = "Detect chunks of frames independently on a thread pool, so only the frames being processed are held in memory", required = false)
+	private boolean streaming = false;
+
+	@Parameter(label = "Frames per chunk", min = "1", required = false)
+	private Integer chunkSize = 1;
+
+	@Parameter(label = "Number of threads", min = "1", required = false)
+	private Integer numThreads = Parallel.availableThreads();
+
+	@Parameter(label = "Tiled detection", description = "Detect on overlapping tiles of each frame in parallel, for very large fields of view", required = false)
+	private boolean tiled = false;
+
+	@Parameter(label = "Tile size (pixels)", description = "Maximum core tile size; 0 derives it from the spot radius", min = "0", required = false)
+	private Integer tileSize = 0;
+
 	@Parameter(type = ItemIO.OUTPUT)
 	private int nSpotsFound;
 
@@ -114,21 +127,51 @@ public class TrackMateSpotDetector implements Command {
 	public void run() {
 		// Set mask ROI on input image
 		if (mask != null && useMask) {
-			mask.getProcessor().setThreshold(1.0, Double.POSITIVE_INFINITY,
-					ImageProcessor.NO_LUT_UPDATE);
-			Roi roi = ThresholdToSelection.run(mask);
-			imp.setRoi(roi);
+			MaskRoiCache roiCache = MaskRoiCache.shared();
+			imp.setRoi(roiCache.get(mask));
+			log.info(roiCache.getStatsMessage());
 		}
 
-		// Create TrackMate instance with settings
-		Model model = new Model();
-
 		// optionally remove calibration from imp
 		if (removeCalibration) {
 			imp.setCalibration(null);
 		}
 
-		Settings settings = new Settings(imp);
+		SpotColumns spots;
+		if (streaming && imp.getNFrames() > 1) {
+			spots = detectStreaming();
+		} else {
+			spots = detect(imp, 0, false);
+		}
+
+		// Get results (spot list)
+		spotID = spots.spotID.toArray();
+		x = spots.x.toArray();
+		y = spots.y.toArray();
+		z = spots.z.toArray();
+		frame = spots.frame.toArray();
+		radius = spots.radius.toArray();
+		quality = spots.quality.toArray();
+		totalIntensity = spots.totalIntensity.toArray();
+		meanIntensity = spots.meanIntensity.toArray();
+		contrast = spots.contrast.toArray();
+
+		// Return summary values
+		nSpotsFound = spots.size();
+	}
+
+	/**
+	 * Detect, measure and filter the spots of {@code source}, discarding the
+	 * TrackMate model afterwards.
+	 *
+	 * @param frameOffset
+	 *            added to the frame of each spot
+	 * @param singleThreaded
+	 *            run TrackMate on the calling thread only
+	 */
+	private SpotColumns detect(ImagePlus source, int frameOffset, boolean singleThreaded) {
+		Model model = new Model();
+		Settings settings = new Settings(source);
 
 		// TODO make detector choice optional
 		settings.detectorFactory = new LogDetectorFactory<>();
@@ -152,58 +195,149 @@ public class TrackMateSpotDetector implements Command {
 		}
 
 		TrackMate trackmate = new TrackMate(model, settings);
+		if (singleThreaded) {
+			trackmate.setNumThreads(1);
+		}
 
-		// Prepare lists to collect results
-		ArrayList<Integer> spotIDlist = new ArrayList<>();
-		ArrayList<Double> xList = new ArrayList<>();
-		ArrayList<Double> yList = new ArrayList<>();
-		ArrayList<Double> zList = new ArrayList<>();
-		ArrayList<Double> frameList = new ArrayList<>();
-		ArrayList<Double> radiusList = new ArrayList<>();
-		ArrayList<Double> qualityList = new ArrayList<>();
-		ArrayList<Double> totalIntensityList = new ArrayList<>();
-		ArrayList<Double> meanIntensityList = new ArrayList<>();
-		ArrayList<Double> contrastList = new ArrayList<>();
-		// TODO add other outputs
-
-		if (trackmate.execDetection() && trackmate.computeSpotFeatures(true)
-				&& trackmate.execSpotFiltering(true)) {
-			// Get spot collection (all spots)
-			SpotCollection spotCollection = model.getSpots();
-			for (Spot spot : spotCollection.iterable(false)) {
-				spotIDlist.add(spot.ID());
-				xList.add(spot.getDoublePosition(0));
-				yList.add(spot.getDoublePosition(1));
-				zList.add(spot.getDoublePosition(2));
-				frameList.add(spot.getFeature(Spot.FRAME));
-				radiusList.add(spot.getFeature(Spot.RADIUS));
-				qualityList.add(spot.getFeature(Spot.QUALITY));
-				totalIntensityList
-						.add(spot
-								.getFeature("TOTAL_INTENSITY_CH1"));
-				meanIntensityList
-						.add(spot
-								.getFeature("MEAN_INTENSITY_CH1"));
-				contrastList.add(spot
-						.getFeature("CONTRAST_CH1"));
+		if (tiled) {
+			TiledSpotDetection detection = new TiledSpotDetection(settings, tileSize);
+			detection.setNumThreads(singleThreaded ? 1 : numThreads);
+			if (!detection.process()) {
+				log.warn(detection.getErrorMessage());
+				return new SpotColumns(0);
 			}
-		} else {
+			model.setSpots(detection.getSpots(), false);
+		} else if (!trackmate.execDetection()) {
 			log.warn(trackmate.getErrorMessage());
+			return new SpotColumns(0);
 		}
 
-		// Get results (spot list)
-		spotID = Ints.toArray(spotIDlist);
-		x = Doubles.toArray(xList);
-		y = Doubles.toArray(yList);
-		z = Doubles.toArray(zList);
-		frame = Doubles.toArray(frameList);
-		radius = Doubles.toArray(radiusList);
-		quality = Doubles.toArray(qualityList);
-		totalIntensity = Doubles.toArray(totalIntensityList);
-		meanIntensity = Doubles.toArray(meanIntensityList);
-		contrast = Doubles.toArray(contrastList);
+		if (!(trackmate.computeSpotFeatures(true) && trackmate.execSpotFiltering(true))) {
+			log.warn(trackmate.getErrorMessage());
+			return new SpotColumns(0);
+		}
 
-		// Return summary values
-		nSpotsFound = model.getSpots().getNSpots(false);
+		// Get spot collection (all spots)
+		SpotCollection spotCollection = model.getSpots();
+		SpotColumns spots = new SpotColumns(spotCollection.getNSpots(false));
+		for (Spot spot : spotCollection.iterable(false)) {
+			spots.add(spot, frameOffset);
+		}
+		return spots;
+	}
+
+	/**
+	 * Detect chunks of {@code chunkSize} frames independently on up to
+	 * {@code numThreads} threads. Only the frames of the chunks being
+	 * processed are loaded (for virtual stacks) and held in TrackMate models.
+	 */
+	private SpotColumns detectStreaming() {
+		int nFrames = imp.getNFrames();
+		int nChunks = (nFrames + chunkSize - 1) / chunkSize;
+		SpotColumns[] chunks = new SpotColumns[nChunks];
+		Parallel.forEach(nChunks, numThreads, c -> {
+			int from = c * chunkSize;
+			int to = Math.min(from + chunkSize, nFrames);
+			chunks[c] = detect(frameChunk(from, to), from, true);
+		});
+
+		int total = 0;
+		for (SpotColumns chunk : chunks) {
+			total += chunk.size();
+		}
+		SpotColumns spots = new SpotColumns(total);
+		for (SpotColumns chunk : chunks) {
+			spots.addAll(chunk);
+		}
+		return spots;
+	}
+
+	/**
+	 * @return a hyperstack sharing the processors of frames {@code [from, to)}
+	 *         (0-based) of {@code imp}, with its calibration and ROI
+	 */
+	private ImagePlus frameChunk(int from, int to) {
+		int nChannels = imp.getNChannels();
+		int nSlices = imp.getNSlices();
+		ImageStack stack = imp.getStack();
+		ImageStack chunk = new ImageStack(imp.getWidth(), imp.getHeight());
+		// virtual stacks are not necessarily thread-safe
+		synchronized (stack) {
+			for (int t = from + 1; t <= to; t++) {
+				for (int z = 1; z <= nSlices; z++) {
+					for (int c = 1; c <= nChannels; c++) {
+						int index = imp.getStackIndex(c, z, t);
+						chunk.addSlice(stack.getSliceLabel(index), stack.getProcessor(index));
+					}
+				}
+			}
+		}
+		ImagePlus chunkImp = new ImagePlus(imp.getTitle(), chunk);
+		chunkImp.setDimensions(nChannels, nSlices, to - from);
+		chunkImp.setCalibration(imp.getCalibration());
+		chunkImp.setRoi(imp.getRoi());
+		return chunkImp;
+	}
+
+	/**
+	 * Output columns of the detected spots.
+	 */
+	private static class SpotColumns {
+		final IntColumn spotID;
+		final DoubleColumn x;
+		final DoubleColumn y;
+		final DoubleColumn z;
+		final DoubleColumn frame;
+		final DoubleColumn radius;
+		final DoubleColumn quality;
+		final DoubleColumn totalIntensity;
+		final DoubleColumn meanIntensity;
+		final DoubleColumn contrast;
+		// TODO add other outputs
+
+		SpotColumns(int capacity) {
+			spotID = new IntColumn(capacity);
+			x = new DoubleColumn(capacity);
+			y = new DoubleColumn(capacity);
+			z = new DoubleColumn(capacity);
+			frame = new DoubleColumn(capacity);
+			radius = new DoubleColumn(capacity);
+			quality = new DoubleColumn(capacity);
+			totalIntensity = new DoubleColumn(capacity);
+			meanIntensity = new DoubleColumn(capacity);
+			contrast = new DoubleColumn(capacity);
+		}
+
+		int size() {
+			return spotID.size();
+		}
+
+		void add(Spot spot, int frameOffset) {
+			spotID.add(spot.ID());
+			x.add(spot.getDoublePosition(0));
+			y.add(spot.getDoublePosition(1));
+			z.add(spot.getDoublePosition(2));
+			frame.add(spot.getFeature(Spot.FRAME) + frameOffset);
+			radius.add(spot.getFeature(Spot.RADIUS));
+			quality.add(spot.getFeature(Spot.QUALITY));
+			totalIntensity.add(spot.getFeature("TOTAL_INTENSITY_CH1"));
+			meanIntensity.add(spot.getFeature("MEAN_INTENSITY_CH1"));
+			contrast.add(spot.getFeature("CONTRAST_CH1"));
+		}
+
+		void addAll(SpotColumns other) {
+			for (int i = 0; i < other.size(); i++) {
+				spotID.add(other.spotID.get(i));
+				x.add(other.x.get(i));
+				y.add(other.y.get(i));
+				z.add(other.z.get(i));
+				frame.add(other.frame.get(i));
+				radius.add(other.radius.get(i));
+				quality.add(other.quality.get(i));
+				totalIntensity.add(other.totalIntensity.get(i));
+				meanIntensity.add(other.meanIntensity.get(i));
+				contrast.add(other.contrast.get(i));
+			}
+		}
 	}
 }
@@ -21,10 +21,6 @@
  */
 package ch.fmi;
 
-import java.util.ArrayList;
-
-import com.google.common.primitives.Doubles;
-
 import org.scijava.ItemIO;
 import org.scijava.command.Command;
 import org.scijava.log.LogService;
@@ -32,7 +28,10 @@ import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 
 import ch.fmi.trackmate.features.MaxQualitySpotAnalyzerFactory;
-import fiji.plugin.trackmate.FeatureModel;
+import ch.fmi.util.DoubleColumn;
+import ch.fmi.util.Parallel;
+import ch.fmi.util.SpotMask;
+import ch.fmi.util.TiledSpotDetection;
 import fiji.plugin.trackmate.Model;
 import fiji.plugin.trackmate.Settings;
 import fiji.plugin.trackmate.Spot;
@@ -48,9 +47,6 @@ import fiji.plugin.trackmate.tracking.TrackerKeys;
 import fiji.plugin.trackmate.tracking.jaqaman.LAPUtils;
 import fiji.plugin.trackmate.tracking.jaqaman.SparseLAPTrackerFactory;
 import ij.ImagePlus;
-import ij.gui.Roi;
-import ij.plugin.filter.ThresholdToSelection;
-import ij.process.ImageProcessor;
 
 @Plugin(type = Command.class, headless = true, menuPath = "FMI>Track Spots (Subpixel localization)")
 public class TrackMateWrapper implements Command {
@@ -86,6 +82,15 @@ public class TrackMateWrapper implements Command {
 	@Parameter(label = "Filter max quality spot per frame", required = false)
 	private boolean filterMaxQuality = false;
 
+	@Parameter(label = "Tiled detection", description = "Detect on overlapping tiles of each frame in parallel, for very large fields of view", required = false)
+	private boolean tiled = false;
+
+	@Parameter(label = "Tile size (pixels)", description = "Maximum core tile size; 0 derives it from the spot radius", min = "0", required = false)
+	private Integer tileSize = 0;
+
+	@Parameter(label = "Number of threads", min = "1", required = false)
+	private Integer numThreads = Parallel.availableThreads();
+
 	@Parameter(type = ItemIO.OUTPUT)
 	private int nSpotsFound;
 
@@ -130,18 +135,17 @@ public class TrackMateWrapper implements Command {
 
 	@Override
 	public void run() {
-		// Set mask ROI on input image
-		if (mask != null) {
-			mask.getProcessor().setThreshold(1.0, Double.POSITIVE_INFINITY,
-					ImageProcessor.NO_LUT_UPDATE);
-			Roi roi = ThresholdToSelection.run(mask);
-			imp.setRoi(roi);
-		}
-
 		// Create TrackMate instance with settings
 		Model model = new Model();
 		Settings settings = new Settings(imp);
 
+		// Spots are filtered by the mask pixels after detection
+		SpotMask spotMask = null;
+		if (mask != null) {
+			spotMask = new SpotMask(mask);
+			spotMask.crop(settings);
+		}
+
 		settings.dt = frameInterval;
 		settings.detectorFactory = new LogDetectorFactory<>();
 
@@ -172,83 +176,87 @@ public class TrackMateWrapper implements Command {
 		settings.addSpotAnalyzerFactory(new MaxQualitySpotAnalyzerFactory<>());
 		settings.addTrackAnalyzer(new TrackDurationAnalyzer());
 
-		// TODO detect spots first, filter by mask.contains, then do tracking
-
 		TrackMate trackmate = new TrackMate(model, settings);
 
-		// Process (spot detection and tracking)
+		// Process (spot detection, mask filtering and tracking)
 		if (!trackmate.checkInput()) {
 			log.error("Configuration error: " + trackmate.getErrorMessage());
 			return;
 		}
-		if (!trackmate.process()) {
+		if (tiled) {
+			TiledSpotDetection detection = new TiledSpotDetection(settings, tileSize);
+			detection.setNumThreads(numThreads);
+			if (!detection.process()) {
+				log.error("Processing error: " + detection.getErrorMessage());
+				return;
+			}
+			model.setSpots(detection.getSpots(), false);
+		} else if (!trackmate.execDetection()) {
+			log.error("Processing error: " + trackmate.getErrorMessage());
+			return;
+		}
+		if (spotMask != null) {
+			model.setSpots(spotMask.filter(model.getSpots(), settings.dx,
+					settings.dy), false);
+		}
+		// remaining steps of TrackMate.process()
+		if (!(trackmate.execInitialSpotFiltering()
+				&& trackmate.computeSpotFeatures(true)
+				&& trackmate.execSpotFiltering(true)
+				&& trackmate.execTracking()
+				&& trackmate.computeEdgeFeatures(true)
+				&& trackmate.computeTrackFeatures(true)
+				&& trackmate.execTrackFiltering(true))) {
 			log.error("Processing error: " + trackmate.getErrorMessage());
 			return;
 		}
 
-		// Prepare lists to collect results
-		ArrayList<Double> spotIDlist = new ArrayList<>();
-		ArrayList<Double> qualityList = new ArrayList<>();
-		ArrayList<Double> trackIDlist = new ArrayList<>();
-		ArrayList<Double> durationList = new ArrayList<>();
-		ArrayList<Double> frameList = new ArrayList<>();
-		ArrayList<Double> tList = new ArrayList<>();
-		ArrayList<Double> xList = new ArrayList<>();
-		ArrayList<Double> yList = new ArrayList<>();
-		ArrayList<Double> zList = new ArrayList<>();
-		ArrayList<Double> totalIntensityList = new ArrayList<>();
-		ArrayList<Double> meanIntensityList = new ArrayList<>();
-		ArrayList<Double> radiusList = new ArrayList<>();
-		ArrayList<Double> contrastList = new ArrayList<>();
-
+		// Collect results into primitive columns
 		TrackModel trackModel = model.getTrackModel();
-		FeatureModel featureModel = model.getFeatureModel();
+		int capacity = model.getSpots().getNSpots(false);
+		DoubleColumn spotIDColumn = new DoubleColumn(capacity);
+		DoubleColumn qualityColumn = new DoubleColumn(capacity);
+		DoubleColumn trackIDColumn = new DoubleColumn(capacity);
+		DoubleColumn frameColumn = new DoubleColumn(capacity);
+		DoubleColumn tColumn = new DoubleColumn(capacity);
+		DoubleColumn xColumn = new DoubleColumn(capacity);
+		DoubleColumn yColumn = new DoubleColumn(capacity);
+		DoubleColumn zColumn = new DoubleColumn(capacity);
+		DoubleColumn totalIntensityColumn = new DoubleColumn(capacity);
+		DoubleColumn meanIntensityColumn = new DoubleColumn(capacity);
+		DoubleColumn radiusColumn = new DoubleColumn(capacity);
+		DoubleColumn contrastColumn = new DoubleColumn(capacity);
+
 		for (Integer tID : trackModel.trackIDs(false)) {
 			for (Spot spot : trackModel.trackSpots(tID)) {
-				spotIDlist.add((double) spot.ID());
-				qualityList.add(spot.getFeature(Spot.QUALITY));
-				trackIDlist.add((double) tID);
-				durationList.add(featureModel.getTrackFeature(tID,
-						TrackDurationAnalyzer.TRACK_DURATION));
-				frameList.add(spot.getFeature(Spot.FRAME));
-				tList.add(spot.getFeature(Spot.POSITION_T));
-				xList.add(spot.getDoublePosition(0));
-				yList.add(spot.getDoublePosition(1));
-				zList.add(spot.getDoublePosition(2));
-				totalIntensityList
-						.add(spot
-								.getFeature("TOTAL_INTENSITY_CH1"));
-				meanIntensityList
-						.add(spot
-								.getFeature("MEAN_INTENSITY_CH1"));
-				radiusList.add(spot.getFeature(Spot.RADIUS));
-				contrastList.add(spot
-						.getFeature("CONTRAST_CH1"));
+				spotIDColumn.add(spot.ID());
+				qualityColumn.add(spot.getFeature(Spot.QUALITY));
+				trackIDColumn.add(tID);
+				frameColumn.add(spot.getFeature(Spot.FRAME));
+				tColumn.add(spot.getFeature(Spot.POSITION_T));
+				xColumn.add(spot.getDoublePosition(0));
+				yColumn.add(spot.getDoublePosition(1));
+				zColumn.add(spot.getDoublePosition(2));
+				totalIntensityColumn.add(spot.getFeature("TOTAL_INTENSITY_CH1"));
+				meanIntensityColumn.add(spot.getFeature("MEAN_INTENSITY_CH1"));
+				radiusColumn.add(spot.getFeature(Spot.RADIUS));
+				contrastColumn.add(spot.getFeature("CONTRAST_CH1"));
 			}
 		}
 
-		/*
-		 * // Get spot collection (all spots) SpotCollection spotCollection =
-		 * model.getSpots(); for (Spot spot : spotCollection.iterable(false)) {
-		 * spotIDlist.add((double) spot.ID()); trackIDlist.add((double)
-		 * spot.ID()); // TODO trackID xList.add(spot.getDoublePosition(0));
-		 * yList.add(spot.getDoublePosition(1));
-		 * zList.add(spot.getDoublePosition(2)); }
-		 */
-
 		// Get results (spot list with trackIDs)
-		spotID = Doubles.toArray(spotIDlist);
-		spotQuality = Doubles.toArray(qualityList);
-		trackID = Doubles.toArray(trackIDlist);
-		frame = Doubles.toArray(frameList);
-		t = Doubles.toArray(tList);
-		x = Doubles.toArray(xList);
-		y = Doubles.toArray(yList);
-		z = Doubles.toArray(zList);
-		totalIntensity = Doubles.toArray(totalIntensityList);
-		meanIntensity = Doubles.toArray(meanIntensityList);
-		radius = Doubles.toArray(radiusList);
-		contrast = Doubles.toArray(contrastList);
+		spotID = spotIDColumn.toArray();
+		spotQuality = qualityColumn.toArray();
+		trackID = trackIDColumn.toArray();
+		frame = frameColumn.toArray();
+		t = tColumn.toArray();
+		x = xColumn.toArray();
+		y = yColumn.toArray();
+		z = zColumn.toArray();
+		totalIntensity = totalIntensityColumn.toArray();
+		meanIntensity = meanIntensityColumn.toArray();
+		radius = radiusColumn.toArray();
+		contrast = contrastColumn.toArray();
 
 		// Return summary values
 		nSpotsFound = model.getSpots().getNSpots(false);
@@ -21,10 +21,6 @@
  */
 package ch.fmi;
 
-import java.util.ArrayList;
-
-import com.google.common.primitives.Doubles;
-
 import org.scijava.ItemIO;
 import org.scijava.command.Command;
 import org.scijava.log.LogService;
@@ -32,7 +28,8 @@ import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 
 import ch.fmi.trackmate.features.MaxQualitySpotAnalyzerFactory;
-import fiji.plugin.trackmate.FeatureModel;
+import ch.fmi.util.DoubleColumn;
+import ch.fmi.util.SpotMask;
 import fiji.plugin.trackmate.Model;
 import fiji.plugin.trackmate.Settings;
 import fiji.plugin.trackmate.Spot;
@@ -48,9 +45,6 @@ import fiji.plugin.trackmate.tracking.TrackerKeys;
 import fiji.plugin.trackmate.tracking.jaqaman.LAPUtils;
 import fiji.plugin.trackmate.tracking.jaqaman.SparseLAPTrackerFactory;
 import ij.ImagePlus;
-import ij.gui.Roi;
-import ij.plugin.filter.ThresholdToSelection;
-import ij.process.ImageProcessor;
 
 @Plugin(type = Command.class, headless = true, menuPath = "FMI>Track Spots (Subpixel localization, multi-channel)")
 public class TrackMateWrapperMultiChannel implements Command {
@@ -142,18 +136,17 @@ public class TrackMateWrapperMultiChannel implements Command {
 
 	@Override
 	public void run() {
-		// Set mask ROI on input image
-		if (mask != null) {
-			mask.getProcessor().setThreshold(1.0, Double.POSITIVE_INFINITY,
-					ImageProcessor.NO_LUT_UPDATE);
-			Roi roi = ThresholdToSelection.run(mask);
-			imp.setRoi(roi);
-		}
-
 		// Create TrackMate instance with settings
 		Model model = new Model();
 		Settings settings = new Settings(imp);
 
+		// Spots are filtered by the mask pixels after detection
+		SpotMask spotMask = null;
+		if (mask != null) {
+			spotMask = new SpotMask(mask);
+			spotMask.crop(settings);
+		}
+
 		settings.dt = frameInterval;
 		settings.detectorFactory = new LogDetectorFactory<>();
 
@@ -186,102 +179,98 @@ public class TrackMateWrapperMultiChannel implements Command {
 		settings.addSpotAnalyzerFactory(new MaxQualitySpotAnalyzerFactory<>());
 		settings.addTrackAnalyzer(new TrackDurationAnalyzer());
 
-		// TODO detect spots first, filter by mask.contains, then do tracking
-
 		TrackMate trackmate = new TrackMate(model, settings);
 
-		// Process (spot detection and tracking)
+		// Process (spot detection, mask filtering and tracking)
 		if (!trackmate.checkInput()) {
 			log.error("Configuration error: " + trackmate.getErrorMessage());
 			return;
 		}
-		if (!trackmate.process()) {
+		if (!trackmate.execDetection()) {
+			log.error("Processing error: " + trackmate.getErrorMessage());
+			return;
+		}
+		if (spotMask != null) {
+			model.setSpots(spotMask.filter(model.getSpots(), settings.dx,
+					settings.dy), false);
+		}
+		// remaining steps of TrackMate.process()
+		if (!(trackmate.execInitialSpotFiltering()
+				&& trackmate.computeSpotFeatures(true)
+				&& trackmate.execSpotFiltering(true)
+				&& trackmate.execTracking()
+				&& trackmate.computeEdgeFeatures(true)
+				&& trackmate.computeTrackFeatures(true)
+				&& trackmate.execTrackFiltering(true))) {
 			log.error("Processing error: " + trackmate.getErrorMessage());
 			return;
 		}
 
-		// Prepare lists to collect results
-		ArrayList<Double> spotIDlist = new ArrayList<>();
-		ArrayList<Double> qualityList = new ArrayList<>();
-		ArrayList<Double> trackIDlist = new ArrayList<>();
-		ArrayList<Double> durationList = new ArrayList<>();
-		ArrayList<Double> frameList = new ArrayList<>();
-		ArrayList<Double> tList = new ArrayList<>();
-		ArrayList<Double> xList = new ArrayList<>();
-		ArrayList<Double> yList = new ArrayList<>();
-		ArrayList<Double> zList = new ArrayList<>();
-		ArrayList<Double> totalIntensityList = new ArrayList<>();
-		ArrayList<Double> meanIntensityList = new ArrayList<>();
-		ArrayList<Double> radiusList = new ArrayList<>();
-		ArrayList<Double> contrastList = new ArrayList<>();
-
-		ArrayList<Double> ch1List = new ArrayList<>();
-		ArrayList<Double> ch2List = new ArrayList<>();
-		ArrayList<Double> ch3List = new ArrayList<>();
-
+		// Collect results into primitive columns
 		TrackModel trackModel = model.getTrackModel();
-		FeatureModel featureModel = model.getFeatureModel();
+		int capacity = model.getSpots().getNSpots(false);
+		DoubleColumn spotIDColumn = new DoubleColumn(capacity);
+		DoubleColumn qualityColumn = new DoubleColumn(capacity);
+		DoubleColumn trackIDColumn = new DoubleColumn(capacity);
+		DoubleColumn frameColumn = new DoubleColumn(capacity);
+		DoubleColumn tColumn = new DoubleColumn(capacity);
+		DoubleColumn xColumn = new DoubleColumn(capacity);
+		DoubleColumn yColumn = new DoubleColumn(capacity);
+		DoubleColumn zColumn = new DoubleColumn(capacity);
+		DoubleColumn totalIntensityColumn = new DoubleColumn(capacity);
+		DoubleColumn meanIntensityColumn = new DoubleColumn(capacity);
+		DoubleColumn radiusColumn = new DoubleColumn(capacity);
+		DoubleColumn contrastColumn = new DoubleColumn(capacity);
+
+		DoubleColumn ch1Column = new DoubleColumn(capacity);
+		DoubleColumn ch2Column = new DoubleColumn(capacity);
+		DoubleColumn ch3Column = new DoubleColumn(capacity);
+
 		for (Integer tID : trackModel.trackIDs(false)) {
 			for (Spot spot : trackModel.trackSpots(tID)) {
-				spotIDlist.add((double) spot.ID());
-				qualityList.add(spot.getFeature(Spot.QUALITY));
-				trackIDlist.add((double) tID);
-				durationList.add(featureModel.getTrackFeature(tID,
-						TrackDurationAnalyzer.TRACK_DURATION));
-				frameList.add(spot.getFeature(Spot.FRAME));
-				tList.add(spot.getFeature(Spot.POSITION_T));
-				xList.add(spot.getDoublePosition(0));
-				yList.add(spot.getDoublePosition(1));
-				zList.add(spot.getDoublePosition(2));
-				totalIntensityList
-						.add(spot
-								.getFeature("TOTAL_INTENSITY_CH1"));
-				meanIntensityList
-						.add(spot
-								.getFeature("MEAN_INTENSITY_CH1"));
-				radiusList.add(spot.getFeature(Spot.RADIUS));
-				contrastList.add(spot
-						.getFeature("CONTRAST_CH1"));
-				addIfNotNull(ch1List, spot.getFeature("MEAN_INTENSITY_CH1"));
-				addIfNotNull(ch2List, spot.getFeature("MEAN_INTENSITY_CH2"));
-				addIfNotNull(ch3List, spot.getFeature("MEAN_INTENSITY_CH3"));
+				spotIDColumn.add(spot.ID());
+				qualityColumn.add(spot.getFeature(Spot.QUALITY));
+				trackIDColumn.add(tID);
+				frameColumn.add(spot.getFeature(Spot.FRAME));
+				tColumn.add(spot.getFeature(Spot.POSITION_T));
+				xColumn.add(spot.getDoublePosition(0));
+				yColumn.add(spot.getDoublePosition(1));
+				zColumn.add(spot.getDoublePosition(2));
+				totalIntensityColumn.add(spot.getFeature("TOTAL_INTENSITY_CH1"));
+				meanIntensityColumn.add(spot.getFeature("MEAN_INTENSITY_CH1"));
+				radiusColumn.add(spot.getFeature(Spot.RADIUS));
+				contrastColumn.add(spot.getFeature("CONTRAST_CH1"));
+				addIfNotNull(ch1Column, spot.getFeature("MEAN_INTENSITY_CH1"));
+				addIfNotNull(ch2Column, spot.getFeature("MEAN_INTENSITY_CH2"));
+				addIfNotNull(ch3Column, spot.getFeature("MEAN_INTENSITY_CH3"));
 			}
 		}
 
-		/*
-		 * // Get spot collection (all spots) SpotCollection spotCollection =
-		 * model.getSpots(); for (Spot spot : spotCollection.iterable(false)) {
-		 * spotIDlist.add((double) spot.ID()); trackIDlist.add((double)
-		 * spot.ID()); // TODO trackID xList.add(spot.getDoublePosition(0));
-		 * yList.add(spot.getDoublePosition(1));
-		 * zList.add(spot.getDoublePosition(2)); }
-		 */
-
 		// Get results (spot list with trackIDs)
-		spotID = Doubles.toArray(spotIDlist);
-		spotQuality = Doubles.toArray(qualityList);
-		trackID = Doubles.toArray(trackIDlist);
-		frame = Doubles.toArray(frameList);
-		t = Doubles.toArray(tList);
-		x = Doubles.toArray(xList);
-		y = Doubles.toArray(yList);
-		z = Doubles.toArray(zList);
-		totalIntensity = Doubles.toArray(totalIntensityList);
-		meanIntensity = Doubles.toArray(meanIntensityList);
-		radius = Doubles.toArray(radiusList);
-		contrast = Doubles.toArray(contrastList);
-
-		if (!ch1List.isEmpty()) ch1Intensity = Doubles.toArray(ch1List);
-		if (!ch2List.isEmpty()) ch2Intensity = Doubles.toArray(ch2List);
-		if (!ch3List.isEmpty()) ch3Intensity = Doubles.toArray(ch3List);
+		spotID = spotIDColumn.toArray();
+		spotQuality = qualityColumn.toArray();
+		trackID = trackIDColumn.toArray();
+		frame = frameColumn.toArray();
+		t = tColumn.toArray();
+		x = xColumn.toArray();
+		y = yColumn.toArray();
+		z = zColumn.toArray();
+		totalIntensity = totalIntensityColumn.toArray();
+		meanIntensity = meanIntensityColumn.toArray();
+		radius = radiusColumn.toArray();
+		contrast = contrastColumn.toArray();
+
+		if (ch1Column.size() > 0) ch1Intensity = ch1Column.toArray();
+		if (ch2Column.size() > 0) ch2Intensity = ch2Column.toArray();
+		if (ch3Column.size() > 0) ch3Intensity = ch3Column.toArray();
 
 		// Return summary values
 		nSpotsFound = model.getSpots().getNSpots(false);
 		nTracksFound = model.getTrackModel().nTracks(false);
 	}
 
-	private void addIfNotNull(ArrayList<Double> list, Double feature) {
-		list.add(feature != null ? feature : 0.0);		
+	private void addIfNotNull(DoubleColumn column, Double feature) {
+		column.add(feature != null ? feature : 0.0);
 	}
 
 }
@@ -0,0 +1,337 @@
+/*-
+ * #%L
+ * A collection of plugins developed at the FMI Basel.
+ * %%
+ * Copyright (C) 2016 - 2024 FMI Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+package ch.fmi.registration;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Supplier;
+
+import ch.fmi.util.Parallel;
+import mpicbg.models.IllDefinedDataPointsException;
+import mpicbg.models.InvertibleBoundable;
+import mpicbg.models.Model;
+import mpicbg.models.NotEnoughDataPointsException;
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+import mpicbg.models.Tile;
+import mpicbg.models.TileConfiguration;
+import process.ComparePair;
+import process.Matching;
+
+/**
+ * Block-wise global optimization of a long series of prematched point clouds.
+ * <p>
+ * The series is split into blocks of {@code blockSize} frames, adjacent blocks
+ * sharing {@code blockOverlap} frames. Each block builds its own pairs and
+ * tiles and is optimized independently, so only the point matches of the
+ * blocks currently being solved are held in memory, and blocks are solved
+ * concurrently. Each block is then aligned to its predecessor by fitting a
+ * correction model to the points of their shared frames; the first half of
+ * each overlap keeps the models of the earlier block.
+ * </p>
+ */
+public class BlockSolver {
+
+	private final int blockSize;
+	private final int blockOverlap;
+	private final int numThreads;
+	private final Supplier<TileOptimizer> optimizerFactory;
+
+	private double[] flatModels;
+	private double[] modelCosts;
+	private ResidualStatistics residuals;
+	private double[] blockErrors;
+	private int nIterations;
+	private double optimizationTime;
+
+	/**
+	 * @param blockSize
+	 *            number of frames per block
+	 * @param blockOverlap
+	 *            number of frames shared by adjacent blocks, at least 1 and
+	 *            at most {@code blockSize / 2}, so that every frame is shared
+	 *            by at most two blocks
+	 * @param numThreads
+	 *            maximum number of blocks solved concurrently
+	 * @param optimizerFactory
+	 *            creates the optimizer for each block
+	 */
+	public BlockSolver(int blockSize, int blockOverlap, int numThreads, Supplier<TileOptimizer> optimizerFactory) {
+		if (!isValidOverlap(blockSize, blockOverlap)) {
+			throw new IllegalArgumentException("Block overlap must be at least 1 and at most half the block size: "
+					+ blockOverlap + " (block size " + blockSize + ")");
+		}
+		this.blockSize = blockSize;
+		this.blockOverlap = blockOverlap;
+		this.numThreads = numThreads;
+		this.optimizerFactory = optimizerFactory;
+	}
+
+	/**
+	 * @return {@code true} if adjacent blocks of {@code blockSize} frames can
+	 *         share {@code blockOverlap} frames
+	 */
+	public static boolean isValidOverlap(int blockSize, int blockOverlap) {
+		return blockOverlap >= 1 && 2 * blockOverlap <= blockSize;
+	}
+
+	/**
+	 * Register the series block by block.
+	 *
+	 * @param cloud
+	 *            point cloud with track IDs
+	 * @param range
+	 *            maximum distance between the frame numbers of matched frames
+	 * @param model
+	 *            model used for each frame
+	 * @param dim
+	 *            {@link RegUtils#DIM2D} or {@link RegUtils#DIM3D}
+	 * @param initialModels
+	 *            flat models to start from, or {@code null} to pre-align each
+	 *            block
+	 */
+	public void solve(PointCloud cloud, int range, Model<?> model, String dim, double[] initialModels) {
+		long start = System.nanoTime();
+		int[] sortedFrames = cloud.frames();
+		int n = sortedFrames.length;
+		List<TrackIdIndex> trackIdIndices = RegUtils.createTrackIdIndices(cloud);
+		int step = blockSize - blockOverlap;
+		int nBlocks = n <= blockSize ? 1 : 1 + (n - blockSize + step - 1) / step;
+
+		Block[] blocks = new Block[nBlocks];
+		Parallel.forEach(nBlocks, numThreads, b -> {
+			int from = b * step;
+			int to = Math.min(from + blockSize, n);
+			blocks[b] = solveBlock(cloud, trackIdIndices, from, to, range, model, dim, initialModels);
+		});
+
+		flatModels = new double[12 * n];
+		modelCosts = new double[n];
+		residuals = new ResidualStatistics(n);
+		boolean[] connected = new boolean[n];
+		blockErrors = new double[nBlocks];
+		nIterations = 0;
+		double[] correction = new double[12];
+		for (int b = 0; b < nBlocks; b++) {
+			Block block = blocks[b];
+			int keepUntil = block.from;
+			if (b > 0) {
+				int sharedEnd = blocks[b - 1].to;
+				fitCorrection(block, sharedEnd, connected, model, dim, cloud, correction);
+				keepUntil = block.from + (sharedEnd - block.from + 1) / 2;
+			}
+			for (int g = keepUntil; g < block.to; g++) {
+				int i = g - block.from;
+				if (b > 0) {
+					compose(correction, block.flatModels, 12 * i, flatModels, 12 * g);
+				} else {
+					System.arraycopy(block.flatModels, 12 * i, flatModels, 12 * g, 12);
+				}
+				modelCosts[g] = block.costs[i];
+				residuals.set(g, block.residuals, i);
+				connected[g] = block.connected[i];
+			}
+			blockErrors[b] = block.error;
+			nIterations += block.iterations;
+		}
+
+		// frames without matches get the model of the preceding frame
+		for (int g = 1; g < n; g++) {
+			if (!connected[g]) {
+				System.arraycopy(flatModels, 12 * (g - 1), flatModels, 12 * g, 12);
+			}
+		}
+		optimizationTime = (System.nanoTime() - start) / 1e6;
+	}
+
+	/**
+	 * @return row-major 3x4 matrix per frame
+	 */
+	public double[] getFlatModels() {
+		return flatModels;
+	}
+
+	/**
+	 * @return cost per frame, or 0.0 for frames without matches
+	 */
+	public double[] getModelCosts() {
+		return modelCosts;
+	}
+
+	/**
+	 * @return residual statistics per frame, computed within each block
+	 */
+	public ResidualStatistics getResiduals() {
+		return residuals;
+	}
+
+	/**
+	 * @return final mean error of each block
+	 */
+	public double[] getBlockErrors() {
+		return blockErrors;
+	}
+
+	/**
+	 * @return total number of iterations over all blocks
+	 */
+	public int getIterations() {
+		return nIterations;
+	}
+
+	/**
+	 * @return wall time of the last call to {@link #solve} in milliseconds
+	 */
+	public double getOptimizationTime() {
+		return optimizationTime;
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private Block solveBlock(PointCloud cloud, List<TrackIdIndex> trackIdIndices, int from, int to, int range,
+			Model<?> model, String dim, double[] initialModels) {
+		List<ComparePair> pairs = RegUtils.getComparePairs(Arrays.copyOfRange(cloud.frames(), from, to), range,
+				model);
+		RegUtils.populateComparePairs(pairs, cloud, trackIdIndices, from, 1);
+
+		final List<Tile<?>> tiles = new ArrayList<>(to - from);
+		for (int t = from; t < to; t++) {
+			tiles.add(new Tile(model.copy()));
+		}
+		for (final ComparePair pair : pairs) {
+			Matching.addPointMatches(pair.inliers, tiles.get(pair.indexA), tiles.get(pair.indexB));
+		}
+
+		final TileConfiguration tc = new TileConfiguration();
+		boolean fixed = false;
+		for (Tile<?> t : tiles) {
+			if (t.getConnectedTiles().size() > 0) {
+				tc.addTile(t);
+				if (!fixed) {
+					tc.fixTile(t);
+					fixed = true;
+				}
+			}
+		}
+
+		Block block = new Block(from, to);
+		if (!tc.getTiles().isEmpty()) {
+			TileOptimizer optimizer = optimizerFactory.get();
+			if (initialModels != null) {
+				TileOptimizer.initializeModels(tiles, Arrays.copyOfRange(initialModels, 12 * from, 12 * to), dim);
+			}
+			optimizer.optimize(tc, initialModels == null);
+			double[] errors = optimizer.getIterationErrors();
+			block.iterations = errors.length;
+			block.error = errors.length > 0 ? errors[errors.length - 1] : 0.0;
+		}
+
+		double[] tmp = new double[12];
+		InvertibleBoundable lastModel = null;
+		for (int t = 0; t < tiles.size(); t++) {
+			Tile<?> tile = tiles.get(t);
+			block.connected[t] = tile.getConnectedTiles().size() > 0;
+			if (block.connected[t] || lastModel == null) {
+				lastModel = (InvertibleBoundable) tile.getModel();
+			}
+			block.costs[t] = block.connected[t] ? tile.getCost() : 0.0;
+			block.residuals.set(t, tile);
+			RegUtils.flattenModel(lastModel, dim, tmp, block.flatModels, 12 * t);
+		}
+		return block;
+	}
+
+	/**
+	 * Fit {@code model} to map the points of the frames shared with the
+	 * previous block from this block's coordinates into the already stitched
+	 * coordinates. Falls back to identity if there are too few points.
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private void fitCorrection(Block block, int sharedEnd, boolean[] connected, Model<?> model, String dim,
+			PointCloud cloud, double[] correction) {
+		int nDim = cloud.numDimensions();
+		List<PointMatch> matches = new ArrayList<>();
+		double[] position = new double[3];
+		for (int g = block.from; g < sharedEnd; g++) {
+			if (!connected[g] || !block.connected[g - block.from]) {
+				continue;
+			}
+			for (int i = cloud.start(g); i < cloud.end(g); i++) {
+				cloud.localize(i, position);
+				matches.add(new PointMatch(
+						new Point(apply(block.flatModels, 12 * (g - block.from), position, nDim)),
+						new Point(apply(flatModels, 12 * g, position, nDim)), cloud.weight(i)));
+			}
+		}
+
+		Model correctionModel = model.copy();
+		try {
+			correctionModel.fit(matches);
+			RegUtils.flattenModel((InvertibleBoundable) correctionModel, dim, new double[12], correction, 0);
+		}
+		catch (NotEnoughDataPointsException | IllDefinedDataPointsException exc) {
+			Arrays.fill(correction, 0.0);
+			correction[0] = correction[5] = correction[10] = 1.0;
+		}
+	}
+
+	private static double[] apply(double[] m, int o, double[] position, int nDim) {
+		double[] result = new double[nDim];
+		for (int r = 0; r < nDim; r++) {
+			result[r] = m[o + 4 * r] * position[0] + m[o + 4 * r + 1] * position[1]
+					+ m[o + 4 * r + 2] * position[2] + m[o + 4 * r + 3];
+		}
+		return result;
+	}
+
+	/**
+	 * Concatenate two row-major 3x4 matrices: target = a * b.
+	 */
+	private static void compose(double[] a, double[] b, int bo, double[] target, int to) {
+		for (int r = 0; r < 3; r++) {
+			for (int c = 0; c < 4; c++) {
+				double value = a[4 * r] * b[bo + c] + a[4 * r + 1] * b[bo + 4 + c] + a[4 * r + 2] * b[bo + 8 + c];
+				target[to + 4 * r + c] = c == 3 ? value + a[4 * r + 3] : value;
+			}
+		}
+	}
+
+	private static class Block {
+		final int from;
+		final int to;
+		final double[] flatModels;
+		final double[] costs;
+		final boolean[] connected;
+		final ResidualStatistics residuals;
+		int iterations = 0;
+		double error = 0.0;
+
+		Block(int from, int to) {
+			this.from = from;
+			this.to = to;
+			this.flatModels = new double[12 * (to - from)];
+			this.costs = new double[to - from];
+			this.connected = new boolean[to - from];
+			this.residuals = new ResidualStatistics(to - from);
+		}
+	}
+}
@@ -0,0 +1,349 @@
+/*-
+ * #%L
+ * A collection of plugins developed at the FMI Basel.
+ * %%
+ * Copyright (C) 2016 - 2024 FMI Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+package ch.fmi.registration;
+
+import Jama.EigenvalueDecomposition;
+import Jama.Matrix;
+import mpicbg.models.IllDefinedDataPointsException;
+import mpicbg.models.NotEnoughDataPointsException;
+
+/**
+ * Closed-form least-squares fit of translation, rigid, similarity and affine
+ * models to streamed point correspondences {@code p1 -> p2}.
+ * <p>
+ * Only weighted sums and the 3x3 cross-covariance are accumulated, so fitting
+ * any number of correspondences takes constant memory and no per-point
+ * objects. Rotations are estimated with Horn's quaternion method (the
+ * eigenvector of the largest eigenvalue of a symmetric 4x4 matrix built from
+ * the cross-covariance) in 3D, and from the angle of the cross-covariance in
+ * 2D. The similarity scale matches the mpicbg models: the least-squares scale
+ * in 2D, and Horn's symmetric scale {@code sqrt(sum |q|^2 / sum |p|^2)} of the
+ * centered coordinates in 3D. Coordinates are
+ * accumulated relative to the first correspondence to avoid cancellation for
+ * large coordinates.
+ * </p>
+ */
+public class ClosedFormFitter {
+
+	private final boolean is3D;
+	private final String transformType;
+
+	private long count;
+	private double weightSum;
+	// first correspondence, subtracted from all coordinates
+	private final double[] origin1 = new double[3];
+	private final double[] origin2 = new double[3];
+	// weighted sums of the shifted coordinates
+	private final double[] sum1 = new double[3];
+	private final double[] sum2 = new double[3];
+	// weighted sums of p1[i] * p2[j] and p1[i] * p1[j]
+	private final double[][] sum12 = new double[3][3];
+	private final double[][] sum11 = new double[3][3];
+	// weighted sum of |p2|^2
+	private double sum22;
+
+	/**
+	 * @param dim
+	 *            {@link RegUtils#DIM2D} or {@link RegUtils#DIM3D}
+	 * @param transformType
+	 *            one of the transformation types of {@link RegUtils}
+	 */
+	public ClosedFormFitter(String dim, String transformType) {
+		switch (transformType) {
+		case RegUtils.TRANSLATION:
+		case RegUtils.RIGID:
+		case RegUtils.SIMILARITY:
+		case RegUtils.AFFINE:
+			break;
+		default:
+			throw new IllegalArgumentException("Unsupported transformation type: " + transformType);
+		}
+		this.is3D = !dim.equals(RegUtils.DIM2D);
+		this.transformType = transformType;
+	}
+
+	/**
+	 * @return the number of correspondences added
+	 */
+	public long size() {
+		return count;
+	}
+
+	public void reset() {
+		count = 0;
+		weightSum = 0;
+		sum22 = 0;
+		for (int i = 0; i < 3; i++) {
+			sum1[i] = 0;
+			sum2[i] = 0;
+			for (int j = 0; j < 3; j++) {
+				sum12[i][j] = 0;
+				sum11[i][j] = 0;
+			}
+		}
+	}
+
+	public void add(double x1, double y1, double z1, double x2, double y2, double z2) {
+		add(x1, y1, z1, x2, y2, z2, 1.0);
+	}
+
+	/**
+	 * Add one correspondence. {@code z1} and {@code z2} are ignored in 2D.
+	 */
+	public void add(double x1, double y1, double z1, double x2, double y2, double z2, double weight) {
+		if (!is3D) {
+			z1 = 0;
+			z2 = 0;
+		}
+		if (count == 0) {
+			origin1[0] = x1;
+			origin1[1] = y1;
+			origin1[2] = z1;
+			origin2[0] = x2;
+			origin2[1] = y2;
+			origin2[2] = z2;
+		}
+		count++;
+		double px = x1 - origin1[0], py = y1 - origin1[1], pz = z1 - origin1[2];
+		double qx = x2 - origin2[0], qy = y2 - origin2[1], qz = z2 - origin2[2];
+		weightSum += weight;
+		accumulate(0, weight * px, px, py, pz, qx, qy, qz);
+		accumulate(1, weight * py, px, py, pz, qx, qy, qz);
+		accumulate(2, weight * pz, px, py, pz, qx, qy, qz);
+		sum2[0] += weight * qx;
+		sum2[1] += weight * qy;
+		sum2[2] += weight * qz;
+		sum22 += weight * (qx * qx + qy * qy + qz * qz);
+	}
+
+	private void accumulate(int i, double wp, double px, double py, double pz, double qx, double qy, double qz) {
+		sum1[i] += wp;
+		sum12[i][0] += wp * qx;
+		sum12[i][1] += wp * qy;
+		sum12[i][2] += wp * qz;
+		sum11[i][0] += wp * px;
+		sum11[i][1] += wp * py;
+		sum11[i][2] += wp * pz;
+	}
+
+	/**
+	 * Add all correspondences of the given columns. {@code z1} and {@code z2}
+	 * may be {@code null} in 2D.
+	 */
+	public void addAll(double[] x1, double[] y1, double[] z1, double[] x2, double[] y2, double[] z2) {
+		addAll(x1, y1, z1, x2, y2, z2, null);
+	}
+
+	/**
+	 * Add all correspondences of the given columns. {@code z1} and {@code z2}
+	 * may be {@code null} in 2D, {@code weights} may be {@code null} for unit
+	 * weights.
+	 */
+	public void addAll(double[] x1, double[] y1, double[] z1, double[] x2, double[] y2, double[] z2,
+			double[] weights) {
+		for (int i = 0; i < x1.length; i++) {
+			add(x1[i], y1[i], is3D ? z1[i] : 0, x2[i], y2[i], is3D ? z2[i] : 0, weights == null ? 1.0 : weights[i]);
+		}
+	}
+
+	/**
+	 * @return the fitted model as row-major 3x4 matrix
+	 */
+	public double[] fit() {
+		double[] target = new double[12];
+		fit(target, 0);
+		return target;
+	}
+
+	/**
+	 * Fit the model to all correspondences added so far.
+	 *
+	 * @param target
+	 *            receives the model as row-major 3x4 matrix
+	 * @param offset
+	 *            index of the first matrix element
+	 */
+	public void fit(double[] target, int offset) {
+		int d = is3D ? 3 : 2;
+		int minNumMatches = minNumMatches(d);
+		if (count < minNumMatches || !(weightSum > 0)) {
+			throw new RuntimeException("Not enough data points.", new NotEnoughDataPointsException(
+					count + " data points are not enough to estimate a " + d + "d " + transformType + " model."));
+		}
+
+		// centroids and centered (co)variances of the shifted coordinates
+		double[] c1 = new double[3];
+		double[] c2 = new double[3];
+		for (int i = 0; i < 3; i++) {
+			c1[i] = sum1[i] / weightSum;
+			c2[i] = sum2[i] / weightSum;
+		}
+		double[][] m = new double[3][3];
+		double[][] v = new double[3][3];
+		for (int i = 0; i < 3; i++) {
+			for (int j = 0; j < 3; j++) {
+				m[i][j] = sum12[i][j] - weightSum * c1[i] * c2[j];
+				v[i][j] = sum11[i][j] - weightSum * c1[i] * c1[j];
+			}
+		}
+
+		double[][] a;
+		switch (transformType) {
+		case RegUtils.TRANSLATION:
+			a = identity();
+			break;
+		case RegUtils.RIGID:
+			a = is3D ? rotation3D(m) : rotation2D(m);
+			break;
+		case RegUtils.SIMILARITY:
+			a = is3D ? rotation3D(m) : rotation2D(m);
+			scale(a, m, v, sum22 - weightSum * (c2[0] * c2[0] + c2[1] * c2[1] + c2[2] * c2[2]));
+			break;
+		case RegUtils.AFFINE:
+		default:
+			a = linear(m, v, d);
+			break;
+		}
+
+		// t = o2 + c2 - A (o1 + c1)
+		for (int i = 0; i < 3; i++) {
+			double t = origin2[i] + c2[i];
+			for (int j = 0; j < 3; j++) {
+				t -= a[i][j] * (origin1[j] + c1[j]);
+				target[offset + 4 * i + j] = a[i][j];
+			}
+			target[offset + 4 * i + 3] = t;
+		}
+	}
+
+	private int minNumMatches(int d) {
+		switch (transformType) {
+		case RegUtils.TRANSLATION:
+			return 1;
+		case RegUtils.RIGID:
+		case RegUtils.SIMILARITY:
+			return d;
+		case RegUtils.AFFINE:
+		default:
+			return d + 1;
+		}
+	}
+
+	private static double[][] identity() {
+		return new double[][] { { 1, 0, 0 }, { 0, 1, 0 }, { 0, 0, 1 } };
+	}
+
+	private static double[][] rotation2D(double[][] m) {
+		double angle = Math.atan2(m[0][1] - m[1][0], m[0][0] + m[1][1]);
+		double cos = Math.cos(angle);
+		double sin = Math.sin(angle);
+		return new double[][] { { cos, -sin, 0 }, { sin, cos, 0 }, { 0, 0, 1 } };
+	}
+
+	/**
+	 * Horn's closed-form rotation from the cross-covariance
+	 * {@code m[i][j] = sum p1[i] p2[j]}.
+	 */
+	private static double[][] rotation3D(double[][] m) {
+		double sxx = m[0][0], sxy = m[0][1], sxz = m[0][2];
+		double syx = m[1][0], syy = m[1][1], syz = m[1][2];
+		double szx = m[2][0], szy = m[2][1], szz = m[2][2];
+		double[][] n = { //
+				{ sxx + syy + szz, syz - szy, szx - sxz, sxy - syx }, //
+				{ syz - szy, sxx - syy - szz, sxy + syx, szx + sxz }, //
+				{ szx - sxz, sxy + syx, -sxx + syy - szz, syz + szy }, //
+				{ sxy - syx, szx + sxz, syz + szy, -sxx - syy + szz } };
+		EigenvalueDecomposition eigen = new Matrix(n).eig();
+		double[] values = eigen.getRealEigenvalues();
+		int max = 0;
+		for (int i = 1; i < 4; i++) {
+			if (values[i] > values[max]) {
+				max = i;
+			}
+		}
+		Matrix vectors = eigen.getV();
+		double q0 = vectors.get(0, max), qx = vectors.get(1, max);
+		double qy = vectors.get(2, max), qz = vectors.get(3, max);
+		return new double[][] { //
+				{ q0 * q0 + qx * qx - qy * qy - qz * qz, 2 * (qx * qy - q0 * qz), 2 * (qx * qz + q0 * qy) }, //
+				{ 2 * (qy * qx + q0 * qz), q0 * q0 - qx * qx + qy * qy - qz * qz, 2 * (qy * qz - q0 * qx) }, //
+				{ 2 * (qz * qx - q0 * qy), 2 * (qz * qy + q0 * qx), q0 * q0 - qx * qx - qy * qy + qz * qz } };
+	}
+
+	/**
+	 * Scale the rotation {@code r} like the mpicbg similarity models: by
+	 * {@code sum(p2 . R p1) / sum(|p1|^2)} in 2D, and by
+	 * {@code sqrt(sum(|p2|^2) / sum(|p1|^2))} in 3D.
+	 *
+	 * @param var2
+	 *            centered {@code sum(|p2|^2)}
+	 */
+	private void scale(double[][] r, double[][] m, double[][] v, double var2) {
+		double numerator = 0;
+		double denominator = 0;
+		int d = is3D ? 3 : 2;
+		for (int i = 0; i < d; i++) {
+			for (int j = 0; j < d; j++) {
+				numerator += r[i][j] * m[j][i];
+			}
+			denominator += v[i][i];
+		}
+		if (!(denominator > 0)) {
+			throw new RuntimeException("Ill-defined data points.",
+					new IllDefinedDataPointsException("All data points coincide."));
+		}
+		double s = is3D ? Math.sqrt(Math.max(var2, 0) / denominator) : numerator / denominator;
+		for (int i = 0; i < d; i++) {
+			for (int j = 0; j < d; j++) {
+				r[i][j] *= s;
+			}
+		}
+	}
+
+	/**
+	 * Linear part of the affine least-squares fit, solving
+	 * {@code A V = M^T}.
+	 */
+	private static double[][] linear(double[][] m, double[][] v, int d) {
+		Matrix cov = new Matrix(d, d);
+		Matrix cross = new Matrix(d, d);
+		for (int i = 0; i < d; i++) {
+			for (int j = 0; j < d; j++) {
+				cov.set(i, j, v[i][j]);
+				cross.set(i, j, m[i][j]);
+			}
+		}
+		if (!(Math.abs(cov.det()) > 1e-12 * Math.pow(cov.normF(), d))) {
+			throw new RuntimeException("Ill-defined data points.",
+					new IllDefinedDataPointsException("Data points are collinear or coplanar."));
+		}
+		// V is symmetric, so A = (V^-1 M)^T
+		Matrix solution = cov.solve(cross).transpose();
+		double[][] a = identity();
+		for (int i = 0; i < d; i++) {
+			for (int j = 0; j < d; j++) {
+				a[i][j] = solution.get(i, j);
+			}
+		}
+		return a;
+	}
+}
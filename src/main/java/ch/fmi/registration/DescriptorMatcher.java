@@ -0,0 +1,284 @@
+/*-
+ * #%L
+ * A collection of plugins developed at the FMI Basel.
+ * %%
+ * Copyright (C) 2016 - 2024 FMI Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+package ch.fmi.registration;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import ch.fmi.util.Parallel;
+import mpicbg.models.Model;
+import mpicbg.models.NotEnoughDataPointsException;
+import mpicbg.models.PointMatch;
+import net.imglib2.KDTree;
+import net.imglib2.RealPoint;
+import net.imglib2.neighborsearch.KNearestNeighborSearchOnKDTree;
+import process.ComparePair;
+
+/**
+ * Geometric descriptor matching between the frames of a {@link PointCloud}.
+ * <p>
+ * Each point is described by the offset vectors to {@code numNeighbors} of its
+ * {@code numNeighbors + redundancy} nearest neighbors, for every such subset,
+ * so a few missing or spurious neighbors do not prevent a match. Neighbors and
+ * matching descriptors are looked up in {@link KDTree}s. As with
+ * {@code similarOrientation} of the descriptor-based registration plugin, the
+ * descriptors are translation- but not rotation-invariant. Descriptors are
+ * computed once per frame and shared by all pairs of that frame. Candidate
+ * matches pass a ratio test between the best and second-best matching point
+ * and are filtered with RANSAC. Frames and pairs are processed on up to
+ * {@code numThreads} threads.
+ * </p>
+ */
+public class DescriptorMatcher {
+
+	private final int numNeighbors;
+	private final int redundancy;
+	private final double significance;
+	private final double ransacThreshold;
+	private int ransacIterations = 1000;
+	private double minInlierRatio = 0.05;
+	private int numThreads = 1;
+
+	/**
+	 * @param numNeighbors
+	 *            number of neighbors per descriptor
+	 * @param redundancy
+	 *            number of additional nearest neighbors to choose the
+	 *            descriptor neighbors from
+	 * @param significance
+	 *            minimum ratio of the second-best to the best descriptor
+	 *            distance
+	 * @param ransacThreshold
+	 *            maximum displacement of a RANSAC inlier
+	 */
+	public DescriptorMatcher(int numNeighbors, int redundancy, double significance, double ransacThreshold) {
+		if (numNeighbors < 1 || redundancy < 0) {
+			throw new IllegalArgumentException(
+					"Invalid number of neighbors or redundancy: " + numNeighbors + ", " + redundancy);
+		}
+		this.numNeighbors = numNeighbors;
+		this.redundancy = redundancy;
+		this.significance = significance;
+		this.ransacThreshold = ransacThreshold;
+	}
+
+	public void setRansacIterations(int ransacIterations) {
+		this.ransacIterations = ransacIterations;
+	}
+
+	public void setMinInlierRatio(double minInlierRatio) {
+		this.minInlierRatio = minInlierRatio;
+	}
+
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
+
+	/**
+	 * Match all pairs of frames that are at most {@code range} frames apart.
+	 *
+	 * @param cloud
+	 *            point clouds to match
+	 * @param range
+	 *            maximum distance between the frame numbers of a pair
+	 * @param model
+	 *            model to be copied into each pair and used for RANSAC
+	 * @return pairs with their RANSAC inliers, ordered by first and then second
+	 *         frame index
+	 */
+	public List<ComparePair> match(PointCloud cloud, int range, Model<?> model) {
+		int nFrames = cloud.numFrames();
+		Descriptors[] descriptors = new Descriptors[nFrames];
+		Parallel.forEach(nFrames, numThreads, f -> descriptors[f] = describe(cloud, f));
+
+		List<ComparePair> pairs = RegUtils.getComparePairs(cloud.frames(), range, model);
+		Parallel.forEach(pairs.size(), numThreads, i -> {
+			ComparePair pair = pairs.get(i);
+			matchPair(pair, cloud, descriptors[pair.indexA], descriptors[pair.indexB]);
+		});
+		return pairs;
+	}
+
+	/**
+	 * Compute the descriptors of all points of frame index {@code f}.
+	 */
+	Descriptors describe(PointCloud cloud, int f) {
+		int nDim = cloud.numDimensions();
+		int start = cloud.start(f);
+		int n = cloud.end(f) - start;
+		int m = Math.min(numNeighbors + redundancy, n - 1);
+		if (m < numNeighbors) {
+			return new Descriptors(new int[0], new double[0], numNeighbors * nDim, 1);
+		}
+
+		int[][] subsets = combinations(m, numNeighbors);
+		int length = numNeighbors * nDim;
+		int[] points = new int[n * subsets.length];
+		double[] values = new double[points.length * length];
+
+		int[] neighbors = NeighborSearch.kdTreeNeighbors(cloud, f, m);
+		double[] p = new double[nDim];
+		double[] q = new double[nDim];
+		double[] offsets = new double[m * nDim];
+		int d = 0;
+		for (int i = 0; i < n; i++) {
+			cloud.localize(start + i, p);
+			for (int k = 0; k < m; k++) {
+				cloud.localize(neighbors[i * m + k], q);
+				for (int dd = 0; dd < nDim; dd++) {
+					offsets[k * nDim + dd] = q[dd] - p[dd];
+				}
+			}
+			for (int[] subset : subsets) {
+				points[d] = start + i;
+				for (int k = 0; k < subset.length; k++) {
+					System.arraycopy(offsets, subset[k] * nDim, values, d * length + k * nDim, nDim);
+				}
+				d++;
+			}
+		}
+		return new Descriptors(points, values, length, subsets.length);
+	}
+
+	/**
+	 * Add the RANSAC inliers among the descriptor matches of two frames to
+	 * {@code pair.inliers}.
+	 */
+	void matchPair(ComparePair pair, PointCloud cloud, Descriptors a, Descriptors b) {
+		if (a.size() == 0 || b.size() == 0) {
+			return;
+		}
+		// one point has at most perPoint descriptors, so perPoint + 1
+		// neighbors include at least two different points if there are any
+		int k = Math.min(b.perPoint + 1, b.size());
+		KNearestNeighborSearchOnKDTree<Integer> search = new KNearestNeighborSearchOnKDTree<>(b.tree(), k);
+		RealPoint query = new RealPoint(a.length);
+		ArrayList<PointMatch> candidates = new ArrayList<>();
+		Set<Long> matched = new HashSet<>();
+		double minRatio = significance * significance;
+		for (int i = 0; i < a.size(); i++) {
+			for (int d = 0; d < a.length; d++) {
+				query.setPosition(a.values[i * a.length + d], d);
+			}
+			search.search(query);
+			int bestPoint = b.points[search.getSampler(0).get()];
+			double best = search.getSquareDistance(0);
+			double second = Double.MAX_VALUE;
+			for (int j = 1; j < k; j++) {
+				if (b.points[search.getSampler(j).get()] != bestPoint) {
+					second = search.getSquareDistance(j);
+					break;
+				}
+			}
+			if (second <= minRatio * best) {
+				continue;
+			}
+			if (matched.add(((long) a.points[i] << 32) | bestPoint)) {
+				candidates.add(cloud.match(a.points[i], cloud, bestPoint));
+			}
+		}
+
+		ArrayList<PointMatch> inliers = new ArrayList<>();
+		try {
+			if (pair.model.filterRansac(candidates, inliers, ransacIterations, ransacThreshold, minInlierRatio)) {
+				pair.inliers.addAll(inliers);
+			}
+		}
+		catch (NotEnoughDataPointsException exc) {
+			// too few candidates: leave the pair unmatched
+		}
+	}
+
+	/**
+	 * @return all subsets of size {@code k} of {@code [0, m)}, each in
+	 *         ascending order
+	 */
+	static int[][] combinations(int m, int k) {
+		List<int[]> subsets = new ArrayList<>();
+		int[] subset = new int[k];
+		for (int i = 0; i < k; i++) {
+			subset[i] = i;
+		}
+		while (true) {
+			subsets.add(subset.clone());
+			int i = k - 1;
+			while (i >= 0 && subset[i] == m - k + i) {
+				i--;
+			}
+			if (i < 0) {
+				return subsets.toArray(new int[0][]);
+			}
+			subset[i]++;
+			for (int j = i + 1; j < k; j++) {
+				subset[j] = subset[j - 1] + 1;
+			}
+		}
+	}
+
+	/**
+	 * Flat descriptors of one frame: descriptor {@code i} belongs to point
+	 * {@code points[i]} and occupies {@code values[i * length ... (i + 1) *
+	 * length)}.
+	 */
+	static class Descriptors {
+		final int[] points;
+		final double[] values;
+		final int length;
+		final int perPoint;
+		private KDTree<Integer> tree;
+
+		Descriptors(int[] points, double[] values, int length, int perPoint) {
+			this.points = points;
+			this.values = values;
+			this.length = length;
+			this.perPoint = perPoint;
+		}
+
+		int size() {
+			return points.length;
+		}
+
+		double[] descriptor(int i) {
+			return Arrays.copyOfRange(values, i * length, (i + 1) * length);
+		}
+
+		/**
+		 * @return a {@link KDTree} over all descriptors, with the descriptor
+		 *         indices as values
+		 */
+		synchronized KDTree<Integer> tree() {
+			if (tree == null) {
+				List<Integer> indices = new ArrayList<>(size());
+				List<RealPoint> positions = new ArrayList<>(size());
+				for (int i = 0; i < size(); i++) {
+					indices.add(i);
+					positions.add(RealPoint.wrap(descriptor(i)));
+				}
+				tree = new KDTree<>(indices, positions);
+			}
+			return tree;
+		}
+	}
+}
@@ -0,0 +1,111 @@
+/*-
+ * #%L
+ * A collection of plugins developed at the FMI Basel.
+ * %%
+ * Copyright (C) 2016 - 2024 FMI Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+package ch.fmi.registration;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Primitive lookup from frame numbers to their position in a sorted array of
+ * unique frame numbers.
+ * <p>
+ * Uses a dense offset table if the frame numbers are (nearly) contiguous, and a
+ * binary search on the sorted frames otherwise, so lookups never box and never
+ * scan the whole frame list.
+ * </p>
+ */
+public class FrameIndex {
+
+	// maximum ratio of frame span to number of frames for the dense table
+	private static final int MAX_DENSE_RATIO = 4;
+
+	private final int[] frames;
+	private final int min;
+	private final int[] offsets;
+
+	public FrameIndex(int[] sortedUniqueFrames) {
+		frames = sortedUniqueFrames;
+		if (frames.length == 0) {
+			min = 0;
+			offsets = null;
+			return;
+		}
+		min = frames[0];
+		long span = (long) frames[frames.length - 1] - min + 1;
+		if (span <= (long) MAX_DENSE_RATIO * frames.length) {
+			offsets = new int[(int) span];
+			Arrays.fill(offsets, -1);
+			for (int i = 0; i < frames.length; i++) {
+				offsets[frames[i] - min] = i;
+			}
+		} else {
+			offsets = null;
+		}
+	}
+
+	public FrameIndex(List<Integer> sortedUniqueFrames) {
+		this(sortedUniqueFrames.stream().mapToInt(Integer::intValue).toArray());
+	}
+
+	/**
+	 * @return the number of unique frames
+	 */
+	public int size() {
+		return frames.length;
+	}
+
+	/**
+	 * @param frame
+	 *            a frame number
+	 * @return the index of {@code frame} in the sorted unique frames, or -1 if
+	 *         the frame is not contained
+	 */
+	public int indexOf(int frame) {
+		if (offsets != null) {
+			long offset = (long) frame - min;
+			return (offset < 0 || offset >= offsets.length) ? -1 : offsets[(int) offset];
+		}
+		int index = Arrays.binarySearch(frames, frame);
+		return index < 0 ? -1 : index;
+	}
+
+	/**
+	 * Look up the frame index of every entry of {@code frameNumbers}.
+	 *
+	 * @param frameNumbers
+	 *            frame number per point
+	 * @return frame index per point
+	 * @throws IllegalArgumentException
+	 *             if a frame number is not contained in this index
+	 */
+	public int[] indicesOf(int[] frameNumbers) {
+		int[] indices = new int[frameNumbers.length];
+		for (int i = 0; i < frameNumbers.length; i++) {
+			int index = indexOf(frameNumbers[i]);
+			if (index < 0) {
+				throw new IllegalArgumentException("Frame " + frameNumbers[i] + " is not contained in the frame list.");
+			}
+			indices[i] = index;
+		}
+		return indices;
+	}
+}
@@ -0,0 +1,249 @@
+/*-
+ * #%L
+ * A collection of plugins developed at the FMI Basel.
+ * %%
+ * Copyright (C) 2016 - 2024 FMI Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+package ch.fmi.registration;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import mpicbg.models.InvertibleBoundable;
+import mpicbg.models.Model;
+import mpicbg.models.PointMatch;
+import mpicbg.models.Tile;
+import mpicbg.models.TileConfiguration;
+import process.Matching;
+
+/**
+ * Registration of a growing series of prematched point clouds.
+ * <p>
+ * Tiles, point matches and optimized models are kept between calls to
+ * {@link #addFrames}. Newly appended frames are matched against the frames
+ * within {@code range}, initialized with the model of the preceding frame, and
+ * only the most recent {@code window} tiles are optimized, while their
+ * connected tiles outside the window are kept fixed. The cost per call
+ * therefore depends on the window size rather than on the length of the
+ * series.
+ * </p>
+ */
+public class IncrementalRegistration {
+
+	private final String dim;
+	private final Model<?> model;
+	private final int range;
+	private final int window;
+
+	private int[] frames = new int[0];
+	// point cloud and frame index within that cloud, per registered frame
+	private final List<PointCloud> clouds = new ArrayList<>();
+	private int[] cloudFrames = new int[0];
+	private final List<TrackIdIndex> trackIdIndices = new ArrayList<>();
+	private final List<Tile<?>> tiles = new ArrayList<>();
+	private Tile<?> referenceTile = null;
+	private TileOptimizer optimizer = new TileOptimizer();
+
+	/**
+	 * @param dim
+	 *            {@link RegUtils#DIM2D} or {@link RegUtils#DIM3D}
+	 * @param model
+	 *            model used for each frame, see
+	 *            {@link RegUtils#suitableModel(String, String)}
+	 * @param range
+	 *            maximum distance between the frame numbers of matched frames
+	 * @param window
+	 *            number of most recent frames optimized per call
+	 */
+	public IncrementalRegistration(String dim, Model<?> model, int range, int window) {
+		if (window < 1) {
+			throw new IllegalArgumentException("Window must contain at least one frame: " + window);
+		}
+		this.dim = dim;
+		this.model = model;
+		this.range = range;
+		this.window = window;
+	}
+
+	/**
+	 * Append frames to the series and re-optimize the most recent tiles.
+	 *
+	 * @param frameNumbers
+	 *            frame number per point; all frames must be later than the
+	 *            frames already added
+	 * @param x
+	 *            x coordinate per point
+	 * @param y
+	 *            y coordinate per point
+	 * @param z
+	 *            z coordinate per point, or {@code null} for 2D
+	 * @param trackIDs
+	 *            track ID per point
+	 */
+	public void addFrames(int[] frameNumbers, double[] x, double[] y, double[] z, int[] trackIDs) {
+		if (!(frameNumbers.length == x.length && frameNumbers.length == y.length
+				&& frameNumbers.length == trackIDs.length && (z == null || frameNumbers.length == z.length))) {
+			throw new IllegalArgumentException("All input vectors have to be same length.");
+		}
+		if (frameNumbers.length == 0) {
+			return;
+		}
+		PointCloud cloud = PointCloud.fromArrays(frameNumbers, x, y, dim.equals(RegUtils.DIM3D) ? z : null,
+				trackIDs);
+		int[] newFrames = cloud.frames();
+		if (frames.length > 0 && newFrames[0] <= frames[frames.length - 1]) {
+			throw new IllegalArgumentException("Frame " + newFrames[0] + " is not after the last registered frame "
+					+ frames[frames.length - 1] + ".");
+		}
+
+		int firstNew = frames.length;
+		frames = Arrays.copyOf(frames, firstNew + newFrames.length);
+		cloudFrames = Arrays.copyOf(cloudFrames, firstNew + newFrames.length);
+		for (int f = 0; f < newFrames.length; f++) {
+			frames[firstNew + f] = newFrames[f];
+			cloudFrames[firstNew + f] = f;
+			clouds.add(cloud);
+		}
+		trackIdIndices.addAll(RegUtils.createTrackIdIndices(cloud));
+
+		// match each new frame against all earlier frames within range
+		int firstMatched = firstNew;
+		for (int b = firstNew; b < frames.length; b++) {
+			Tile<?> tile = createTile();
+			tiles.add(tile);
+			for (int a = b - 1; a >= 0 && (long) frames[b] - frames[a] <= range; a--) {
+				ArrayList<PointMatch> matches = new ArrayList<>();
+				RegUtils.addCorrespondingPoints(matches, clouds.get(a), cloudFrames[a], trackIdIndices.get(a),
+						clouds.get(b), cloudFrames[b], trackIdIndices.get(b));
+				if (!matches.isEmpty()) {
+					Matching.addPointMatches(matches, tiles.get(a), tile);
+					firstMatched = Math.min(firstMatched, a);
+				}
+			}
+			// warm start from the preceding frame
+			if (b > 0) {
+				setModel(tile, tiles.get(b - 1));
+			}
+		}
+		// bring the world coordinates of all new point matches up to date
+		for (int t = firstMatched; t < tiles.size(); t++) {
+			tiles.get(t).apply();
+		}
+
+		boolean initial = firstNew == 0;
+		optimize(initial ? 0 : Math.max(0, tiles.size() - window), initial);
+	}
+
+	/**
+	 * @param optimizer
+	 *            optimizer used for subsequent calls to {@link #addFrames}
+	 */
+	public void setOptimizer(TileOptimizer optimizer) {
+		this.optimizer = optimizer;
+	}
+
+	/**
+	 * @return optimizer used for the last call to {@link #addFrames}, holding
+	 *         its convergence statistics
+	 */
+	public TileOptimizer getOptimizer() {
+		return optimizer;
+	}
+
+	/**
+	 * @return sorted frame numbers of all registered frames
+	 */
+	public int[] getFrames() {
+		return frames.clone();
+	}
+
+	/**
+	 * @return the current model of each frame as row-major 3x4 matrix; frames
+	 *         without matches get the model of the preceding frame
+	 */
+	public double[] getFlatModels() {
+		double[] flatModels = new double[12 * tiles.size()];
+		double[] tmp = new double[12];
+		InvertibleBoundable lastModel = null;
+		for (int t = 0; t < tiles.size(); t++) {
+			Tile<?> tile = tiles.get(t);
+			if (tile.getConnectedTiles().size() > 0 || lastModel == null) {
+				lastModel = (InvertibleBoundable) tile.getModel();
+			}
+			RegUtils.flattenModel(lastModel, dim, tmp, flatModels, 12 * t);
+		}
+		return flatModels;
+	}
+
+	/**
+	 * @return the current cost of each frame, or 0.0 for frames without
+	 *         matches
+	 */
+	public double[] getModelCosts() {
+		double[] costs = new double[tiles.size()];
+		for (int t = 0; t < tiles.size(); t++) {
+			Tile<?> tile = tiles.get(t);
+			costs[t] = tile.getConnectedTiles().size() > 0 ? tile.getCost() : 0.0;
+		}
+		return costs;
+	}
+
+	private void optimize(int windowStart, boolean preAlign) {
+		if (referenceTile == null) {
+			referenceTile = tiles.stream().filter(t -> !t.getConnectedTiles().isEmpty()).findFirst().orElse(null);
+		}
+		List<Tile<?>> windowTiles = tiles.subList(windowStart, tiles.size());
+		Set<Tile<?>> inWindow = new HashSet<>(windowTiles);
+
+		final TileConfiguration tc = new TileConfiguration();
+		for (Tile<?> tile : windowTiles) {
+			if (tile.getConnectedTiles().isEmpty()) {
+				continue;
+			}
+			tc.addTile(tile);
+			// connected tiles outside the window keep their optimized models
+			for (Tile<?> connected : tile.getConnectedTiles()) {
+				if (!inWindow.contains(connected)) {
+					tc.addTile(connected);
+					tc.fixTile(connected);
+				}
+			}
+		}
+		if (tc.getTiles().isEmpty()) {
+			return;
+		}
+		if (inWindow.contains(referenceTile)) {
+			tc.fixTile(referenceTile);
+		}
+
+		optimizer.optimize(tc, preAlign);
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private Tile<?> createTile() {
+		return new Tile(model.copy());
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private static void setModel(Tile<?> target, Tile<?> source) {
+		((Model) target.getModel()).set(source.getModel());
+	}
+}
@@ -0,0 +1,148 @@
+/*-
+ * #%L
+ * A collection of plugins developed at the FMI Basel.
+ * %%
+ * Copyright (C) 2016 - 2024 FMI Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+package ch.fmi.registration;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.imglib2.KDTree;
+import net.imglib2.RealPoint;
+import net.imglib2.neighborsearch.KNearestNeighborSearchOnKDTree;
+
+/**
+ * Nearest-neighbor lookup within the frames of a {@link PointCloud}.
+ * <p>
+ * {@link #kdTreeNeighbors} builds an imglib2 {@link KDTree} per frame, so the
+ * cost grows with {@code n log n} instead of the {@code n^2} of
+ * {@link #bruteForceNeighbors}, which is kept as reference.
+ * </p>
+ */
+public class NeighborSearch {
+	private NeighborSearch() {
+		// prevent instantiation of static utility class
+	}
+
+	/**
+	 * Create a {@link KDTree} of the points of frame index {@code f}, with
+	 * their point indices as values.
+	 */
+	public static KDTree<Integer> createKDTree(PointCloud cloud, int f) {
+		int start = cloud.start(f);
+		int n = cloud.end(f) - start;
+		List<Integer> indices = new ArrayList<>(n);
+		List<RealPoint> positions = new ArrayList<>(n);
+		for (int i = start; i < start + n; i++) {
+			double[] position = new double[cloud.numDimensions()];
+			cloud.localize(i, position);
+			indices.add(i);
+			positions.add(RealPoint.wrap(position));
+		}
+		return new KDTree<>(indices, positions);
+	}
+
+	/**
+	 * Find the {@code m} nearest neighbors of each point of frame index
+	 * {@code f} using a {@link KDTree}.
+	 *
+	 * @param cloud
+	 *            point cloud
+	 * @param f
+	 *            frame index
+	 * @param m
+	 *            number of neighbors, less than the number of points in the
+	 *            frame
+	 * @return point indices of the neighbors, {@code m} per point of the frame
+	 *         in order of increasing distance
+	 */
+	public static int[] kdTreeNeighbors(PointCloud cloud, int f, int m) {
+		int start = cloud.start(f);
+		int n = cloud.end(f) - start;
+		int[] neighbors = new int[n * m];
+		if (n == 0 || m == 0) {
+			return neighbors;
+		}
+		KNearestNeighborSearchOnKDTree<Integer> search = new KNearestNeighborSearchOnKDTree<>(
+				createKDTree(cloud, f), m + 1);
+		RealPoint query = new RealPoint(cloud.numDimensions());
+		double[] position = new double[cloud.numDimensions()];
+		for (int i = 0; i < n; i++) {
+			cloud.localize(start + i, position);
+			query.setPosition(position);
+			search.search(query);
+			int found = 0;
+			for (int k = 0; k <= m && found < m; k++) {
+				int neighbor = search.getSampler(k).get();
+				// skip the query point itself
+				if (neighbor != start + i) {
+					neighbors[i * m + found++] = neighbor;
+				}
+			}
+		}
+		return neighbors;
+	}
+
+	/**
+	 * Same as {@link #kdTreeNeighbors}, comparing all pairs of points.
+	 */
+	public static int[] bruteForceNeighbors(PointCloud cloud, int f, int m) {
+		int nDim = cloud.numDimensions();
+		int start = cloud.start(f);
+		int n = cloud.end(f) - start;
+		int[] neighbors = new int[n * m];
+		if (m == 0) {
+			return neighbors;
+		}
+		double[] distances = new double[m];
+		double[] p = new double[nDim];
+		double[] q = new double[nDim];
+		for (int i = 0; i < n; i++) {
+			cloud.localize(start + i, p);
+			Arrays.fill(distances, Double.MAX_VALUE);
+			int found = 0;
+			for (int j = start; j < start + n; j++) {
+				if (j == start + i) {
+					continue;
+				}
+				cloud.localize(j, q);
+				double distance = 0;
+				for (int d = 0; d < nDim; d++) {
+					double diff = q[d] - p[d];
+					distance += diff * diff;
+				}
+				if (found == m && distance >= distances[m - 1]) {
+					continue;
+				}
+				// insertion into the sorted list of the m nearest neighbors
+				int k = found < m ? found++ : m - 1;
+				while (k > 0 && distances[k - 1] > distance) {
+					distances[k] = distances[k - 1];
+					neighbors[i * m + k] = neighbors[i * m + k - 1];
+					k--;
+				}
+				distances[k] = distance;
+				neighbors[i * m + k] = j;
+			}
+		}
+		return neighbors;
+	}
+}
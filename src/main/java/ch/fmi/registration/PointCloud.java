@@ -0,0 +1,259 @@
+/*-
+ * #%L
+ * A collection of plugins developed at the FMI Basel.
+ * %%
+ * Copyright (C) 2016 - 2024 FMI Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+package ch.fmi.registration;
+
+import java.util.Arrays;
+
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+
+/**
+ * Compact structure-of-arrays representation of a series of 2D or 3D point
+ * clouds.
+ * <p>
+ * Points are stored grouped by frame (keeping their input order within each
+ * frame) in one {@code double[]} per axis, an optional {@code int[]} of track
+ * IDs and an optional {@code double[]} of weights, so a point costs a few array slots instead of several objects.
+ * mpicbg {@link Point}s and {@link PointMatch}es are only created on demand,
+ * see {@link #point(int)} and {@link #match(int, PointCloud, int)}.
+ * </p>
+ */
+public class PointCloud {
+
+	private final int[] frames;
+	private final int[] frameStarts;
+	private final double[] x;
+	private final double[] y;
+	private final double[] z;
+	private final int[] ids;
+	private final double[] weights;
+
+	private PointCloud(int[] frames, int[] frameStarts, double[] x, double[] y, double[] z, int[] ids,
+			double[] weights) {
+		this.frames = frames;
+		this.frameStarts = frameStarts;
+		this.x = x;
+		this.y = y;
+		this.z = z;
+		this.ids = ids;
+		this.weights = weights;
+	}
+
+	/**
+	 * Create a point cloud from per-point arrays.
+	 *
+	 * @param frame
+	 *            frame number per point
+	 * @param x
+	 *            x coordinate per point
+	 * @param y
+	 *            y coordinate per point
+	 * @param z
+	 *            z coordinate per point, or {@code null} for 2D
+	 * @param ids
+	 *            track ID per point, or {@code null}
+	 * @return a point cloud with one entry per frame in ascending frame order
+	 */
+	public static PointCloud fromArrays(int[] frame, double[] x, double[] y, double[] z, int[] ids) {
+		return fromArrays(frame, x, y, z, ids, null);
+	}
+
+	/**
+	 * Create a weighted point cloud from per-point arrays.
+	 *
+	 * @param frame
+	 *            frame number per point
+	 * @param x
+	 *            x coordinate per point
+	 * @param y
+	 *            y coordinate per point
+	 * @param z
+	 *            z coordinate per point, or {@code null} for 2D
+	 * @param ids
+	 *            track ID per point, or {@code null}
+	 * @param weights
+	 *            non-negative weight per point, e.g. spot quality, or
+	 *            {@code null} for unit weights
+	 * @return a point cloud with one entry per frame in ascending frame order
+	 */
+	public static PointCloud fromArrays(int[] frame, double[] x, double[] y, double[] z, int[] ids,
+			double[] weights) {
+		if (!(frame.length == x.length && frame.length == y.length && (z == null || frame.length == z.length)
+				&& (ids == null || frame.length == ids.length)
+				&& (weights == null || frame.length == weights.length))) {
+			throw new IllegalArgumentException("All input vectors have to be same length.");
+		}
+		if (weights != null && Arrays.stream(weights).anyMatch(w -> !(w >= 0))) {
+			throw new IllegalArgumentException("Weights have to be non-negative.");
+		}
+		int[] frames = Arrays.stream(frame).distinct().sorted().toArray();
+		int[] frameIndices = new FrameIndex(frames).indicesOf(frame);
+
+		// counting sort by frame index, stable within each frame
+		int[] frameStarts = new int[frames.length + 1];
+		for (int index : frameIndices) {
+			frameStarts[index + 1]++;
+		}
+		for (int f = 0; f < frames.length; f++) {
+			frameStarts[f + 1] += frameStarts[f];
+		}
+		int[] fill = Arrays.copyOf(frameStarts, frames.length);
+		int n = frame.length;
+		double[] sx = new double[n];
+		double[] sy = new double[n];
+		double[] sz = z == null ? null : new double[n];
+		int[] sIds = ids == null ? null : new int[n];
+		double[] sWeights = weights == null ? null : new double[n];
+		for (int i = 0; i < n; i++) {
+			int target = fill[frameIndices[i]]++;
+			sx[target] = x[i];
+			sy[target] = y[i];
+			if (sz != null) {
+				sz[target] = z[i];
+			}
+			if (sIds != null) {
+				sIds[target] = ids[i];
+			}
+			if (sWeights != null) {
+				sWeights[target] = weights[i];
+			}
+		}
+		return new PointCloud(frames, frameStarts, sx, sy, sz, sIds, sWeights);
+	}
+
+	/**
+	 * @return 2 or 3
+	 */
+	public int numDimensions() {
+		return z == null ? 2 : 3;
+	}
+
+	/**
+	 * @return the total number of points
+	 */
+	public int size() {
+		return x.length;
+	}
+
+	/**
+	 * @return the number of frames
+	 */
+	public int numFrames() {
+		return frames.length;
+	}
+
+	/**
+	 * @return sorted unique frame numbers; do not modify
+	 */
+	public int[] frames() {
+		return frames;
+	}
+
+	/**
+	 * @return index of the first point of frame index {@code f}
+	 */
+	public int start(int f) {
+		return frameStarts[f];
+	}
+
+	/**
+	 * @return index after the last point of frame index {@code f}
+	 */
+	public int end(int f) {
+		return frameStarts[f + 1];
+	}
+
+	public double x(int i) {
+		return x[i];
+	}
+
+	public double y(int i) {
+		return y[i];
+	}
+
+	/**
+	 * @return z coordinate, or 0 for 2D point clouds
+	 */
+	public double z(int i) {
+		return z == null ? 0.0 : z[i];
+	}
+
+	public boolean hasIds() {
+		return ids != null;
+	}
+
+	public int id(int i) {
+		return ids[i];
+	}
+
+	public boolean hasWeights() {
+		return weights != null;
+	}
+
+	/**
+	 * @return weight of point {@code i}, or 1 for unweighted point clouds
+	 */
+	public double weight(int i) {
+		return weights == null ? 1.0 : weights[i];
+	}
+
+	/**
+	 * @param f
+	 *            frame index
+	 * @return track IDs of the points of frame index {@code f}
+	 */
+	public int[] frameIds(int f) {
+		return Arrays.copyOfRange(ids, frameStarts[f], frameStarts[f + 1]);
+	}
+
+	/**
+	 * Write the coordinates of point {@code i} into {@code position}.
+	 */
+	public void localize(int i, double[] position) {
+		position[0] = x[i];
+		position[1] = y[i];
+		if (z != null) {
+			position[2] = z[i];
+		}
+	}
+
+	/**
+	 * @return a new mpicbg {@link Point} at the position of point {@code i}
+	 */
+	public Point point(int i) {
+		double[] position = new double[numDimensions()];
+		localize(i, position);
+		return new Point(position);
+	}
+
+	/**
+	 * @return a new {@link PointMatch} from point {@code i} of this cloud to
+	 *         point {@code j} of {@code other}, weighted by the geometric mean
+	 *         of both point weights
+	 */
+	public PointMatch match(int i, PointCloud other, int j) {
+		if (weights == null && other.weights == null) {
+			return new PointMatch(point(i), other.point(j));
+		}
+		return new PointMatch(point(i), other.point(j), Math.sqrt(weight(i) * other.weight(j)));
+	}
+}
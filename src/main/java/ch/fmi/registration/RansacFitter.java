@@ -0,0 +1,300 @@
+/*-
+ * #%L
+ * A collection of plugins developed at the FMI Basel.
+ * %%
+ * Copyright (C) 2016 - 2024 FMI Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+package ch.fmi.registration;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import ch.fmi.util.Parallel;
+import mpicbg.models.IllDefinedDataPointsException;
+import mpicbg.models.Model;
+import mpicbg.models.NotEnoughDataPointsException;
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+
+/**
+ * Robust model fit to point correspondences that may contain mis-paired
+ * points.
+ * <p>
+ * Hypotheses are fitted to random minimal samples and scored by the sum of
+ * squared residuals, each truncated at {@code epsilon^2}, so outliers add a
+ * constant penalty instead of dominating the cost. The best hypothesis defines
+ * the inliers (residual below {@code epsilon}), to which the model is refitted.
+ * </p>
+ * <p>
+ * Hypotheses are evaluated in a fixed number of chunks with their own random
+ * generator and buffers, on up to {@code numThreads} threads, so the result
+ * does not depend on the number of threads. Scoring works on primitive arrays
+ * and does not allocate.
+ * </p>
+ */
+public class RansacFitter {
+
+	/** Number of independently seeded chunks of hypotheses */
+	private static final int NUM_CHUNKS = 64;
+
+	private final int iterations;
+	private final double epsilon;
+	private int numThreads = 1;
+	private long seed = 0;
+
+	private double[] residuals;
+	private boolean[] inliers;
+	private int numInliers;
+
+	/**
+	 * @param iterations
+	 *            number of hypotheses to evaluate
+	 * @param epsilon
+	 *            maximum residual of an inlier
+	 */
+	public RansacFitter(int iterations, double epsilon) {
+		if (iterations < 1 || !(epsilon > 0)) {
+			throw new IllegalArgumentException("Invalid number of iterations or epsilon: " + iterations + ", " + epsilon);
+		}
+		this.iterations = iterations;
+		this.epsilon = epsilon;
+	}
+
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
+
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * Fit {@code model} robustly to the correspondences
+	 * {@code p1[i] -> p2[i]}.
+	 *
+	 * @param model
+	 *            model to fit, receives the final fit to all inliers
+	 * @param p1
+	 *            source coordinates, {@code dim} values per point
+	 * @param p2
+	 *            target coordinates, {@code dim} values per point
+	 * @param dim
+	 *            number of dimensions
+	 */
+	public void fit(Model<?> model, double[] p1, double[] p2, int dim) {
+		fit(model, p1, p2, null, dim);
+	}
+
+	/**
+	 * Fit {@code model} robustly to the weighted correspondences
+	 * {@code p1[i] -> p2[i]}. Weights scale both the hypothesis cost and the
+	 * final fit.
+	 *
+	 * @param model
+	 *            model to fit, receives the final fit to all inliers
+	 * @param p1
+	 *            source coordinates, {@code dim} values per point
+	 * @param p2
+	 *            target coordinates, {@code dim} values per point
+	 * @param weights
+	 *            non-negative weight per correspondence, or {@code null}
+	 * @param dim
+	 *            number of dimensions
+	 */
+	public void fit(Model<?> model, double[] p1, double[] p2, double[] weights, int dim) {
+		if (p1.length != p2.length || p1.length % dim != 0
+				|| (weights != null && weights.length * dim != p1.length)) {
+			throw new IllegalArgumentException("Both point sets need to have equal length.");
+		}
+		int n = p1.length / dim;
+		int minNumMatches = model.getMinNumMatches();
+		if (n < minNumMatches) {
+			throw new RuntimeException("Not enough data points.",
+					new NotEnoughDataPointsException(n + " data points are not enough to estimate the model."));
+		}
+
+		List<PointMatch> matches = new ArrayList<>(n);
+		for (int i = 0; i < n; i++) {
+			double[] l1 = new double[dim];
+			double[] l2 = new double[dim];
+			System.arraycopy(p1, i * dim, l1, 0, dim);
+			System.arraycopy(p2, i * dim, l2, 0, dim);
+			matches.add(new PointMatch(new Point(l1), new Point(l2), weights == null ? 1.0 : weights[i]));
+		}
+
+		double[] chunkCosts = new double[NUM_CHUNKS];
+		int[][] chunkSamples = new int[NUM_CHUNKS][];
+		Parallel.forEach(NUM_CHUNKS, numThreads, c -> {
+			int from = (int) ((long) iterations * c / NUM_CHUNKS);
+			int to = (int) ((long) iterations * (c + 1) / NUM_CHUNKS);
+			chunkSamples[c] = new int[minNumMatches];
+			chunkCosts[c] = sampleHypotheses(model, matches, p1, p2, weights, dim, to - from, seed + c,
+					chunkSamples[c]);
+		});
+
+		int best = 0;
+		for (int c = 1; c < NUM_CHUNKS; c++) {
+			if (chunkCosts[c] < chunkCosts[best]) {
+				best = c;
+			}
+		}
+		if (chunkCosts[best] == Double.POSITIVE_INFINITY) {
+			throw new RuntimeException("Ill-defined data points.",
+					new IllDefinedDataPointsException("No sample led to a valid hypothesis."));
+		}
+
+		List<PointMatch> sample = new ArrayList<>(minNumMatches);
+		for (int i : chunkSamples[best]) {
+			sample.add(matches.get(i));
+		}
+		fitOrThrow(model, sample);
+		residuals = new double[n];
+		inliers = new boolean[n];
+		updateInliers(model, p1, p2, dim);
+
+		// refit to all inliers of the best hypothesis
+		List<PointMatch> inlierMatches = new ArrayList<>(numInliers);
+		for (int i = 0; i < n; i++) {
+			if (inliers[i]) {
+				inlierMatches.add(matches.get(i));
+			}
+		}
+		fitOrThrow(model, inlierMatches);
+		updateInliers(model, p1, p2, dim);
+	}
+
+	/**
+	 * @return residual of each correspondence under the final model
+	 */
+	public double[] getResiduals() {
+		return residuals;
+	}
+
+	/**
+	 * @return whether each correspondence is an inlier of the final model
+	 */
+	public boolean[] getInliers() {
+		return inliers;
+	}
+
+	public int getNumInliers() {
+		return numInliers;
+	}
+
+	/**
+	 * Evaluate {@code count} hypotheses from random minimal samples.
+	 *
+	 * @param bestSample
+	 *            receives the indices of the best sample
+	 * @return cost of the best hypothesis, or infinity if no sample could be
+	 *         fitted
+	 */
+	private double sampleHypotheses(Model<?> model, List<PointMatch> matches, double[] p1, double[] p2,
+			double[] weights, int dim, int count, long chunkSeed, int[] bestSample) {
+		int n = matches.size();
+		int minNumMatches = bestSample.length;
+		Model<?> hypothesis = model.copy();
+		Random random = new Random(chunkSeed);
+		int[] permutation = new int[n];
+		for (int i = 0; i < n; i++) {
+			permutation[i] = i;
+		}
+		List<PointMatch> sample = new ArrayList<>(matches.subList(0, minNumMatches));
+		double[] tmp = new double[dim];
+
+		double bestCost = Double.POSITIVE_INFINITY;
+		for (int h = 0; h < count; h++) {
+			// partial Fisher-Yates shuffle draws the sample without replacement
+			for (int k = 0; k < minNumMatches; k++) {
+				int j = k + random.nextInt(n - k);
+				int swap = permutation[k];
+				permutation[k] = permutation[j];
+				permutation[j] = swap;
+				sample.set(k, matches.get(permutation[k]));
+			}
+			try {
+				hypothesis.fit(sample);
+			}
+			catch (NotEnoughDataPointsException | IllDefinedDataPointsException exc) {
+				continue;
+			}
+			double cost = cost(hypothesis, p1, p2, weights, dim, tmp, bestCost);
+			if (cost < bestCost) {
+				bestCost = cost;
+				System.arraycopy(permutation, 0, bestSample, 0, minNumMatches);
+			}
+		}
+		return bestCost;
+	}
+
+	/**
+	 * Weighted sum of squared residuals truncated at {@code epsilon^2}. Stops
+	 * early once the sum reaches {@code bound}.
+	 */
+	private double cost(Model<?> hypothesis, double[] p1, double[] p2, double[] weights, int dim, double[] tmp,
+			double bound) {
+		double maxSquared = epsilon * epsilon;
+		double cost = 0;
+		for (int i = 0, offset = 0; offset < p1.length; i++, offset += dim) {
+			System.arraycopy(p1, offset, tmp, 0, dim);
+			hypothesis.applyInPlace(tmp);
+			double squared = 0;
+			for (int d = 0; d < dim; d++) {
+				double diff = tmp[d] - p2[offset + d];
+				squared += diff * diff;
+			}
+			cost += (weights == null ? 1.0 : weights[i]) * Math.min(squared, maxSquared);
+			if (cost >= bound) {
+				return cost;
+			}
+		}
+		return cost;
+	}
+
+	private void updateInliers(Model<?> model, double[] p1, double[] p2, int dim) {
+		double[] tmp = new double[dim];
+		numInliers = 0;
+		for (int i = 0, offset = 0; offset < p1.length; i++, offset += dim) {
+			System.arraycopy(p1, offset, tmp, 0, dim);
+			model.applyInPlace(tmp);
+			double squared = 0;
+			for (int d = 0; d < dim; d++) {
+				double diff = tmp[d] - p2[offset + d];
+				squared += diff * diff;
+			}
+			residuals[i] = Math.sqrt(squared);
+			inliers[i] = residuals[i] < epsilon;
+			if (inliers[i]) {
+				numInliers++;
+			}
+		}
+	}
+
+	private static void fitOrThrow(Model<?> model, List<PointMatch> matches) {
+		try {
+			model.fit(matches);
+		}
+		catch (NotEnoughDataPointsException exc) {
+			throw new RuntimeException("Not enough data points.", exc);
+		}
+		catch (IllDefinedDataPointsException exc) {
+			throw new RuntimeException("Ill-defined data points.", exc);
+		}
+	}
+}
@@ -21,18 +21,18 @@
  */
 package ch.fmi.registration;
 
+import java.nio.DoubleBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.Vector;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
-import com.google.common.primitives.Doubles;
+import ch.fmi.util.Parallel;
 
 import mpicbg.imglib.algorithm.scalespace.DifferenceOfGaussian.SpecialPoint;
 import mpicbg.imglib.algorithm.scalespace.DifferenceOfGaussianPeak;
 import mpicbg.imglib.type.numeric.real.FloatType;
-import mpicbg.models.AbstractAffineModel2D;
-import mpicbg.models.AbstractAffineModel3D;
 import mpicbg.models.AbstractModel;
 import mpicbg.models.Affine2D;
 import mpicbg.models.Affine3D;
@@ -68,49 +68,264 @@ public class RegUtils {
 	final static public String DIM2D = "2D";
 	final static public String DIM3D = "3D";
 
-	public static Vector<ComparePair> getComparePairs(Integer[] frameLookup,
+	public static List<ComparePair> getComparePairs(Integer[] frameLookup,
 			ArrayList<ArrayList<DifferenceOfGaussianPeak<FloatType>>> peakList, int range, Model<?> model) {
+		return getComparePairs(Arrays.stream(frameLookup).mapToInt(Integer::intValue).toArray(), range, model);
+	}
 
-		final Vector<ComparePair> pairs = new Vector<>();
-
-		int nFrames = peakList.size();
+	/**
+	 * Create a {@link ComparePair} for every pair of frames that are at most
+	 * {@code range} frames apart. Only the band of frames within
+	 * {@code range} is visited, so this is linear in the number of pairs.
+	 *
+	 * @param sortedFrames
+	 *            sorted unique frame numbers
+	 * @param range
+	 *            maximum distance between the frame numbers of a pair
+	 * @param model
+	 *            model to be copied into each pair
+	 * @return list of pairs, ordered by first and then second frame index
+	 */
+	public static List<ComparePair> getComparePairs(int[] sortedFrames, int range, Model<?> model) {
+		int[] bandEnds = getBandEnds(sortedFrames, range);
+		int nPairs = 0;
+		for (int a = 0; a < sortedFrames.length; a++) {
+			nPairs += bandEnds[a] - a - 1;
+		}
 
-		for (int a = 0; a < nFrames; a++) {
-			for (int b = a + 1; b < nFrames; b++) {
-				if (Math.abs(frameLookup[a] - frameLookup[b]) <= range)
-					pairs.add(new ComparePair(a, b, model));
+		final List<ComparePair> pairs = new ArrayList<>(nPairs);
+		for (int a = 0; a < sortedFrames.length; a++) {
+			for (int b = a + 1; b < bandEnds[a]; b++) {
+				pairs.add(new ComparePair(a, b, model));
 			}
 		}
-
 		return pairs;
 	}
 
-	public static void populateComparePairs(Vector<ComparePair> pairs,
+	/**
+	 * Lazily create the pairs of {@link #getComparePairs(int[], int, Model)},
+	 * so consumers can process them without holding all pairs in memory.
+	 *
+	 * @param sortedFrames
+	 *            sorted unique frame numbers
+	 * @param range
+	 *            maximum distance between the frame numbers of a pair
+	 * @param model
+	 *            model to be copied into each pair
+	 * @return sequential stream of pairs
+	 */
+	public static Stream<ComparePair> streamComparePairs(int[] sortedFrames, int range, Model<?> model) {
+		int[] bandEnds = getBandEnds(sortedFrames, range);
+		return IntStream.range(0, sortedFrames.length).boxed()
+				.flatMap(a -> IntStream.range(a + 1, bandEnds[a]).mapToObj(b -> new ComparePair(a, b, model)));
+	}
+
+	/**
+	 * Two-pointer sweep over the sorted frames.
+	 *
+	 * @return for each frame index {@code a}, the first index {@code b > a}
+	 *         whose frame is more than {@code range} frames after frame
+	 *         {@code a}
+	 */
+	private static int[] getBandEnds(int[] sortedFrames, int range) {
+		int[] bandEnds = new int[sortedFrames.length];
+		int end = 0;
+		for (int a = 0; a < sortedFrames.length; a++) {
+			end = Math.max(end, a + 1);
+			while (end < sortedFrames.length && (long) sortedFrames[end] - sortedFrames[a] <= range) {
+				end++;
+			}
+			bandEnds[a] = end;
+		}
+		return bandEnds;
+	}
+
+	public static void populateComparePairs(List<ComparePair> pairs,
 			ArrayList<ArrayList<DifferenceOfGaussianPeak<FloatType>>> peaks, List<List<Integer>> correspondences) {
-		for (ComparePair pair : pairs) {
-			ArrayList<DifferenceOfGaussianPeak<FloatType>> peaksA = peaks.get(pair.indexA);
-			ArrayList<DifferenceOfGaussianPeak<FloatType>> peaksB = peaks.get(pair.indexB);
-			List<Integer> idsA = correspondences.get(pair.indexA);
-			List<Integer> idsB = correspondences.get(pair.indexB);
-
-			int id = 0;
-			for (int a = 0; a < peaksA.size(); a++) {
-				for (int b = 0; b < peaksB.size(); b++) {
-					if (idsA.get(a).equals(idsB.get(b))) {
-						pair.inliers.add(new PointMatch(new Particle(id++, peaksA.get(a), 1.0f),
-								new Particle(id++, peaksB.get(b), 1.0f)));
-					}
-				}
+		populateComparePairs(pairs, peaks, correspondences, 1);
+	}
+
+	/**
+	 * Add corresponding points to each pair and fit {@code pair.model} to them.
+	 * Pairs are independent and are processed concurrently on up to
+	 * {@code numThreads} threads.
+	 *
+	 * @param pairs
+	 *            pairs of frames to populate
+	 * @param peaks
+	 *            peaks per frame
+	 * @param correspondences
+	 *            track IDs per frame
+	 * @param numThreads
+	 *            maximum number of threads
+	 */
+	public static void populateComparePairs(List<ComparePair> pairs,
+			ArrayList<ArrayList<DifferenceOfGaussianPeak<FloatType>>> peaks, List<List<Integer>> correspondences,
+			int numThreads) {
+		List<TrackIdIndex> trackIdIndices = createTrackIdIndices(correspondences);
+		Parallel.forEach(pairs.size(), numThreads, i -> {
+			ComparePair pair = pairs.get(i);
+			addCorrespondingPoints(pair, peaks, trackIdIndices);
+			fitPairModel(pair);
+		});
+	}
+
+	/**
+	 * Fit {@code pair.model} to {@code pair.inliers}. A pair whose points alone
+	 * do not determine the model keeps its inliers: tiles are fitted to the
+	 * matches of all their neighbors, which may well suffice.
+	 */
+	private static void fitPairModel(ComparePair pair) {
+		try {
+			pair.model.fit(pair.inliers);
+		} catch (NotEnoughDataPointsException | IllDefinedDataPointsException e) {
+			// pair.model is not used by the global optimization
+		}
+	}
+
+	/**
+	 * @param exc
+	 *            exception thrown by a fit
+	 * @return {@code true} if {@code exc} wraps a
+	 *         {@link NotEnoughDataPointsException} or
+	 *         {@link IllDefinedDataPointsException}, i.e. the points do not
+	 *         determine a model
+	 */
+	public static boolean isFitFailure(RuntimeException exc) {
+		Throwable cause = exc.getCause();
+		return cause instanceof NotEnoughDataPointsException || cause instanceof IllDefinedDataPointsException;
+	}
+
+	/**
+	 * Create a {@link TrackIdIndex} for the track IDs of each frame.
+	 *
+	 * @param correspondences
+	 *            track IDs per frame
+	 * @return one index per frame
+	 */
+	public static List<TrackIdIndex> createTrackIdIndices(List<List<Integer>> correspondences) {
+		List<TrackIdIndex> indices = new ArrayList<>(correspondences.size());
+		for (List<Integer> ids : correspondences) {
+			indices.add(new TrackIdIndex(ids));
+		}
+		return indices;
+	}
+
+	/**
+	 * Add a {@link PointMatch} to {@code pair.inliers} for every pair of points
+	 * in frames {@code pair.indexA} and {@code pair.indexB} that share the same
+	 * track ID.
+	 *
+	 * @param pair
+	 *            the pair of frames to populate
+	 * @param peaks
+	 *            peaks per frame
+	 * @param trackIdIndices
+	 *            track ID index per frame, see
+	 *            {@link #createTrackIdIndices(List)}
+	 */
+	public static void addCorrespondingPoints(ComparePair pair,
+			ArrayList<ArrayList<DifferenceOfGaussianPeak<FloatType>>> peaks, List<TrackIdIndex> trackIdIndices) {
+		ArrayList<DifferenceOfGaussianPeak<FloatType>> peaksA = peaks.get(pair.indexA);
+		ArrayList<DifferenceOfGaussianPeak<FloatType>> peaksB = peaks.get(pair.indexB);
+		TrackIdIndex idsA = trackIdIndices.get(pair.indexA);
+		TrackIdIndex idsB = trackIdIndices.get(pair.indexB);
+
+		int id = 0;
+		for (int a = 0; a < idsA.size(); a++) {
+			for (int b = idsB.first(idsA.id(a)); b >= 0; b = idsB.next(b)) {
+				pair.inliers.add(new PointMatch(new Particle(id++, peaksA.get(a), 1.0f),
+						new Particle(id++, peaksB.get(b), 1.0f)));
 			}
+		}
+	}
+
+	/**
+	 * Add corresponding points to each pair and fit {@code pair.model} to them,
+	 * reading points and track IDs from {@code cloud}.
+	 *
+	 * @param pairs
+	 *            pairs of frame indices of {@code cloud}
+	 * @param cloud
+	 *            point cloud with track IDs
+	 * @param numThreads
+	 *            maximum number of threads
+	 */
+	public static void populateComparePairs(List<ComparePair> pairs, PointCloud cloud, int numThreads) {
+		populateComparePairs(pairs, cloud, createTrackIdIndices(cloud), 0, numThreads);
+	}
+
+	/**
+	 * Add corresponding points to each pair and fit {@code pair.model} to them.
+	 * Pair indices are relative to {@code frameOffset}, so that pairs of a
+	 * sub-range of frames can be populated from the full point cloud.
+	 *
+	 * @param pairs
+	 *            pairs of frame indices relative to {@code frameOffset}
+	 * @param cloud
+	 *            point cloud with track IDs
+	 * @param trackIdIndices
+	 *            track ID index per frame of {@code cloud}, see
+	 *            {@link #createTrackIdIndices(PointCloud)}
+	 * @param frameOffset
+	 *            frame index of {@code cloud} corresponding to pair index 0
+	 * @param numThreads
+	 *            maximum number of threads
+	 */
+	public static void populateComparePairs(List<ComparePair> pairs, PointCloud cloud,
+			List<TrackIdIndex> trackIdIndices, int frameOffset, int numThreads) {
+		Parallel.forEach(pairs.size(), numThreads, i -> {
+			ComparePair pair = pairs.get(i);
+			int a = frameOffset + pair.indexA;
+			int b = frameOffset + pair.indexB;
+			addCorrespondingPoints(pair.inliers, cloud, a, trackIdIndices.get(a), cloud, b, trackIdIndices.get(b));
+			fitPairModel(pair);
+		});
+	}
+
+	/**
+	 * Create a {@link TrackIdIndex} for the track IDs of each frame of
+	 * {@code cloud}.
+	 *
+	 * @param cloud
+	 *            point cloud with track IDs
+	 * @return one index per frame
+	 */
+	public static List<TrackIdIndex> createTrackIdIndices(PointCloud cloud) {
+		List<TrackIdIndex> indices = new ArrayList<>(cloud.numFrames());
+		for (int f = 0; f < cloud.numFrames(); f++) {
+			indices.add(new TrackIdIndex(cloud.frameIds(f)));
+		}
+		return indices;
+	}
 
-			try {
-				pair.model.fit(pair.inliers);
-			} catch (NotEnoughDataPointsException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			} catch (IllDefinedDataPointsException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+	/**
+	 * Add a {@link PointMatch} to {@code matches} for every pair of points in
+	 * frame {@code frameA} of {@code cloudA} and frame {@code frameB} of
+	 * {@code cloudB} that share the same track ID.
+	 *
+	 * @param matches
+	 *            list to add the matches to
+	 * @param cloudA
+	 *            point cloud of the first frame
+	 * @param frameA
+	 *            frame index in {@code cloudA}
+	 * @param idsA
+	 *            track ID index of the first frame
+	 * @param cloudB
+	 *            point cloud of the second frame
+	 * @param frameB
+	 *            frame index in {@code cloudB}
+	 * @param idsB
+	 *            track ID index of the second frame
+	 */
+	public static void addCorrespondingPoints(List<PointMatch> matches, PointCloud cloudA, int frameA,
+			TrackIdIndex idsA, PointCloud cloudB, int frameB, TrackIdIndex idsB) {
+		int startA = cloudA.start(frameA);
+		int startB = cloudB.start(frameB);
+		for (int a = 0; a < idsA.size(); a++) {
+			for (int b = idsB.first(idsA.id(a)); b >= 0; b = idsB.next(b)) {
+				matches.add(cloudA.match(startA + a, cloudB, startB + b));
 			}
 		}
 	}
@@ -124,17 +339,14 @@ public class RegUtils {
 		if (z == null)
 			return getPeaksAndCorrespondencesFromArrays(sortedUniqueFrames, frames, x, y, correspondences);
 
-		ArrayList<ArrayList<DifferenceOfGaussianPeak<FloatType>>> peaks = new ArrayList<>(sortedUniqueFrames.size());
-		List<List<Integer>> ids = new ArrayList<>(sortedUniqueFrames.size());
-
-		for (int i = 0; i < sortedUniqueFrames.size(); i++) {
-			peaks.add(new ArrayList<>());
-			ids.add(new ArrayList<>());
-		}
+		int[] frameIndices = new FrameIndex(sortedUniqueFrames).indicesOf(frames);
+		int[] counts = countPerFrame(frameIndices, sortedUniqueFrames.size());
+		ArrayList<ArrayList<DifferenceOfGaussianPeak<FloatType>>> peaks = emptyLists(counts);
+		List<List<Integer>> ids = new ArrayList<>(emptyLists(counts));
 
 		for (int i = 0; i < frames.length; i++) {
-			peaks.get(sortedUniqueFrames.indexOf(frames[i])).add(createPeak(x[i], y[i], z[i]));
-			ids.get((sortedUniqueFrames.indexOf(frames[i]))).add(correspondences[i]);
+			peaks.get(frameIndices[i]).add(createPeak(x[i], y[i], z[i]));
+			ids.get(frameIndices[i]).add(correspondences[i]);
 		}
 		return new ValuePair<ArrayList<ArrayList<DifferenceOfGaussianPeak<FloatType>>>, List<List<Integer>>>(peaks, ids);
 	}
@@ -142,17 +354,14 @@ public class RegUtils {
 	public static Pair<ArrayList<ArrayList<DifferenceOfGaussianPeak<FloatType>>>, List<List<Integer>>> getPeaksAndCorrespondencesFromArrays(
 			List<Integer> sortedUniqueFrames, int[] frames, double[] x, double[] y, int[] correspondences) {
 
-		ArrayList<ArrayList<DifferenceOfGaussianPeak<FloatType>>> peaks = new ArrayList<>(sortedUniqueFrames.size());
-		List<List<Integer>> ids = new ArrayList<>(sortedUniqueFrames.size());
-
-		for (int i = 0; i < sortedUniqueFrames.size(); i++) {
-			peaks.add(new ArrayList<>());
-			ids.add(new ArrayList<>());
-		}
+		int[] frameIndices = new FrameIndex(sortedUniqueFrames).indicesOf(frames);
+		int[] counts = countPerFrame(frameIndices, sortedUniqueFrames.size());
+		ArrayList<ArrayList<DifferenceOfGaussianPeak<FloatType>>> peaks = emptyLists(counts);
+		List<List<Integer>> ids = new ArrayList<>(emptyLists(counts));
 
 		for (int i = 0; i < frames.length; i++) {
-			peaks.get(sortedUniqueFrames.indexOf(frames[i])).add(createPeak(x[i], y[i]));
-			ids.get((sortedUniqueFrames.indexOf(frames[i]))).add(correspondences[i]);
+			peaks.get(frameIndices[i]).add(createPeak(x[i], y[i]));
+			ids.get(frameIndices[i]).add(correspondences[i]);
 		}
 		return new ValuePair<ArrayList<ArrayList<DifferenceOfGaussianPeak<FloatType>>>, List<List<Integer>>>(peaks, ids);
 	}
@@ -162,14 +371,12 @@ public class RegUtils {
 		if (z == null)
 			return getPeaksFromArrays(sortedUniqueFrames, frames, x, y);
 
-		ArrayList<ArrayList<DifferenceOfGaussianPeak<FloatType>>> peaks = new ArrayList<>(sortedUniqueFrames.size());
-
-		for (int i = 0; i < sortedUniqueFrames.size(); i++) {
-			peaks.add(new ArrayList<>());
-		}
+		int[] frameIndices = new FrameIndex(sortedUniqueFrames).indicesOf(frames);
+		ArrayList<ArrayList<DifferenceOfGaussianPeak<FloatType>>> peaks = emptyLists(
+				countPerFrame(frameIndices, sortedUniqueFrames.size()));
 
 		for (int i = 0; i < frames.length; i++) {
-			peaks.get(sortedUniqueFrames.indexOf((int) frames[i])).add(createPeak(x[i], y[i], z[i]));
+			peaks.get(frameIndices[i]).add(createPeak(x[i], y[i], z[i]));
 		}
 		return peaks;
 	}
@@ -177,18 +384,32 @@ public class RegUtils {
 	public static ArrayList<ArrayList<DifferenceOfGaussianPeak<FloatType>>> getPeaksFromArrays(
 			List<Integer> sortedUniqueFrames, int[] frames, double[] x, double[] y) {
 
-		ArrayList<ArrayList<DifferenceOfGaussianPeak<FloatType>>> peaks = new ArrayList<>(sortedUniqueFrames.size());
-
-		for (int i = 0; i < sortedUniqueFrames.size(); i++) {
-			peaks.add(new ArrayList<>());
-		}
+		int[] frameIndices = new FrameIndex(sortedUniqueFrames).indicesOf(frames);
+		ArrayList<ArrayList<DifferenceOfGaussianPeak<FloatType>>> peaks = emptyLists(
+				countPerFrame(frameIndices, sortedUniqueFrames.size()));
 
 		for (int i = 0; i < frames.length; i++) {
-			peaks.get(sortedUniqueFrames.indexOf((int) frames[i])).add(createPeak(x[i], y[i]));
+			peaks.get(frameIndices[i]).add(createPeak(x[i], y[i]));
 		}
 		return peaks;
 	}
 
+	private static int[] countPerFrame(int[] frameIndices, int nFrames) {
+		int[] counts = new int[nFrames];
+		for (int index : frameIndices) {
+			counts[index]++;
+		}
+		return counts;
+	}
+
+	private static <T> ArrayList<ArrayList<T>> emptyLists(int[] capacities) {
+		ArrayList<ArrayList<T>> lists = new ArrayList<>(capacities.length);
+		for (int capacity : capacities) {
+			lists.add(new ArrayList<>(capacity));
+		}
+		return lists;
+	}
+
 	public static DifferenceOfGaussianPeak<FloatType> createPeak(double x, double y, double z) {
 		int[] loc = new int[] { (int) x, (int) y, (int) z };
 		DifferenceOfGaussianPeak<FloatType> p = new DifferenceOfGaussianPeak<>(loc, new FloatType(), SpecialPoint.MAX);
@@ -231,130 +452,269 @@ public class RegUtils {
 		}
 	}
 
-	public static double[] flattenModels(List<InvertibleBoundable> models, String dim) {
-		List<Double> list = new ArrayList<>();
-		double[] m;
+	/**
+	 * Flatten affine models into one array holding the row-major 3x4 matrix of
+	 * each model. 2D models are embedded into 3D.
+	 *
+	 * @param models
+	 *            list of {@link Affine2D} or {@link Affine3D} models
+	 * @param dim
+	 *            {@link #DIM2D} or {@link #DIM3D}
+	 * @return array of length {@code 12 * models.size()}
+	 */
+	public static double[] flattenModels(List<? extends InvertibleBoundable> models, String dim) {
+		double[] flat = new double[models.size() * 12];
+		flattenModels(models, dim, flat, 0);
+		return flat;
+	}
 
+	/**
+	 * Write the row-major 3x4 matrices of {@code models} into {@code target},
+	 * starting at {@code offset}.
+	 *
+	 * @param models
+	 *            list of {@link Affine2D} or {@link Affine3D} models
+	 * @param dim
+	 *            {@link #DIM2D} or {@link #DIM3D}
+	 * @param target
+	 *            array with room for {@code 12 * models.size()} values after
+	 *            {@code offset}
+	 * @param offset
+	 *            index of the first value to write
+	 */
+	public static void flattenModels(List<? extends InvertibleBoundable> models, String dim, double[] target,
+			int offset) {
+		double[] m = new double[12];
+		for (int i = 0; i < models.size(); i++) {
+			flattenModel(models.get(i), dim, m, target, offset + 12 * i);
+		}
+	}
+
+	/**
+	 * Write the row-major 3x4 matrices of {@code models} into {@code target},
+	 * starting at its current position.
+	 *
+	 * @param models
+	 *            list of {@link Affine2D} or {@link Affine3D} models
+	 * @param dim
+	 *            {@link #DIM2D} or {@link #DIM3D}
+	 * @param target
+	 *            buffer with {@code 12 * models.size()} values remaining
+	 */
+	public static void flattenModels(List<? extends InvertibleBoundable> models, String dim, DoubleBuffer target) {
+		if (target.hasArray()) {
+			flattenModels(models, dim, target.array(), target.arrayOffset() + target.position());
+			target.position(target.position() + 12 * models.size());
+			return;
+		}
+		double[] m = new double[12];
+		double[] row = new double[12];
+		for (InvertibleBoundable model : models) {
+			flattenModel(model, dim, m, row, 0);
+			target.put(row);
+		}
+	}
+
+	/**
+	 * Write the row-major 3x4 matrix of a single model into {@code target}.
+	 *
+	 * @param model
+	 *            {@link Affine2D} or {@link Affine3D} model
+	 * @param dim
+	 *            {@link #DIM2D} or {@link #DIM3D}
+	 * @param tmp
+	 *            scratch array of length 12
+	 * @param target
+	 *            array to write into
+	 * @param offset
+	 *            index of the first value to write
+	 */
+	public static void flattenModel(InvertibleBoundable model, String dim, double[] tmp, double[] target,
+			int offset) {
 		switch (dim) {
 		case DIM2D:
-			m = new double[6];
-			for (int i = 0; i < models.size(); i++) {
-				((Affine2D<?>) models.get(i)).toArray(m);
-				list.add(m[0]);
-				list.add(m[2]);
-				list.add(0d);
-				list.add(m[4]);
-				list.add(m[1]);
-				list.add(m[3]);
-				list.add(0d);
-				list.add(m[5]);
-				list.add(0d);
-				list.add(0d);
-				list.add(1d);
-				list.add(0d);
-			}
+			((Affine2D<?>) model).toArray(tmp);
+			target[offset] = tmp[0];
+			target[offset + 1] = tmp[2];
+			target[offset + 2] = 0d;
+			target[offset + 3] = tmp[4];
+			target[offset + 4] = tmp[1];
+			target[offset + 5] = tmp[3];
+			target[offset + 6] = 0d;
+			target[offset + 7] = tmp[5];
+			target[offset + 8] = 0d;
+			target[offset + 9] = 0d;
+			target[offset + 10] = 1d;
+			target[offset + 11] = 0d;
 			break;
 		case DIM3D:
 		default:
-			m = new double[12];
-			for (int i = 0; i < models.size(); i++) {
-				((Affine3D<?>) models.get(i)).toArray(m);
-				list.add(m[0]);
-				list.add(m[3]);
-				list.add(m[6]);
-				list.add(m[9]);
-				list.add(m[1]);
-				list.add(m[4]);
-				list.add(m[7]);
-				list.add(m[10]);
-				list.add(m[2]);
-				list.add(m[5]);
-				list.add(m[8]);
-				list.add(m[11]);
-			}
+			((Affine3D<?>) model).toArray(tmp);
+			target[offset] = tmp[0];
+			target[offset + 1] = tmp[3];
+			target[offset + 2] = tmp[6];
+			target[offset + 3] = tmp[9];
+			target[offset + 4] = tmp[1];
+			target[offset + 5] = tmp[4];
+			target[offset + 6] = tmp[7];
+			target[offset + 7] = tmp[10];
+			target[offset + 8] = tmp[2];
+			target[offset + 9] = tmp[5];
+			target[offset + 10] = tmp[8];
+			target[offset + 11] = tmp[11];
 			break;
 		}
-
-		return Doubles.toArray(list);
 	}
 
+	/**
+	 * Average each model with all models whose frame is at most
+	 * {@code radius} frames away. Models for which no other frame falls within
+	 * the window are returned unchanged, all others are returned as plain
+	 * {@link AffineModel2D} or {@link AffineModel3D}.
+	 *
+	 * @param frames
+	 *            sorted unique frame numbers, one per model
+	 * @param models
+	 *            list of {@link Affine2D} or {@link Affine3D} models
+	 * @param radius
+	 *            radius of the sliding window, in frames
+	 * @param dim
+	 *            {@link #DIM2D} or {@link #DIM3D}
+	 * @return list of averaged models
+	 * @see #smoothFlatModels(int[], double[], int)
+	 */
 	public static List<InvertibleBoundable> interpolateModels(Integer[] frames, List<InvertibleBoundable> models, int radius, String dim) {
 		if (frames.length != models.size()) {
 			throw new IllegalArgumentException("'frames' and 'models' have different size: " + frames.length + " vs. " + models.size());
 		}
-		List<Integer> frameList = Arrays.asList(frames);
-		List<InvertibleBoundable> interpolated = new ArrayList<>(models.size());
+		int[] windowSizes = new int[frames.length];
+		double[] smoothed = smoothFlatModels(Arrays.stream(frames).mapToInt(Integer::intValue).toArray(),
+				flattenModels(models, dim), radius, windowSizes);
 
+		List<InvertibleBoundable> interpolated = new ArrayList<>(models.size());
 		for (int i = 0; i < models.size(); i++) {
-			int current = frames[i];
-			InvertibleBoundable previous = null;
-			InvertibleBoundable cur = null;
-			InvertibleBoundable next = null;
-			int count = 0;
-			int previousCount = 0;
-			for (int r = radius; r > 0; r--) {
-				// lookup current-r and current+r in models
-				int indexA = frameList.indexOf(current - r);
-				int indexB = frameList.indexOf(current + r);
-				cur = interpolate(get(models, indexA), get(models, indexB), 0.5, dim);
-				count += (indexA < 0 ? 0 : 1) + (indexB < 0 ? 0 : 1);
-				next = interpolate(cur, previous, (double) previousCount / count, dim);
-				previous = next;
-				// increase counter by 0,1 or 2
-				previousCount = count;
-			}
-			double lambda = (double) count / (count + 1);
-			interpolated.add(interpolate(models.get(i), previous, lambda, dim));
+			interpolated.add(windowSizes[i] > 1 ? toAffineModel(smoothed, 12 * i, dim) : models.get(i));
 		}
 		return interpolated;
 	}
 
-	private static InvertibleBoundable interpolate(InvertibleBoundable modelA, InvertibleBoundable modelB,
-			double lambda, String dim) {
-		if (modelA == null) {
-			return modelB;
-		}
-		if (modelB == null) {
-			return modelA;
-		}
-		switch (dim) {
-		case DIM2D:
-			return interpolate2D(modelA, modelB, lambda);
-		case DIM3D:
-			return interpolate3D(modelA, modelB, lambda);
-		}
-		return null;
+	/**
+	 * Sliding-window smoothing of flattened models: each coefficient is
+	 * replaced by the mean over all models whose frame is at most
+	 * {@code radius} frames away (missing frames are skipped).
+	 * <p>
+	 * Keeps a running sum of the 12 coefficients while sweeping the window
+	 * over the sorted frames, so the cost is linear in the number of frames
+	 * and independent of the radius.
+	 * </p>
+	 *
+	 * @param sortedFrames
+	 *            sorted unique frame numbers, one per model
+	 * @param flatModels
+	 *            row-major 3x4 matrices, see {@link #flattenModels(List, String)}
+	 * @param radius
+	 *            radius of the sliding window, in frames
+	 * @return smoothed models, in the same layout as {@code flatModels}
+	 */
+	public static double[] smoothFlatModels(int[] sortedFrames, double[] flatModels, int radius) {
+		return smoothFlatModels(sortedFrames, flatModels, radius, null);
 	}
 
-	@SuppressWarnings({ "rawtypes", "unchecked" })
-	private static InvertibleBoundable interpolate2D(InvertibleBoundable modelA, InvertibleBoundable modelB, double lambda) {
-		if (modelA instanceof AbstractAffineModel2D) {
-			if (modelB instanceof AbstractAffineModel2D) {
-				return new InterpolatedAffineModel2D((AbstractAffineModel2D) modelA, (AbstractAffineModel2D) modelB, lambda);
-			}
-			return new InterpolatedAffineModel2D((AbstractAffineModel2D) modelA, (InterpolatedAffineModel2D) modelB, lambda);
+	private static double[] smoothFlatModels(int[] sortedFrames, double[] flatModels, int radius, int[] windowSizes) {
+		if (12 * sortedFrames.length != flatModels.length) {
+			throw new IllegalArgumentException("'flatModels' must hold 12 values per frame: " + flatModels.length
+					+ " values for " + sortedFrames.length + " frames");
 		}
-		if (modelB instanceof AbstractAffineModel2D) {
-			return new InterpolatedAffineModel2D((InterpolatedAffineModel2D) modelA, (AbstractAffineModel2D) modelB, lambda);
+		double[] smoothed = new double[flatModels.length];
+		double[] sum = new double[12];
+		int lo = 0;
+		int hi = 0;
+		for (int i = 0; i < sortedFrames.length; i++) {
+			// drop frames < current - radius
+			while (lo < hi && (long) sortedFrames[i] - sortedFrames[lo] > radius) {
+				for (int k = 0; k < 12; k++) {
+					sum[k] -= flatModels[12 * lo + k];
+				}
+				lo++;
+			}
+			if (lo == hi) {
+				// empty window: discard accumulated rounding errors
+				Arrays.fill(sum, 0.0);
+			}
+			// extend the window to frames <= current + radius
+			while (hi < sortedFrames.length && (long) sortedFrames[hi] - sortedFrames[i] <= radius) {
+				for (int k = 0; k < 12; k++) {
+					sum[k] += flatModels[12 * hi + k];
+				}
+				hi++;
+			}
+			int count = hi - lo;
+			for (int k = 0; k < 12; k++) {
+				smoothed[12 * i + k] = sum[k] / count;
+			}
+			if (windowSizes != null) {
+				windowSizes[i] = count;
+			}
 		}
-		return new InterpolatedAffineModel2D((InterpolatedAffineModel2D) modelA, (InterpolatedAffineModel2D) modelB, lambda);
+		return smoothed;
 	}
 
-	@SuppressWarnings({ "rawtypes", "unchecked" })
-	private static InvertibleBoundable interpolate3D(InvertibleBoundable modelA, InvertibleBoundable modelB, double lambda) {
-		if (modelA instanceof AbstractAffineModel3D) {
-			if (modelB instanceof AbstractAffineModel3D) {
-				return new InterpolatedAffineModel3D((AbstractAffineModel3D) modelA, (AbstractAffineModel3D) modelB, lambda);
-			}
-			return new InterpolatedAffineModel3D((AbstractAffineModel3D) modelA, (InterpolatedAffineModel3D) modelB, lambda);
-		}
-		if (modelB instanceof AbstractAffineModel3D) {
-			return new InterpolatedAffineModel3D((InterpolatedAffineModel3D) modelA, (AbstractAffineModel3D) modelB, lambda);
+	/**
+	 * Create an affine model from a row-major 3x4 matrix.
+	 *
+	 * @param flatModels
+	 *            array of row-major 3x4 matrices
+	 * @param offset
+	 *            index of the first matrix element
+	 * @param dim
+	 *            {@link #DIM2D} or {@link #DIM3D}
+	 * @return {@link AffineModel2D} or {@link AffineModel3D}
+	 */
+	public static InvertibleBoundable toAffineModel(double[] flatModels, int offset, String dim) {
+		double[] m = flatModels;
+		int o = offset;
+		switch (dim) {
+		case DIM2D:
+			AffineModel2D model2d = new AffineModel2D();
+			model2d.set(m[o], m[o + 4], m[o + 1], m[o + 5], m[o + 3], m[o + 7]);
+			return model2d;
+		case DIM3D:
+		default:
+			AffineModel3D model3d = new AffineModel3D();
+			model3d.set(m[o], m[o + 1], m[o + 2], m[o + 3], //
+					m[o + 4], m[o + 5], m[o + 6], m[o + 7], //
+					m[o + 8], m[o + 9], m[o + 10], m[o + 11]);
+			return model3d;
 		}
-		return new InterpolatedAffineModel3D((InterpolatedAffineModel3D) modelA, (InterpolatedAffineModel3D) modelB, lambda);
 	}
 
-	private static InvertibleBoundable get(List<InvertibleBoundable> models, int index) {
-		return (index < 0 ? null : models.get(index));
+	/**
+	 * Distances between {@code p2[i]} and {@code p1[i]} transformed by a
+	 * row-major 3x4 matrix.
+	 *
+	 * @param flatModel
+	 *            array of row-major 3x4 matrices
+	 * @param offset
+	 *            index of the first matrix element
+	 * @param p1
+	 *            source coordinates, {@code dim} values per point
+	 * @param p2
+	 *            target coordinates, {@code dim} values per point
+	 * @param dim
+	 *            number of dimensions, 2 or 3
+	 * @return residual of each correspondence
+	 */
+	public static double[] residuals(double[] flatModel, int offset, double[] p1, double[] p2, int dim) {
+		double[] m = flatModel;
+		int o = offset;
+		double[] residuals = new double[p1.length / dim];
+		for (int i = 0, k = 0; i < residuals.length; i++, k += dim) {
+			double x = p1[k], y = p1[k + 1], z = dim == 3 ? p1[k + 2] : 0;
+			double dx = m[o] * x + m[o + 1] * y + m[o + 2] * z + m[o + 3] - p2[k];
+			double dy = m[o + 4] * x + m[o + 5] * y + m[o + 6] * z + m[o + 7] - p2[k + 1];
+			double dz = dim == 3 ? m[o + 8] * x + m[o + 9] * y + m[o + 10] * z + m[o + 11] - p2[k + 2] : 0;
+			residuals[i] = Math.sqrt(dx * dx + dy * dy + dz * dz);
+		}
+		return residuals;
 	}
 }
@@ -0,0 +1,366 @@
+/*-
+ * #%L
+ * A collection of plugins developed at the FMI Basel.
+ * %%
+ * Copyright (C) 2016 - 2024 FMI Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+package ch.fmi.registration;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import mpicbg.imglib.algorithm.scalespace.DifferenceOfGaussianPeak;
+import mpicbg.imglib.type.numeric.real.FloatType;
+import mpicbg.models.AbstractModel;
+import mpicbg.models.InvertibleBoundable;
+import mpicbg.models.Tile;
+import mpicbg.models.TileConfiguration;
+import plugin.DescriptorParameters;
+import process.ComparePair;
+import process.Matching;
+
+/**
+ * Registration of a series of 2D or 3D point clouds, shared by the series
+ * registration commands.
+ * <p>
+ * Frames are either matched by track ID ({@link #registerPrematched}) or by
+ * geometric descriptors ({@link #registerUnmatched}, using either the
+ * descriptor-based registration plugin or a {@link DescriptorMatcher}); in
+ * both cases the resulting point matches are globally optimized with a
+ * {@link TileOptimizer}, optionally block-wise with a {@link BlockSolver}.
+ * Results are available as flat row-major 3x4 matrices, one per frame.
+ * </p>
+ */
+public class RegistrationEngine {
+
+	private final String dim;
+	private final AbstractModel<?> model;
+
+	private int range = 10;
+	private int numThreads = 1;
+	private double maxError = TileOptimizer.DEFAULT_MAX_ERROR;
+	private int maxIterations = TileOptimizer.DEFAULT_MAX_ITERATIONS;
+	private int maxPlateauWidth = TileOptimizer.DEFAULT_MAX_PLATEAU_WIDTH;
+	private double[] initialModels = null;
+	private int blockSize = 0;
+	private int blockOverlap = 10;
+	private DescriptorMatcher descriptorMatcher = null;
+
+	private int[] frameList;
+	private double[] flatModels;
+	private double[] modelCosts;
+	private ResidualStatistics residuals;
+	private double[] iterationErrors;
+	private int nIterations;
+	private double optimizationTime;
+
+	/**
+	 * @param dim
+	 *            {@link RegUtils#DIM2D} or {@link RegUtils#DIM3D}
+	 * @param model
+	 *            model used for each frame, see
+	 *            {@link RegUtils#suitableModel(String, String)}
+	 */
+	public RegistrationEngine(String dim, AbstractModel<?> model) {
+		this.dim = dim;
+		this.model = model;
+	}
+
+	/**
+	 * @param range
+	 *            maximum distance between the frame numbers of matched frames
+	 */
+	public void setRange(int range) {
+		this.range = range;
+	}
+
+	/**
+	 * @param numThreads
+	 *            maximum number of threads used for matching and block-wise
+	 *            optimization
+	 */
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
+
+	/**
+	 * @see TileOptimizer#TileOptimizer(double, int, int)
+	 */
+	public void setOptimizerSettings(double maxError, int maxIterations, int maxPlateauWidth) {
+		this.maxError = maxError;
+		this.maxIterations = maxIterations;
+		this.maxPlateauWidth = maxPlateauWidth;
+	}
+
+	/**
+	 * @param initialModels
+	 *            flat models of a previous run to start from, or {@code null}
+	 *            to pre-align
+	 */
+	public void setInitialModels(double[] initialModels) {
+		this.initialModels = initialModels;
+	}
+
+	/**
+	 * @param blockSize
+	 *            number of frames per block, or 0 to optimize all frames at
+	 *            once
+	 * @param blockOverlap
+	 *            number of frames shared by adjacent blocks
+	 * @see BlockSolver
+	 */
+	public void setBlocks(int blockSize, int blockOverlap) {
+		this.blockSize = blockSize;
+		this.blockOverlap = blockOverlap;
+	}
+
+	/**
+	 * @param descriptorMatcher
+	 *            matcher used by {@link #registerUnmatched}, or {@code null}
+	 *            to use the descriptor-based registration plugin
+	 */
+	public void setDescriptorMatcher(DescriptorMatcher descriptorMatcher) {
+		this.descriptorMatcher = descriptorMatcher;
+	}
+
+	/**
+	 * Register point clouds whose correspondences are given by track IDs.
+	 *
+	 * @param frame
+	 *            frame number per point
+	 * @param x
+	 *            x coordinate per point
+	 * @param y
+	 *            y coordinate per point
+	 * @param z
+	 *            z coordinate per point, ignored in 2D
+	 * @param trackIDs
+	 *            track ID per point
+	 */
+	public void registerPrematched(int[] frame, double[] x, double[] y, double[] z, int[] trackIDs) {
+		registerPrematched(frame, x, y, z, trackIDs, null);
+	}
+
+	/**
+	 * Register point clouds whose correspondences are given by track IDs,
+	 * weighting each correspondence by the geometric mean of its point
+	 * weights.
+	 *
+	 * @param frame
+	 *            frame number per point
+	 * @param x
+	 *            x coordinate per point
+	 * @param y
+	 *            y coordinate per point
+	 * @param z
+	 *            z coordinate per point, ignored in 2D
+	 * @param trackIDs
+	 *            track ID per point
+	 * @param weights
+	 *            non-negative weight per point, or {@code null}
+	 */
+	public void registerPrematched(int[] frame, double[] x, double[] y, double[] z, int[] trackIDs,
+			double[] weights) {
+		checkLengths(frame, x, y, z);
+		PointCloud cloud = PointCloud.fromArrays(frame, x, y, zOrNull(z), trackIDs, weights);
+		frameList = cloud.frames().clone();
+
+		if (blockSize > 0 && blockSize < frameList.length) {
+			BlockSolver solver = new BlockSolver(blockSize, blockOverlap, numThreads,
+					() -> new TileOptimizer(maxError, maxIterations, maxPlateauWidth));
+			solver.solve(cloud, range, model, dim, initialModels);
+			flatModels = solver.getFlatModels();
+			modelCosts = solver.getModelCosts();
+			residuals = solver.getResiduals();
+			iterationErrors = solver.getBlockErrors();
+			nIterations = solver.getIterations();
+			optimizationTime = solver.getOptimizationTime();
+			return;
+		}
+
+		List<ComparePair> pairs = RegUtils.getComparePairs(frameList, range, model);
+		RegUtils.populateComparePairs(pairs, cloud, numThreads);
+		optimize(pairs);
+	}
+
+	/**
+	 * Register point clouds without known correspondences, matching frames
+	 * by geometric descriptors.
+	 *
+	 * @param frame
+	 *            frame number per point
+	 * @param x
+	 *            x coordinate per point
+	 * @param y
+	 *            y coordinate per point
+	 * @param z
+	 *            z coordinate per point, ignored in 2D
+	 */
+	public void registerUnmatched(int[] frame, double[] x, double[] y, double[] z) {
+		checkLengths(frame, x, y, z);
+		if (descriptorMatcher != null) {
+			PointCloud cloud = PointCloud.fromArrays(frame, x, y, zOrNull(z), null);
+			frameList = cloud.frames().clone();
+			optimize(descriptorMatcher.match(cloud, range, model));
+			return;
+		}
+
+		Integer[] sortedUniqueFrames = RegUtils.getSortedUniqueFrames(frame);
+		frameList = Arrays.stream(sortedUniqueFrames).mapToInt(Integer::intValue).toArray();
+
+		// descriptor matching always runs on 3D peaks, as before the engine
+		// existed; 2D input without z lies in the z = 0 plane
+		double[] peakZ = z != null && z.length == x.length ? z : new double[x.length];
+		ArrayList<ArrayList<DifferenceOfGaussianPeak<FloatType>>> peaks = RegUtils
+				.getPeaksFromArrays(Arrays.asList(sortedUniqueFrames), frame, x, y, peakZ);
+		DescriptorParameters params = defaultParameters();
+		optimize(Matching.descriptorMatching(peaks, peaks.size(), params, 1.0f));
+	}
+
+	public int[] getFrameList() {
+		return frameList;
+	}
+
+	/**
+	 * @return row-major 3x4 matrix per frame; frames without matches get the
+	 *         model of the preceding frame
+	 */
+	public double[] getFlatModels() {
+		return flatModels;
+	}
+
+	/**
+	 * @return cost per frame, or 0.0 for frames without matches
+	 */
+	public double[] getModelCosts() {
+		return modelCosts;
+	}
+
+	/**
+	 * @return residual statistics of the point matches per frame
+	 */
+	public ResidualStatistics getResiduals() {
+		return residuals;
+	}
+
+	/**
+	 * @return mean error per iteration, or the final error per block if
+	 *         optimized block-wise
+	 */
+	public double[] getIterationErrors() {
+		return iterationErrors;
+	}
+
+	public int getIterations() {
+		return nIterations;
+	}
+
+	/**
+	 * @return wall time of the optimization in milliseconds
+	 */
+	public double getOptimizationTime() {
+		return optimizationTime;
+	}
+
+	/**
+	 * Optimize one tile per frame over all point matches of {@code pairs}
+	 * and write the resulting models and costs.
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private void optimize(Collection<ComparePair> pairs) {
+		int nFrames = frameList.length;
+		final List<Tile<?>> tiles = new ArrayList<>(nFrames);
+		for (int t = 0; t < nFrames; t++) {
+			tiles.add(new Tile(model.copy()));
+		}
+		for (final ComparePair pair : pairs) {
+			Matching.addPointMatches(pair.inliers, tiles.get(pair.indexA), tiles.get(pair.indexB));
+		}
+
+		// add connected tiles / fix first tile
+		final TileConfiguration tc = new TileConfiguration();
+		boolean fixed = false;
+		for (Tile<?> t : tiles) {
+			if (t.getConnectedTiles().size() > 0) {
+				tc.addTile(t);
+				if (!fixed) {
+					tc.fixTile(t);
+					fixed = true;
+				}
+			}
+		}
+
+		TileOptimizer optimizer = new TileOptimizer(maxError, maxIterations, maxPlateauWidth);
+		if (initialModels != null) {
+			TileOptimizer.initializeModels(tiles, initialModels, dim);
+		}
+		optimizer.optimize(tc, initialModels == null);
+		iterationErrors = optimizer.getIterationErrors();
+		nIterations = optimizer.getIterations();
+		optimizationTime = optimizer.getOptimizationTime();
+
+		flatModels = new double[12 * nFrames];
+		modelCosts = new double[nFrames];
+		residuals = new ResidualStatistics(nFrames);
+		double[] tmp = new double[12];
+		InvertibleBoundable lastModel = null;
+		for (int t = 0; t < nFrames; t++) {
+			Tile<?> tile = tiles.get(t);
+			boolean connected = tile.getConnectedTiles().size() > 0;
+			if (connected || lastModel == null) {
+				lastModel = (InvertibleBoundable) tile.getModel();
+			}
+			modelCosts[t] = connected ? tile.getCost() : 0.0;
+			residuals.set(t, tile);
+			RegUtils.flattenModel(lastModel, dim, tmp, flatModels, 12 * t);
+		}
+	}
+
+	private DescriptorParameters defaultParameters() {
+		DescriptorParameters params = new DescriptorParameters();
+		params.dimensionality = 3;
+		// params.localization = 1;
+		params.numNeighbors = 2;
+		params.significance = 3;
+		params.similarOrientation = true;
+		params.ransacThreshold = 3;
+		// params.channel1 = 0;
+		// params.channel2 = 0;
+		params.redundancy = 3;
+		// params.fuse = 2; // no Overlay image
+		params.globalOpt = 1;
+		params.range = range;
+		params.silent = true;
+		params.lambda = 0.1;
+		params.model = model;
+		return params;
+	}
+
+	private double[] zOrNull(double[] z) {
+		return dim.equals(RegUtils.DIM3D) ? z : null;
+	}
+
+	private void checkLengths(int[] frame, double[] x, double[] y, double[] z) {
+		if (!(frame.length == x.length && frame.length == y.length
+				&& (!dim.equals(RegUtils.DIM3D) || frame.length == z.length))) {
+			throw new IllegalArgumentException("All input vectors have to be same length.");
+		}
+	}
+}
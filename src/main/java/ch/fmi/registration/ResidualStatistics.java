@@ -0,0 +1,125 @@
+/*-
+ * #%L
+ * A collection of plugins developed at the FMI Basel.
+ * %%
+ * Copyright (C) 2016 - 2024 FMI Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+package ch.fmi.registration;
+
+import java.util.Arrays;
+
+import mpicbg.models.PointMatch;
+import mpicbg.models.Tile;
+
+/**
+ * Per-frame statistics of the residual distances of the point matches of
+ * optimized tiles: number of matches, mean, median, 95th percentile and
+ * maximum.
+ * <p>
+ * Residuals are the world-space distances of each tile's point matches as left
+ * by the optimization, so they are collected in the same pass and need no
+ * second application of the models. Percentiles use the nearest-rank method.
+ * Frames without matches have zero matches and zero statistics, like their
+ * model costs.
+ * </p>
+ */
+public class ResidualStatistics {
+
+	private final int[] matchCounts;
+	private final double[] mean;
+	private final double[] median;
+	private final double[] percentile95;
+	private final double[] max;
+
+	/**
+	 * @param nFrames
+	 *            number of frames
+	 */
+	public ResidualStatistics(int nFrames) {
+		matchCounts = new int[nFrames];
+		mean = new double[nFrames];
+		median = new double[nFrames];
+		percentile95 = new double[nFrames];
+		max = new double[nFrames];
+	}
+
+	/**
+	 * Compute the statistics of frame {@code f} from the point matches of its
+	 * optimized {@code tile}.
+	 */
+	public void set(int f, Tile<?> tile) {
+		int n = tile.getMatches().size();
+		matchCounts[f] = n;
+		if (n == 0) {
+			mean[f] = median[f] = percentile95[f] = max[f] = 0.0;
+			return;
+		}
+		double[] distances = new double[n];
+		double sum = 0;
+		int i = 0;
+		for (PointMatch match : tile.getMatches()) {
+			distances[i] = match.getDistance();
+			sum += distances[i++];
+		}
+		Arrays.sort(distances);
+		mean[f] = sum / n;
+		median[f] = percentile(distances, 50);
+		percentile95[f] = percentile(distances, 95);
+		max[f] = distances[n - 1];
+	}
+
+	/**
+	 * Copy the statistics of frame {@code from} of {@code other} to frame
+	 * {@code to}.
+	 */
+	public void set(int to, ResidualStatistics other, int from) {
+		matchCounts[to] = other.matchCounts[from];
+		mean[to] = other.mean[from];
+		median[to] = other.median[from];
+		percentile95[to] = other.percentile95[from];
+		max[to] = other.max[from];
+	}
+
+	/**
+	 * @return number of point matches per frame
+	 */
+	public int[] getMatchCounts() {
+		return matchCounts;
+	}
+
+	public double[] getMean() {
+		return mean;
+	}
+
+	public double[] getMedian() {
+		return median;
+	}
+
+	public double[] getPercentile95() {
+		return percentile95;
+	}
+
+	public double[] getMax() {
+		return max;
+	}
+
+	private static double percentile(double[] sorted, double p) {
+		int rank = (int) Math.ceil(p / 100 * sorted.length);
+		return sorted[Math.max(rank, 1) - 1];
+	}
+}
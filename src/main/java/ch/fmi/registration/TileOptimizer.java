@@ -0,0 +1,171 @@
+/*-
+ * #%L
+ * A collection of plugins developed at the FMI Basel.
+ * %%
+ * Copyright (C) 2016 - 2024 FMI Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+package ch.fmi.registration;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import mpicbg.models.ErrorStatistic;
+import mpicbg.models.IllDefinedDataPointsException;
+import mpicbg.models.InvertibleBoundable;
+import mpicbg.models.NotEnoughDataPointsException;
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+import mpicbg.models.Tile;
+import mpicbg.models.TileConfiguration;
+
+/**
+ * Global optimization of a {@link TileConfiguration} with configurable
+ * convergence criteria.
+ * <p>
+ * Records the mean error of each iteration, the number of iterations and the
+ * wall time of the last call to {@link #optimize}. Tiles can be initialized
+ * from the flat models of a previous run (see
+ * {@link #initializeModels(List, double[], String)}) to skip the pre-alignment
+ * and start close to the optimum.
+ * </p>
+ */
+public class TileOptimizer {
+
+	public static final double DEFAULT_MAX_ERROR = 10;
+	public static final int DEFAULT_MAX_ITERATIONS = 10000;
+	public static final int DEFAULT_MAX_PLATEAU_WIDTH = 200;
+
+	private final double maxAllowedError;
+	private final int maxIterations;
+	private final int maxPlateauWidth;
+
+	private double[] iterationErrors = new double[0];
+	private double optimizationTime = 0.0;
+
+	public TileOptimizer() {
+		this(DEFAULT_MAX_ERROR, DEFAULT_MAX_ITERATIONS, DEFAULT_MAX_PLATEAU_WIDTH);
+	}
+
+	/**
+	 * @param maxAllowedError
+	 *            mean error below which the optimization may stop
+	 * @param maxIterations
+	 *            maximum number of iterations
+	 * @param maxPlateauWidth
+	 *            number of iterations over which the error slope is evaluated
+	 *            to detect convergence
+	 */
+	public TileOptimizer(double maxAllowedError, int maxIterations, int maxPlateauWidth) {
+		this.maxAllowedError = maxAllowedError;
+		this.maxIterations = maxIterations;
+		this.maxPlateauWidth = maxPlateauWidth;
+	}
+
+	/**
+	 * Optimize {@code tc}, optionally pre-aligning all tiles first.
+	 *
+	 * @param tc
+	 *            tile configuration with fixed tiles already set
+	 * @param preAlign
+	 *            {@code true} to pre-align the tiles, {@code false} to start
+	 *            from their current models
+	 */
+	public void optimize(TileConfiguration tc, boolean preAlign) {
+		ErrorStatistic observer = new ErrorStatistic(maxPlateauWidth + 1);
+		long start = System.nanoTime();
+		try {
+			if (preAlign) {
+				tc.preAlign();
+			}
+			tc.optimizeSilently(observer, maxAllowedError, maxIterations, maxPlateauWidth);
+		}
+		catch (NotEnoughDataPointsException exc) {
+			throw new RuntimeException("Not enough data points.", exc);
+		}
+		catch (IllDefinedDataPointsException exc) {
+			throw new RuntimeException("Ill-defined data points.", exc);
+		}
+		optimizationTime = (System.nanoTime() - start) / 1e6;
+		iterationErrors = new double[observer.values.size()];
+		for (int i = 0; i < iterationErrors.length; i++) {
+			iterationErrors[i] = observer.values.get(i);
+		}
+	}
+
+	/**
+	 * Initialize the model of each tile with the corresponding flat model,
+	 * by fitting the tile model to its local match coordinates and their
+	 * transformed positions. Tiles without matches are left untouched.
+	 *
+	 * @param tiles
+	 *            tiles in frame order
+	 * @param flatModels
+	 *            row-major 3x4 matrices, 12 values per tile
+	 * @param dim
+	 *            {@link RegUtils#DIM2D} or {@link RegUtils#DIM3D}
+	 */
+	public static void initializeModels(List<? extends Tile<?>> tiles, double[] flatModels, String dim) {
+		if (flatModels.length != 12 * tiles.size()) {
+			throw new IllegalArgumentException("Expected " + 12 * tiles.size() + " initial model values, got "
+					+ flatModels.length + ".");
+		}
+		for (int t = 0; t < tiles.size(); t++) {
+			Tile<?> tile = tiles.get(t);
+			if (tile.getMatches().isEmpty()) {
+				continue;
+			}
+			InvertibleBoundable initial = RegUtils.toAffineModel(flatModels, 12 * t, dim);
+			List<PointMatch> targets = new ArrayList<>(tile.getMatches().size());
+			for (PointMatch match : tile.getMatches()) {
+				double[] local = match.getP1().getL();
+				targets.add(new PointMatch(new Point(local.clone()), new Point(initial.apply(local))));
+			}
+			try {
+				tile.getModel().fit(targets);
+			}
+			catch (NotEnoughDataPointsException exc) {
+				throw new RuntimeException("Not enough data points.", exc);
+			}
+			catch (IllDefinedDataPointsException exc) {
+				throw new RuntimeException("Ill-defined data points.", exc);
+			}
+			tile.apply();
+		}
+	}
+
+	/**
+	 * @return mean error after each iteration of the last optimization
+	 */
+	public double[] getIterationErrors() {
+		return iterationErrors.clone();
+	}
+
+	/**
+	 * @return number of iterations of the last optimization
+	 */
+	public int getIterations() {
+		return iterationErrors.length;
+	}
+
+	/**
+	 * @return wall time of the last optimization in milliseconds
+	 */
+	public double getOptimizationTime() {
+		return optimizationTime;
+	}
+}
@@ -0,0 +1,110 @@
+/*-
+ * #%L
+ * A collection of plugins developed at the FMI Basel.
+ * %%
+ * Copyright (C) 2016 - 2024 FMI Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+package ch.fmi.registration;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Primitive hash index from track IDs to the points of a single frame.
+ * <p>
+ * Points sharing the same track ID are chained in ascending order of their
+ * point index, so iterating {@link #first(int)} / {@link #next(int)} visits
+ * matching points in the order of the original point list.
+ * </p>
+ */
+public class TrackIdIndex {
+
+	private final int[] ids;
+	private final int[] keys;
+	private final int[] heads;
+	private final int[] next;
+	private final int mask;
+
+	public TrackIdIndex(int[] ids) {
+		this.ids = ids;
+		int capacity = Integer.highestOneBit(Math.max(2, ids.length) * 2 - 1) << 1;
+		keys = new int[capacity];
+		heads = new int[capacity];
+		next = new int[ids.length];
+		mask = capacity - 1;
+
+		Arrays.fill(heads, -1);
+		// insert in reverse order so that each chain starts with the lowest point index
+		for (int i = ids.length - 1; i >= 0; i--) {
+			int slot = slot(ids[i]);
+			keys[slot] = ids[i];
+			next[i] = heads[slot];
+			heads[slot] = i;
+		}
+	}
+
+	public TrackIdIndex(List<Integer> ids) {
+		this(ids.stream().mapToInt(Integer::intValue).toArray());
+	}
+
+	/**
+	 * @return the number of indexed points
+	 */
+	public int size() {
+		return ids.length;
+	}
+
+	/**
+	 * @param pointIndex
+	 *            index of a point in this frame
+	 * @return the track ID of the point
+	 */
+	public int id(int pointIndex) {
+		return ids[pointIndex];
+	}
+
+	/**
+	 * @param id
+	 *            a track ID
+	 * @return the lowest index of a point with track ID {@code id}, or -1 if
+	 *         there is none
+	 */
+	public int first(int id) {
+		return heads[slot(id)];
+	}
+
+	/**
+	 * @param pointIndex
+	 *            index of a point returned by {@link #first(int)} or
+	 *            {@link #next(int)}
+	 * @return the next higher index of a point with the same track ID, or -1
+	 */
+	public int next(int pointIndex) {
+		return next[pointIndex];
+	}
+
+	// linear probing: returns the slot holding id, or the empty slot where it belongs
+	private int slot(int id) {
+		int h = id * 0x9E3779B9;
+		int slot = (h ^ (h >>> 16)) & mask;
+		while (heads[slot] >= 0 && keys[slot] != id) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+}
@@ -0,0 +1,69 @@
+/*-
+ * #%L
+ * A collection of plugins developed at the FMI Basel.
+ * %%
+ * Copyright (C) 2016 - 2024 FMI Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+package ch.fmi.util;
+
+import java.util.Arrays;
+
+/**
+ * Growable column of primitive {@code double} values, to collect command outputs
+ * without boxing.
+ * <p>
+ * Size the column up front when the number of values is known (e.g. from
+ * {@code SpotCollection.getNSpots}); it doubles its capacity when full.
+ * </p>
+ */
+public class DoubleColumn {
+
+	private double[] values;
+	private int size = 0;
+
+	/**
+	 * @param initialCapacity
+	 *            expected number of values
+	 */
+	public DoubleColumn(int initialCapacity) {
+		values = new double[Math.max(initialCapacity, 0)];
+	}
+
+	public void add(double value) {
+		if (size == values.length) {
+			values = Arrays.copyOf(values, Math.max(2 * size, 16));
+		}
+		values[size++] = value;
+	}
+
+	public double get(int i) {
+		return values[i];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the values added so far; the backing array if it is full, a
+	 *         trimmed copy otherwise
+	 */
+	public double[] toArray() {
+		return size == values.length ? values : Arrays.copyOf(values, size);
+	}
+}
@@ -0,0 +1,140 @@
+/*-
+ * #%L
+ * A collection of plugins developed at the FMI Basel.
+ * %%
+ * Copyright (C) 2016 - 2024 FMI Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+package ch.fmi.util;
+
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import ij.ImagePlus;
+import ij.gui.Roi;
+import ij.plugin.filter.ThresholdToSelection;
+import ij.process.ImageProcessor;
+
+/**
+ * Cache of the ROIs converted from masks by thresholding ({@code >= 1}) and
+ * {@link ThresholdToSelection}.
+ * <p>
+ * Entries are keyed by a murmur3 hash of the thresholded mask pixels, so the
+ * same mask passed to several commands (or as different image instances) is
+ * converted only once. The cache is bounded by the total number of ROI
+ * vertices and evicts the least recently used entries first.
+ * </p>
+ */
+public class MaskRoiCache {
+
+	/** Default maximum total number of cached ROI vertices */
+	public static final long DEFAULT_MAX_VERTICES = 2_000_000;
+
+	private static final MaskRoiCache SHARED = new MaskRoiCache(
+			DEFAULT_MAX_VERTICES);
+
+	private final Cache<HashCode, Optional<Roi>> cache;
+
+	/**
+	 * @param maxVertices
+	 *            maximum total number of vertices of the cached ROIs
+	 */
+	public MaskRoiCache(long maxVertices) {
+		cache = CacheBuilder.newBuilder() //
+				.maximumWeight(maxVertices) //
+				.weigher((HashCode key, Optional<Roi> roi) -> roi.map(
+						MaskRoiCache::vertexCount).orElse(1)) //
+				.recordStats() //
+				.build();
+	}
+
+	/**
+	 * @return the cache shared by the TrackMate commands
+	 */
+	public static MaskRoiCache shared() {
+		return SHARED;
+	}
+
+	/**
+	 * @param mask
+	 *            mask image; only its current processor is used
+	 * @return a copy of the ROI of the foreground pixels of {@code mask}, or
+	 *         {@code null} if it has none
+	 */
+	public Roi get(ImagePlus mask) {
+		try {
+			Optional<Roi> roi = cache.get(hash(mask.getProcessor()), () -> {
+				mask.getProcessor().setThreshold(1.0, Double.POSITIVE_INFINITY,
+						ImageProcessor.NO_LUT_UPDATE);
+				return Optional.ofNullable(ThresholdToSelection.run(mask));
+			});
+			// ImagePlus.setRoi attaches the ROI to the image, don't share it
+			return roi.map(r -> (Roi) r.clone()).orElse(null);
+		} catch (ExecutionException exc) {
+			throw new RuntimeException("Mask conversion failed.", exc.getCause());
+		}
+	}
+
+	public CacheStats getStats() {
+		return cache.stats();
+	}
+
+	/**
+	 * @return a summary of the hit/miss counters, for logging
+	 */
+	public String getStatsMessage() {
+		CacheStats stats = cache.stats();
+		return "Mask ROI cache: " + stats.hitCount() + " hits, " +
+				stats.missCount() + " misses, " + cache.size() + " entries";
+	}
+
+	private static int vertexCount(Roi roi) {
+		return Math.max(roi.getFloatPolygon().npoints, 1);
+	}
+
+	private static HashCode hash(ImageProcessor ip) {
+		int width = ip.getWidth();
+		int height = ip.getHeight();
+		Hasher hasher = Hashing.murmur3_128().newHasher() //
+				.putInt(width) //
+				.putInt(height);
+		// pack the thresholded pixels into 64-bit words
+		long word = 0;
+		int nBits = 0;
+		for (int i = 0; i < width * height; i++) {
+			if (ip.getf(i) >= 1.0f) {
+				word |= 1L << nBits;
+			}
+			if (++nBits == 64) {
+				hasher.putLong(word);
+				word = 0;
+				nBits = 0;
+			}
+		}
+		if (nBits > 0) {
+			hasher.putLong(word);
+		}
+		return hasher.hash();
+	}
+}
@@ -0,0 +1,86 @@
+/*-
+ * #%L
+ * A collection of plugins developed at the FMI Basel.
+ * %%
+ * Copyright (C) 2016 - 2024 FMI Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+package ch.fmi.util;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * Helpers to run independent tasks on a bounded number of threads.
+ */
+public class Parallel {
+	private Parallel() {
+		// prevent instantiation of static utility class
+	}
+
+	/**
+	 * @return the number of processors available to the JVM
+	 */
+	public static int availableThreads() {
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * Run {@code task} for every index in {@code [0, n)}, using a dedicated
+	 * {@link ForkJoinPool} with at most {@code numThreads} threads. Runs
+	 * sequentially in the calling thread if {@code numThreads <= 1}.
+	 * <p>
+	 * Unchecked exceptions thrown by {@code task} are rethrown in the calling
+	 * thread.
+	 * </p>
+	 *
+	 * @param n
+	 *            number of tasks
+	 * @param numThreads
+	 *            maximum number of threads
+	 * @param task
+	 *            task to run for each index
+	 */
+	public static void forEach(int n, int numThreads, IntConsumer task) {
+		if (numThreads <= 1 || n <= 1) {
+			for (int i = 0; i < n; i++) {
+				task.accept(i);
+			}
+			return;
+		}
+		ForkJoinPool pool = new ForkJoinPool(Math.min(numThreads, n));
+		try {
+			pool.submit(() -> IntStream.range(0, n).parallel().forEach(task)).get();
+		} catch (InterruptedException exc) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while waiting for parallel tasks.", exc);
+		} catch (ExecutionException exc) {
+			Throwable cause = exc.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new RuntimeException(cause);
+		} finally {
+			pool.shutdown();
+		}
+	}
+}
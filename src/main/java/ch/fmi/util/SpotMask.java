@@ -0,0 +1,115 @@
+/*-
+ * #%L
+ * A collection of plugins developed at the FMI Basel.
+ * %%
+ * Copyright (C) 2016 - 2024 FMI Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+package ch.fmi.util;
+
+import java.util.BitSet;
+
+import fiji.plugin.trackmate.Settings;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotCollection;
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+
+/**
+ * Bitmap of the foreground ({@code >= 1}) pixels of a 2D mask, to filter
+ * detected spots by a per-spot pixel lookup instead of a polygon ROI.
+ */
+public class SpotMask {
+
+	private final int width;
+	private final int height;
+	private final BitSet bits;
+
+	// bounding box of the foreground
+	private int xMin;
+	private int xMax = -1;
+	private int yMin;
+	private int yMax = -1;
+
+	/**
+	 * @param mask
+	 *            mask image; only its current processor is used
+	 */
+	public SpotMask(ImagePlus mask) {
+		ImageProcessor ip = mask.getProcessor();
+		width = ip.getWidth();
+		height = ip.getHeight();
+		bits = new BitSet(width * height);
+		xMin = width;
+		yMin = height;
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				if (ip.getf(x, y) >= 1.0f) {
+					bits.set(y * width + x);
+					xMin = Math.min(xMin, x);
+					xMax = Math.max(xMax, x);
+					yMin = Math.min(yMin, y);
+					yMax = Math.max(yMax, y);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return {@code true} if pixel {@code (x, y)} is foreground
+	 */
+	public boolean contains(long x, long y) {
+		return x >= 0 && y >= 0 && x < width && y < height
+				&& bits.get((int) (y * width + x));
+	}
+
+	/**
+	 * Restrict the crop region of {@code settings} to the bounding box of the
+	 * foreground, so that detection skips the background.
+	 */
+	public void crop(Settings settings) {
+		if (xMax < 0) {
+			// empty mask, all spots get filtered anyway
+			return;
+		}
+		settings.xstart = Math.max(settings.xstart, xMin);
+		settings.xend = Math.max(settings.xstart, Math.min(settings.xend, xMax));
+		settings.ystart = Math.max(settings.ystart, yMin);
+		settings.yend = Math.max(settings.ystart, Math.min(settings.yend, yMax));
+	}
+
+	/**
+	 * @param spots
+	 *            detected spots
+	 * @param dx
+	 *            pixel width of the detection image
+	 * @param dy
+	 *            pixel height of the detection image
+	 * @return the spots whose rounded pixel position is foreground
+	 */
+	public SpotCollection filter(SpotCollection spots, double dx, double dy) {
+		SpotCollection filtered = new SpotCollection();
+		for (Spot spot : spots.iterable(false)) {
+			long x = Math.round(spot.getDoublePosition(0) / dx);
+			long y = Math.round(spot.getDoublePosition(1) / dy);
+			if (contains(x, y)) {
+				filtered.add(spot, spot.getFeature(Spot.FRAME).intValue());
+			}
+		}
+		return filtered;
+	}
+}
@@ -0,0 +1,209 @@
+/*-
+ * #%L
+ * A collection of plugins developed at the FMI Basel.
+ * %%
+ * Copyright (C) 2016 - 2024 FMI Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+package ch.fmi.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Settings;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotCollection;
+import fiji.plugin.trackmate.TrackMate;
+import fiji.plugin.trackmate.detection.DetectorKeys;
+
+/**
+ * Spot detection on overlapping tiles of the crop region of a TrackMate
+ * {@link Settings}, for fields of view too large to hand to the detector at
+ * once.
+ * <p>
+ * The crop region is partitioned into core tiles of at most {@code tileSize}
+ * pixels per spatial dimension; by default the core size is derived from the
+ * spot radius as {@value #MARGINS_PER_TILE} tile margins, which keeps the
+ * overlap a small fraction of each tile. Each tile is detected (for all
+ * frames) on the core extended by a margin of {@value #MARGIN_RADII} spot
+ * radii (plus one pixel), so spots
+ * near the core border see the same neighbourhood as without tiling. A spot is
+ * kept only by the tile whose core contains its (rounded) pixel position,
+ * which removes the duplicates detected in the overlap zones.
+ * </p>
+ * <p>
+ * Only detection is run per tile; compute spot features and filters on the
+ * merged collection, e.g. with {@code model.setSpots(getSpots(), false)}
+ * followed by {@link TrackMate#computeSpotFeatures(boolean)}.
+ * </p>
+ */
+public class TiledSpotDetection {
+
+	/** Tile margin, in spot radii */
+	public static final double MARGIN_RADII = 3.0;
+
+	/** Default core tile size, in tile margins */
+	public static final int MARGINS_PER_TILE = 32;
+
+	private final Settings settings;
+	private final int tileSize;
+	private int numThreads = Parallel.availableThreads();
+
+	private SpotCollection spots;
+	private int numTiles;
+	private String errorMessage;
+
+	/**
+	 * @param settings
+	 *            detection settings, including image, crop region and detector
+	 * @param tileSize
+	 *            maximum core tile size (in pixels), or 0 to derive it from
+	 *            the spot radius
+	 */
+	public TiledSpotDetection(Settings settings, int tileSize) {
+		if (tileSize < 0) {
+			throw new IllegalArgumentException("Tile size must not be negative.");
+		}
+		this.settings = settings;
+		this.tileSize = tileSize;
+	}
+
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
+
+	/**
+	 * Detect spots on all tiles, in parallel.
+	 *
+	 * @return {@code true} if detection succeeded on every tile
+	 */
+	public boolean process() {
+		spots = null;
+		errorMessage = null;
+
+		double radius = ((Number) settings.detectorSettings.get(
+				DetectorKeys.KEY_RADIUS)).doubleValue();
+		int[] start = { settings.xstart, settings.ystart, settings.zstart };
+		int[] end = { settings.xend, settings.yend, settings.zend };
+		double[] calibration = { settings.dx, settings.dy, settings.dz };
+
+		int[] nTiles = new int[3];
+		int[] margin = new int[3];
+		int[] coreSize = new int[3];
+		numTiles = 1;
+		for (int d = 0; d < 3; d++) {
+			margin[d] = (int) Math.ceil(MARGIN_RADII * radius / calibration[d]) + 1;
+			coreSize[d] = tileSize > 0 ? tileSize : MARGINS_PER_TILE * margin[d];
+			nTiles[d] = (end[d] - start[d]) / coreSize[d] + 1;
+			numTiles *= nTiles[d];
+		}
+
+		List<List<Spot>> tileSpots = new ArrayList<>(numTiles);
+		String[] tileErrors = new String[numTiles];
+		for (int i = 0; i < numTiles; i++) {
+			tileSpots.add(null);
+		}
+		Parallel.forEach(numTiles, numThreads, i -> {
+			int[] coreStart = new int[3];
+			int[] coreEnd = new int[3];
+			// cores at the crop border also own the subpixel positions beyond it
+			long[] ownStart = new long[3];
+			long[] ownEnd = new long[3];
+			int index = i;
+			for (int d = 0; d < 3; d++) {
+				coreStart[d] = start[d] + (index % nTiles[d]) * coreSize[d];
+				coreEnd[d] = Math.min(coreStart[d] + coreSize[d] - 1, end[d]);
+				ownStart[d] = coreStart[d] == start[d] ? Long.MIN_VALUE : coreStart[d];
+				ownEnd[d] = coreEnd[d] == end[d] ? Long.MAX_VALUE : coreEnd[d];
+				index /= nTiles[d];
+			}
+
+			Settings tileSettings = settings.copyOn(settings.imp);
+			tileSettings.xstart = Math.max(coreStart[0] - margin[0], start[0]);
+			tileSettings.xend = Math.min(coreEnd[0] + margin[0], end[0]);
+			tileSettings.ystart = Math.max(coreStart[1] - margin[1], start[1]);
+			tileSettings.yend = Math.min(coreEnd[1] + margin[1], end[1]);
+			tileSettings.zstart = Math.max(coreStart[2] - margin[2], start[2]);
+			tileSettings.zend = Math.min(coreEnd[2] + margin[2], end[2]);
+			tileSettings.tstart = settings.tstart;
+			tileSettings.tend = settings.tend;
+
+			Model tileModel = new Model();
+			TrackMate trackmate = new TrackMate(tileModel, tileSettings);
+			trackmate.setNumThreads(1);
+			if (!trackmate.execDetection()) {
+				tileErrors[i] = trackmate.getErrorMessage();
+				return;
+			}
+
+			List<Spot> owned = new ArrayList<>();
+			for (Spot spot : tileModel.getSpots().iterable(false)) {
+				if (isInside(spot, calibration, ownStart, ownEnd)) {
+					owned.add(spot);
+				}
+			}
+			tileSpots.set(i, owned);
+		});
+
+		for (int i = 0; i < numTiles; i++) {
+			if (tileErrors[i] != null) {
+				errorMessage = "Detection failed on tile " + i + ": " + tileErrors[i];
+				return false;
+			}
+		}
+
+		// merge in tile order, for reproducible spot order
+		spots = new SpotCollection();
+		for (List<Spot> owned : tileSpots) {
+			for (Spot spot : owned) {
+				spots.add(spot, spot.getFeature(Spot.FRAME).intValue());
+			}
+		}
+		return true;
+	}
+
+	private static boolean isInside(Spot spot, double[] calibration,
+			long[] ownStart, long[] ownEnd) {
+		for (int d = 0; d < 3; d++) {
+			long pixel = Math.round(spot.getDoublePosition(d) / calibration[d]);
+			if (pixel < ownStart[d] || pixel > ownEnd[d]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the merged, de-duplicated spots of the last {@link #process()}
+	 *         call, or {@code null} if it failed
+	 */
+	public SpotCollection getSpots() {
+		return spots;
+	}
+
+	/**
+	 * @return the number of tiles of the last {@link #process()} call
+	 */
+	public int getNumTiles() {
+		return numTiles;
+	}
+
+	public String getErrorMessage() {
+		return errorMessage;
+	}
+}
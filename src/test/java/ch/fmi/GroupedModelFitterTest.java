@@ -0,0 +1,135 @@
+/*-
+ * #%L
+ * A collection of plugins developed at the FMI Basel.
+ * %%
+ * Copyright (C) 2016 - 2024 FMI Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+package ch.fmi;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.scijava.Context;
+import org.scijava.command.CommandModule;
+import org.scijava.command.CommandService;
+
+public class GroupedModelFitterTest {
+
+	private Context context;
+
+	@Before
+	public void initialize() {
+		context = new Context();
+	}
+
+	@After
+	public void disposeContext() {
+		if (context != null) {
+			context.dispose();
+			context = null;
+		}
+	}
+
+	@Test
+	public void test2DTranslationPerGroup() throws InterruptedException,
+		ExecutionException
+	{
+		// groups 7 and 3, interleaved; group 5 has a single point
+		double[] group = { 7, 3, 7, 3, 7, 3, 5 };
+		double[] x1 = { 0, 0, 1, 1, 1, 0, 0 };
+		double[] y1 = { 0, 0, 0, 0, 1, 1, 0 };
+		double[] x2 = { 2, -1, 3, 0, 3, -1, 0 };
+		double[] y2 = { 1, 4, 1, 4, 2, 5, 0 };
+
+		Map<String, Object> inputMap = new HashMap<>();
+		inputMap.put("transformType", ModelFitter.TRANSLATION);
+		inputMap.put("dim", ModelFitter.DIM2D);
+		inputMap.put("group", group);
+		inputMap.put("x1", x1);
+		inputMap.put("y1", y1);
+		inputMap.put("x2", x2);
+		inputMap.put("y2", y2);
+		inputMap.put("z1", x1); // dummy input
+		inputMap.put("z2", x1); // dummy input
+
+		CommandService commandService = context.getService(CommandService.class);
+		CommandModule module = commandService.run(GroupedModelFitter.class, true,
+			inputMap).get();
+
+		int[] groupIds = (int[]) module.getOutput("groupIds");
+		double[] affines = (double[]) module.getOutput("affines");
+		double[] costs = (double[]) module.getOutput("costs");
+		int[] inliers = (int[]) module.getOutput("inliers");
+
+		assertArrayEquals(new int[] { 3, 5, 7 }, groupIds);
+		assertArrayEquals(new int[] { 3, 1, 3 }, inliers);
+		assertArrayEquals("Group 3", new double[] { 1, 0, 0, -1, 0, 1, 0, 4, 0, 0, 1,
+			0 }, Arrays.copyOfRange(affines, 0, 12), 1e-6);
+		assertArrayEquals("Group 7", new double[] { 1, 0, 0, 2, 0, 1, 0, 1, 0, 0, 1,
+			0 }, Arrays.copyOfRange(affines, 24, 36), 1e-6);
+		assertEquals(0, costs[0], 1e-6);
+		assertEquals(0, costs[2], 1e-6);
+	}
+
+	@Test
+	public void testUnderdeterminedGroup() throws InterruptedException,
+		ExecutionException
+	{
+		// group 2 has too few points for an affine model
+		double[] group = { 1, 1, 1, 1, 2, 2 };
+		double[] x1 = { 0, 1, 0, 1, 0, 1 };
+		double[] y1 = { 0, 0, 1, 1, 0, 0 };
+		double[] x2 = { 1, 3, 1, 3, 0, 1 };
+		double[] y2 = { 0, 0, 1, 1, 0, 0 };
+
+		Map<String, Object> inputMap = new HashMap<>();
+		inputMap.put("transformType", ModelFitter.AFFINE);
+		inputMap.put("dim", ModelFitter.DIM2D);
+		inputMap.put("group", group);
+		inputMap.put("x1", x1);
+		inputMap.put("y1", y1);
+		inputMap.put("x2", x2);
+		inputMap.put("y2", y2);
+		inputMap.put("z1", x1); // dummy input
+		inputMap.put("z2", x1); // dummy input
+
+		CommandService commandService = context.getService(CommandService.class);
+		CommandModule module = commandService.run(GroupedModelFitter.class, true,
+			inputMap).get();
+
+		double[] affines = (double[]) module.getOutput("affines");
+		double[] costs = (double[]) module.getOutput("costs");
+		int[] inliers = (int[]) module.getOutput("inliers");
+
+		assertArrayEquals("Group 1", new double[] { 2, 0, 0, 1, 0, 1, 0, 0, 0, 0,
+			1, 0 }, Arrays.copyOfRange(affines, 0, 12), 1e-6);
+		assertTrue(Double.isNaN(affines[12]));
+		assertTrue(Double.isNaN(costs[1]));
+		assertEquals(0, inliers[1]);
+	}
+}
@@ -0,0 +1,131 @@
+/*-
+ * #%L
+ * A collection of plugins developed at the FMI Basel.
+ * %%
+ * Copyright (C) 2016 - 2024 FMI Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+package ch.fmi;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.scijava.Context;
+import org.scijava.command.CommandModule;
+import org.scijava.command.CommandService;
+
+import ch.fmi.registration.RegUtils;
+
+public class MeasureAberrationBatchTest {
+
+	private Context context;
+
+	@Before
+	public void initialize() {
+		context = new Context();
+	}
+
+	@After
+	public void disposeContext() {
+		if (context != null) {
+			context.dispose();
+			context = null;
+		}
+	}
+
+	@Test
+	public void testTwoFieldsThreeChannels() throws InterruptedException, ExecutionException {
+		int nFovs = 2, nChannels = 3, nBeads = 30;
+		int n = nFovs * nChannels * nBeads;
+		double[] fov = new double[n];
+		double[] channel = new double[n];
+		double[] x = new double[n];
+		double[] y = new double[n];
+		double[] z = new double[n];
+
+		Random random = new Random(42);
+		int i = 0;
+		for (int f = 0; f < nFovs; f++) {
+			double[][] beads = new double[nBeads][3];
+			for (double[] bead : beads) {
+				bead[0] = 200 * random.nextDouble();
+				bead[1] = 200 * random.nextDouble();
+				bead[2] = 20 * random.nextDouble();
+			}
+			for (int c = 0; c < nChannels; c++) {
+				for (double[] bead : beads) {
+					fov[i] = f + 1;
+					channel[i] = c;
+					x[i] = bead[0] + 0.5 * c;
+					y[i] = bead[1] - 0.3 * c;
+					z[i] = bead[2] + 0.2 * c;
+					i++;
+				}
+			}
+		}
+
+		Map<String, Object> inputMap = new HashMap<>();
+		inputMap.put("transformType", RegUtils.TRANSLATION);
+		inputMap.put("dim", RegUtils.DIM3D);
+		inputMap.put("fov", fov);
+		inputMap.put("channel", channel);
+		inputMap.put("x", x);
+		inputMap.put("y", y);
+		inputMap.put("z", z);
+
+		CommandService commandService = context.getService(CommandService.class);
+		CommandModule module = commandService.run(MeasureAberrationBatch.class, true, inputMap).get();
+
+		int[] pairFov = (int[]) module.getOutput("pairFov");
+		int[] pairChannel1 = (int[]) module.getOutput("pairChannel1");
+		int[] pairChannel2 = (int[]) module.getOutput("pairChannel2");
+		int[] pairInliers = (int[]) module.getOutput("pairInliers");
+		double[] pairAffines = (double[]) module.getOutput("pairAffines");
+		assertArrayEquals(new int[] { 1, 1, 1, 2, 2, 2 }, pairFov);
+		assertArrayEquals(new int[] { 0, 0, 1, 0, 0, 1 }, pairChannel1);
+		assertArrayEquals(new int[] { 1, 2, 2, 1, 2, 2 }, pairChannel2);
+		assertEquals(nBeads, pairInliers[0]);
+
+		// channel 1 -> channel 0 in both fields of view
+		double[] expected = { 1, 0, 0, -0.5, 0, 1, 0, 0.3, 0, 0, 1, -0.2 };
+		double[] affine = new double[12];
+		for (int row : new int[] { 0, 3 }) {
+			System.arraycopy(pairAffines, 12 * row, affine, 0, 12);
+			assertArrayEquals(expected, affine, 1e-6);
+		}
+
+		int[] pooledInliers = (int[]) module.getOutput("pooledInliers");
+		double[] pooledAffines = (double[]) module.getOutput("pooledAffines");
+		assertEquals(3, pooledInliers.length);
+		assertEquals(pairInliers[0] + pairInliers[3], pooledInliers[0]);
+		System.arraycopy(pooledAffines, 0, affine, 0, 12);
+		assertArrayEquals(expected, affine, 1e-6);
+
+		// channel 2 -> channel 0
+		System.arraycopy(pooledAffines, 12, affine, 0, 12);
+		assertArrayEquals(new double[] { 1, 0, 0, -1.0, 0, 1, 0, 0.6, 0, 0, 1, -0.4 }, affine, 1e-6);
+	}
+}
@@ -0,0 +1,111 @@
+/*-
+ * #%L
+ * A collection of plugins developed at the FMI Basel.
+ * %%
+ * Copyright (C) 2016 - 2024 FMI Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+package ch.fmi;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.scijava.Context;
+import org.scijava.command.CommandModule;
+import org.scijava.command.CommandService;
+
+import ch.fmi.registration.RegUtils;
+
+public class MeasureAberrationTest {
+
+	private Context context;
+
+	@Before
+	public void initialize() {
+		context = new Context();
+	}
+
+	@After
+	public void disposeContext() {
+		if (context != null) {
+			context.dispose();
+			context = null;
+		}
+	}
+
+	@Test
+	public void testTranslation() throws InterruptedException, ExecutionException {
+		testTranslation(false);
+	}
+
+	@Test
+	public void testTranslationKDTree() throws InterruptedException, ExecutionException {
+		testTranslation(true);
+	}
+
+	private void testTranslation(boolean kdTreeMatching) throws InterruptedException, ExecutionException {
+		int n = 40;
+		double[] x1 = new double[n], y1 = new double[n], z1 = new double[n];
+		double[] x2 = new double[n], y2 = new double[n], z2 = new double[n];
+		Random random = new Random(7);
+		for (int i = 0; i < n; i++) {
+			x1[i] = 200 * random.nextDouble();
+			y1[i] = 200 * random.nextDouble();
+			z1[i] = 20 * random.nextDouble();
+			x2[i] = x1[i] + 0.8;
+			y2[i] = y1[i] - 0.4;
+			z2[i] = z1[i] + 0.3;
+		}
+
+		Map<String, Object> inputMap = new HashMap<>();
+		inputMap.put("transformType", RegUtils.TRANSLATION);
+		inputMap.put("kdTreeMatching", kdTreeMatching);
+		inputMap.put("x1", x1);
+		inputMap.put("y1", y1);
+		inputMap.put("z1", z1);
+		inputMap.put("x2", x2);
+		inputMap.put("y2", y2);
+		inputMap.put("z2", z2);
+
+		CommandService commandService = context.getService(CommandService.class);
+		CommandModule module = commandService.run(MeasureAberration.class, true, inputMap).get();
+
+		int nRemaining = (int) module.getOutput("nRemaining");
+		double[] affine = (double[]) module.getOutput("affine");
+		double[] distances = (double[]) module.getOutput("distances");
+		double[] correctedDistances = (double[]) module.getOutput("correctedDistances");
+		double[] ix1 = (double[]) module.getOutput("ix1");
+		double[] cx1 = (double[]) module.getOutput("cx1");
+
+		assertEquals(n, nRemaining);
+		assertArrayEquals(new double[] { 1, 0, 0, -0.8, 0, 1, 0, 0.4, 0, 0, 1, -0.3 }, affine, 1e-4);
+		for (int i = 0; i < nRemaining; i++) {
+			assertEquals(Math.sqrt(0.8 * 0.8 + 0.4 * 0.4 + 0.3 * 0.3), distances[i], 1e-4);
+			assertEquals(0, correctedDistances[i], 1e-4);
+			assertEquals(ix1[i], cx1[i], 1e-4);
+		}
+	}
+}
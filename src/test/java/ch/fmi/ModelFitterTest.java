@@ -23,6 +23,7 @@
 package ch.fmi;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 
 import java.util.Arrays;
 import java.util.HashMap;
@@ -166,4 +167,93 @@ public class ModelFitterTest {
 
 		assertArrayEquals("Affine matrix", expected, result, 0.01);
 	}
+
+	@Test
+	public void test2DRobustTranslation() throws InterruptedException,
+		ExecutionException
+	{
+		// Translation by (3, -1), with two mis-paired points
+		double[] x1 = { 0, 10, 20, 30, 40, 50, 60, 70, 80, 90 };
+		double[] y1 = { 0, 5, 0, 5, 0, 5, 0, 5, 0, 5 };
+		double[] x2 = new double[x1.length];
+		double[] y2 = new double[x1.length];
+		for (int i = 0; i < x1.length; i++) {
+			x2[i] = x1[i] + 3;
+			y2[i] = y1[i] - 1;
+		}
+		x2[2] = 70;
+		y2[7] = 40;
+
+		Map<String, Object> inputMap = new HashMap<>();
+		inputMap.put("transformType", ModelFitter.TRANSLATION);
+		inputMap.put("dim", ModelFitter.DIM2D);
+		inputMap.put("x1", x1);
+		inputMap.put("y1", y1);
+		inputMap.put("x2", x2);
+		inputMap.put("y2", y2);
+		inputMap.put("z1", x1); // dummy input
+		inputMap.put("z2", x1); // dummy input
+		inputMap.put("robust", true);
+		inputMap.put("ransacIterations", 200);
+		inputMap.put("epsilon", 0.5);
+
+		// Fit Model
+		CommandService commandService = context.getService(CommandService.class);
+		CommandModule module = commandService.run(ModelFitter.class, true, inputMap)
+			.get();
+
+		// Compare
+		double[] expected = { //
+			1, 0, 0, 3, //
+			0, 1, 0, -1, //
+			0, 0, 1, 0 //
+		};
+		double[] result = (double[]) module.getOutput("affine");
+		assertArrayEquals("Affine matrix", expected, result, 1e-6);
+
+		boolean[] inlierMask = (boolean[]) module.getOutput("inlierMask");
+		double[] residuals = (double[]) module.getOutput("residuals");
+		for (int i = 0; i < x1.length; i++) {
+			boolean outlier = i == 2 || i == 7;
+			assertEquals("Inlier " + i, !outlier, inlierMask[i]);
+			if (!outlier) assertEquals("Residual " + i, 0, residuals[i], 1e-6);
+		}
+	}
+
+	@Test
+	public void test2DWeightedTranslation() throws InterruptedException,
+		ExecutionException
+	{
+		// the third pair is off by (3, 0) and has zero weight
+		double[] x1 = { 0, 1, 0 };
+		double[] y1 = { 0, 0, 1 };
+		double[] x2 = { 1, 2, 4 };
+		double[] y2 = { 0, 0, 1 };
+		double[] weights = { 1, 2, 0 };
+
+		Map<String, Object> inputMap = new HashMap<>();
+		inputMap.put("transformType", ModelFitter.TRANSLATION);
+		inputMap.put("dim", ModelFitter.DIM2D);
+		inputMap.put("x1", x1);
+		inputMap.put("y1", y1);
+		inputMap.put("x2", x2);
+		inputMap.put("y2", y2);
+		inputMap.put("z1", x1); // dummy input
+		inputMap.put("z2", x1); // dummy input
+		inputMap.put("weights", weights);
+
+		// Fit Model
+		CommandService commandService = context.getService(CommandService.class);
+		CommandModule module = commandService.run(ModelFitter.class, true, inputMap)
+			.get();
+
+		// Compare
+		double[] expected = { //
+			1, 0, 0, 1, //
+			0, 1, 0, 0, //
+			0, 0, 1, 0 //
+		};
+		double[] result = (double[]) module.getOutput("affine");
+		assertArrayEquals("Affine matrix", expected, result, 1e-9);
+	}
 }
@@ -23,7 +23,9 @@
 package ch.fmi;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
 
 import java.util.Arrays;
 import java.util.HashMap;
@@ -203,6 +205,64 @@ public class PointCloudSeriesRegistrationPrematchedTest {
 		assertArrayEquals("Costs", expectedCosts , costs , 0.000001);
 	}
 
+	@Test
+	public void testWarmStart3D() throws InterruptedException, ExecutionException
+	{
+		double[] x = { //
+			0, 0, 1, 1, 1, 2, //
+			1, 2.1, 2, 0.9, 2, 3, //
+			2, 3, 2, 3, 3, 4 //
+		};
+		double[] y = { //
+			0, 1, 1, 0, 1, 2, //
+			1, 2, 0.9, 2, 2.1, 3, //
+			1, 2, 2, 1, 2, 3 //
+		};
+		double[] z = { //
+			0, 1, 0, 1, 1, 2, //
+			1, 1, 2, 2, 2, 3, //
+			0, 0, 1, 1, 1, 2 //
+		};
+		double[] frame = { //
+			0, 0, 0, 0, 0, 0,//
+			1, 1, 1, 1, 1, 1, //
+			3, 3, 3, 3, 3, 3 //
+		};
+		double[] trackIDs = { //
+				1, 42, 75, 57, 999, 7, //
+				1, 75, 57, 42, 999, 7, //
+				1, 75, 42, 57, 999, 7 //
+		};
+
+		Map<String, Object> inputMap = new HashMap<>();
+		inputMap.put("transformType", RegUtils.TRANSLATION);
+		inputMap.put("dim", RegUtils.DIM3D);
+		inputMap.put("regularize", false);
+		inputMap.put("regularizationType", RegUtils.TRANSLATION);
+		inputMap.put("lambda", 0.1);
+		inputMap.put("xCoords", x);
+		inputMap.put("yCoords", y);
+		inputMap.put("zCoords", z);
+		inputMap.put("frame", frame);
+		inputMap.put("trackIDs", trackIDs);
+		inputMap.put("range", 3);
+
+		// Cold start
+		CommandModule module = commandService.run(PointCloudSeriesRegistrationPrematched.class, true, inputMap).get();
+		double[] flatModels = (double[]) module.getOutput("flatModels");
+		int coldIterations = (int) module.getOutput("nIterations");
+		double[] iterationErrors = (double[]) module.getOutput("iterationErrors");
+		assertEquals("Iteration errors", coldIterations, iterationErrors.length);
+
+		// Warm start from the previous solution
+		inputMap.put("initialModels", flatModels);
+		module = commandService.run(PointCloudSeriesRegistrationPrematched.class, true, inputMap).get();
+		double[] warmModels = (double[]) module.getOutput("flatModels");
+		System.out.println(Arrays.toString(warmModels));
+		assertArrayEquals("Models", flatModels, warmModels, 0.01);
+		assertTrue("Iterations", (int) module.getOutput("nIterations") <= coldIterations);
+	}
+
 	@Test
 	public void testWrongInputs() {
 		double[] x = { 0, 0 };
@@ -229,5 +289,99 @@ public class PointCloudSeriesRegistrationPrematchedTest {
 				PointCloudSeriesRegistrationPrematched.class, true, inputMap).get());
 	}
 
-	
+	@Test
+	public void testBlocksWithDefaultOverlap() throws InterruptedException, ExecutionException
+	{
+		int nFrames = 14;
+		Map<String, Object> inputMap = driftingSeries(nFrames, 8);
+		// the default overlap (10) is clamped to half the block size
+		inputMap.put("blockSize", 10);
+
+		CommandModule module = commandService.run(PointCloudSeriesRegistrationPrematched.class, true, inputMap).get();
+
+		double[] expectedModels = new double[12 * nFrames];
+		for (int t = 0; t < nFrames; t++) {
+			double[] m = { 1, 0, 0, -0.5 * t, 0, 1, 0, 0.2 * t, 0, 0, 1, -0.1 * t };
+			System.arraycopy(m, 0, expectedModels, 12 * t, 12);
+		}
+		double[] flatModels = (double[]) module.getOutput("flatModels");
+		assertArrayEquals("Models", expectedModels, flatModels, 1e-4);
+	}
+
+	@Test
+	public void testWeightsOfDisplacedTrack() throws InterruptedException, ExecutionException
+	{
+		int nFrames = 6;
+		int nBeads = 8;
+		Map<String, Object> inputMap = driftingSeries(nFrames, nBeads);
+		CommandModule module = commandService.run(PointCloudSeriesRegistrationPrematched.class, true, inputMap).get();
+		double[] expectedModels = (double[]) module.getOutput("flatModels");
+
+		// add a track that jumps by 4 in x from frame 3 on
+		Map<String, Object> displacedMap = driftingSeries(nFrames, nBeads + 1);
+		double[] x = (double[]) displacedMap.get("xCoords");
+		double[] trackIDs = (double[]) displacedMap.get("trackIDs");
+		double[] weights = new double[x.length];
+		for (int i = 0; i < x.length; i++) {
+			boolean displaced = i % (nBeads + 1) == nBeads;
+			if (displaced) {
+				trackIDs[i] = 100;
+				if (i / (nBeads + 1) >= 3) x[i] += 4;
+			}
+			weights[i] = displaced ? 0 : 1;
+		}
+		displacedMap.put("weights", weights);
+
+		// a zero weight ignores the displaced track
+		module = commandService.run(PointCloudSeriesRegistrationPrematched.class, true, displacedMap).get();
+		double[] flatModels = (double[]) module.getOutput("flatModels");
+		assertArrayEquals("Models with zero weight", expectedModels, flatModels, 1e-6);
+
+		// a unit weight pulls the later frames towards the displaced track
+		Arrays.fill(weights, 1);
+		module = commandService.run(PointCloudSeriesRegistrationPrematched.class, true, displacedMap).get();
+		flatModels = (double[]) module.getOutput("flatModels");
+		double maxDiff = 0;
+		for (int i = 0; i < flatModels.length; i++) {
+			maxDiff = Math.max(maxDiff, Math.abs(flatModels[i] - expectedModels[i]));
+		}
+		assertTrue("Models with unit weight", maxDiff > 1e-3);
+	}
+
+	/**
+	 * Inputs for a 3D translation registration of {@code nBeads} beads
+	 * drifting by (0.5, -0.2, 0.1) per frame.
+	 */
+	private static Map<String, Object> driftingSeries(int nFrames, int nBeads) {
+		int n = nFrames * nBeads;
+		double[] x = new double[n];
+		double[] y = new double[n];
+		double[] z = new double[n];
+		double[] frame = new double[n];
+		double[] trackIDs = new double[n];
+		for (int t = 0; t < nFrames; t++) {
+			for (int b = 0; b < nBeads; b++) {
+				int i = t * nBeads + b;
+				x[i] = 7 * b % 11 + 0.5 * t;
+				y[i] = 3 * b % 5 - 0.2 * t;
+				z[i] = b % 3 + 0.1 * t;
+				frame[i] = t;
+				trackIDs[i] = b;
+			}
+		}
+
+		Map<String, Object> inputMap = new HashMap<>();
+		inputMap.put("transformType", RegUtils.TRANSLATION);
+		inputMap.put("dim", RegUtils.DIM3D);
+		inputMap.put("regularize", false);
+		inputMap.put("regularizationType", RegUtils.TRANSLATION);
+		inputMap.put("lambda", 0.1);
+		inputMap.put("xCoords", x);
+		inputMap.put("yCoords", y);
+		inputMap.put("zCoords", z);
+		inputMap.put("frame", frame);
+		inputMap.put("trackIDs", trackIDs);
+		inputMap.put("range", 3);
+		return inputMap;
+	}
 }
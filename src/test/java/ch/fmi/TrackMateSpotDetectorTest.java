@@ -0,0 +1,156 @@
+/*-
+ * #%L
+ * A collection of plugins developed at the FMI Basel.
+ * %%
+ * Copyright (C) 2016 - 2024 FMI Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+package ch.fmi;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.scijava.Context;
+import org.scijava.command.CommandModule;
+import org.scijava.command.CommandService;
+
+import ij.ImagePlus;
+
+public class TrackMateSpotDetectorTest {
+
+	private Context context;
+
+	@Before
+	public void initialize() {
+		context = new Context();
+	}
+
+	@After
+	public void disposeContext() {
+		if (context != null) {
+			context.dispose();
+			context = null;
+		}
+	}
+
+	private ImagePlus createImage() {
+		RandomAccessibleInterval<UnsignedByteType> img = ArrayImgs.unsignedBytes(16,
+			16, 1, 1, 5);
+		img.getAt(5, 7, 0, 0, 0).setReal(192);
+		img.getAt(5, 6, 0, 0, 1).setReal(186);
+		img.getAt(6, 6, 0, 0, 2).setReal(180);
+		img.getAt(6, 7, 0, 0, 3).setReal(174);
+		img.getAt(5, 7, 0, 0, 4).setReal(168);
+		return ImageJFunctions.wrapUnsignedByte(img, "Test Image");
+	}
+
+	private CommandModule detect(boolean streaming) throws InterruptedException,
+		ExecutionException
+	{
+		return detect(streaming, false, 4);
+	}
+
+	private CommandModule detect(boolean streaming, boolean tiled, int tileSize)
+		throws InterruptedException, ExecutionException
+	{
+		CommandService commandService = context.getService(CommandService.class);
+		Map<String, Object> inputMap = new HashMap<>();
+		inputMap.put("imp", createImage());
+		inputMap.put("streaming", streaming);
+		inputMap.put("tiled", tiled);
+		inputMap.put("tileSize", tileSize);
+		inputMap.put("chunkSize", 2);
+		inputMap.put("numThreads", 2);
+		return commandService.run(TrackMateSpotDetector.class, false, inputMap)
+			.get();
+	}
+
+	@Test
+	public void testStreamingDetection() throws InterruptedException,
+		ExecutionException
+	{
+		CommandModule module = detect(false);
+		CommandModule streamed = detect(true);
+
+		assertEquals(5, (int) module.getOutput("nSpotsFound"));
+		assertEquals(5, (int) streamed.getOutput("nSpotsFound"));
+
+		// chunks are emitted in frame order
+		double[] frame = (double[]) streamed.getOutput("frame");
+		double[] frame1 = { 0, 1, 2, 3, 4 };
+		assertArrayEquals(frame1, frame, 0.01);
+
+		double[] x = (double[]) module.getOutput("x");
+		double[] xStreamed = (double[]) streamed.getOutput("x");
+		double[] y = (double[]) module.getOutput("y");
+		double[] yStreamed = (double[]) streamed.getOutput("y");
+		double[] moduleFrame = (double[]) module.getOutput("frame");
+		double[][] sorted = sortByFrame(moduleFrame, x, y);
+		assertArrayEquals(sorted[0], xStreamed, 0.0001);
+		assertArrayEquals(sorted[1], yStreamed, 0.0001);
+	}
+
+	@Test
+	public void testTiledDetection() throws InterruptedException,
+		ExecutionException
+	{
+		CommandModule module = detect(false);
+		// 4x4 tiles: every tile overlaps the spots, which must be kept once
+		CommandModule tiled = detect(false, true, 4);
+
+		assertEquals(5, (int) tiled.getOutput("nSpotsFound"));
+		// tile size derived from the spot radius
+		assertEquals(5, (int) detect(false, true, 0).getOutput("nSpotsFound"));
+
+		double[][] sorted = sortByFrame((double[]) module.getOutput("frame"),
+			(double[]) module.getOutput("x"), (double[]) module.getOutput("y"));
+		double[][] sortedTiled = sortByFrame((double[]) tiled.getOutput("frame"),
+			(double[]) tiled.getOutput("x"), (double[]) tiled.getOutput("y"));
+		assertArrayEquals(sorted[0], sortedTiled[0], 0.0001);
+		assertArrayEquals(sorted[1], sortedTiled[1], 0.0001);
+	}
+
+	private static double[][] sortByFrame(double[] frame, double[] x,
+		double[] y)
+	{
+		Integer[] order = new Integer[frame.length];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, (a, b) -> Double.compare(frame[a], frame[b]));
+		double[][] sorted = new double[2][frame.length];
+		for (int i = 0; i < order.length; i++) {
+			sorted[0][i] = x[order[i]];
+			sorted[1][i] = y[order[i]];
+		}
+		return sorted;
+	}
+}
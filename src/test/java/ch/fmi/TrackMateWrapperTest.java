@@ -25,6 +25,7 @@ package ch.fmi;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
 import java.util.Arrays;
 import java.util.HashMap;
@@ -44,6 +45,7 @@ import org.scijava.command.CommandModule;
 import org.scijava.command.CommandService;
 
 import ij.ImagePlus;
+import ij.process.ByteProcessor;
 
 public class TrackMateWrapperTest {
 
@@ -118,4 +120,98 @@ public class TrackMateWrapperTest {
 		assertArrayEquals(t1, t, 0.01);
 		assertArrayEquals(frame1, frame, 0.01);
 	}
+
+	@Test
+	public void testTiledTrackMate() throws InterruptedException,
+		ExecutionException
+	{
+		CommandService commandService = context.getService(CommandService.class);
+
+		// Prepare
+		RandomAccessibleInterval<UnsignedByteType> img = ArrayImgs.unsignedBytes(16,
+			16, 1, 1, 5);
+		img.getAt(5, 7, 0, 0, 0).setReal(192);
+		img.getAt(5, 6, 0, 0, 1).setReal(186);
+		img.getAt(6, 6, 0, 0, 2).setReal(180);
+		img.getAt(6, 7, 0, 0, 3).setReal(174);
+		img.getAt(5, 7, 0, 0, 4).setReal(168);
+		ImagePlus imp = ImageJFunctions.wrapUnsignedByte(img, "Test Image");
+		Map<String, Object> inputMap = new HashMap<>();
+		inputMap.put("imp", imp);
+		inputMap.put("frameInterval", 0.5);
+		inputMap.put("tiled", true);
+		inputMap.put("tileSize", 6);
+
+		// Run TrackMateWrapper
+		CommandModule module = commandService.run(TrackMateWrapper.class, false,
+			inputMap).get();
+
+		// Compare: spots in the tile overlaps are reported once
+		assertEquals(5, (int) module.getOutput("nSpotsFound"));
+		assertEquals(1, (int) module.getOutput("nTracksFound"));
+
+		double[] frame = (double[]) module.getOutput("frame");
+		Arrays.sort(frame);
+		double[] frame1 = { 0, 1, 2, 3, 4 };
+		assertArrayEquals(frame1, frame, 0.01);
+	}
+
+	@Test
+	public void testMaskedTrackMate() throws InterruptedException,
+		ExecutionException
+	{
+		CommandService commandService = context.getService(CommandService.class);
+
+		// Prepare: one track inside the mask, one outside of it
+		RandomAccessibleInterval<UnsignedByteType> img = ArrayImgs.unsignedBytes(16,
+			16, 1, 1, 5);
+		img.getAt(5, 7, 0, 0, 0).setReal(192);
+		img.getAt(5, 6, 0, 0, 1).setReal(186);
+		img.getAt(6, 6, 0, 0, 2).setReal(180);
+		img.getAt(6, 7, 0, 0, 3).setReal(174);
+		img.getAt(5, 7, 0, 0, 4).setReal(168);
+		for (int f = 0; f < 5; f++) {
+			img.getAt(12, 10, 0, 0, f).setReal(160);
+		}
+		ImagePlus imp = ImageJFunctions.wrapUnsignedByte(img, "Test Image");
+
+		// square around the first track and a strip along the bottom, so the
+		// second track lies within the bounding box but outside the mask
+		ByteProcessor ip = new ByteProcessor(16, 16);
+		for (int y = 0; y < 16; y++) {
+			for (int x = 0; x < 16; x++) {
+				if ((x >= 1 && x <= 9 && y >= 1 && y <= 9) || (x >= 1 && x <= 14 && y >= 14)) {
+					ip.set(x, y, 255);
+				}
+			}
+		}
+		ImagePlus mask = new ImagePlus("Mask", ip);
+
+		Map<String, Object> inputMap = new HashMap<>();
+		inputMap.put("imp", imp);
+		inputMap.put("frameInterval", 0.5);
+		inputMap.put("spotSize", 2.0);
+
+		// Without mask both tracks are found
+		CommandModule module = commandService.run(TrackMateWrapper.class, false,
+			inputMap).get();
+		assertEquals(10, (int) module.getOutput("nSpotsFound"));
+		assertEquals(2, (int) module.getOutput("nTracksFound"));
+
+		// With mask only the spots inside are kept
+		inputMap.put("mask", mask);
+		module = commandService.run(TrackMateWrapper.class, false, inputMap).get();
+		assertEquals(5, (int) module.getOutput("nSpotsFound"));
+		assertEquals(1, (int) module.getOutput("nTracksFound"));
+
+		double[] x = (double[]) module.getOutput("x");
+		double[] y = (double[]) module.getOutput("y");
+		double[] trackID = (double[]) module.getOutput("trackID");
+		assertEquals(5, x.length);
+		for (int i = 0; i < x.length; i++) {
+			assertTrue("Spot inside mask", mask.getProcessor().get((int) Math.round(x[i]),
+				(int) Math.round(y[i])) > 0);
+			assertEquals("Track ID", trackID[0], trackID[i], 0.0);
+		}
+	}
 }
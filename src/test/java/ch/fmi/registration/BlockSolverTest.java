@@ -0,0 +1,141 @@
+/*-
+ * #%L
+ * A collection of plugins developed at the FMI Basel.
+ * %%
+ * Copyright (C) 2016 - 2024 FMI Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+package ch.fmi.registration;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class BlockSolverTest {
+
+	@Test
+	public void testBlocksMatchDrift() {
+		int nFrames = 20;
+		int nBeads = 30;
+		Random random = new Random(42);
+		double[][] beads = new double[nBeads][3];
+		for (double[] bead : beads) {
+			for (int d = 0; d < 3; d++) {
+				bead[d] = 100 * random.nextDouble();
+			}
+		}
+
+		int n = nFrames * nBeads;
+		int[] frame = new int[n];
+		int[] trackIDs = new int[n];
+		double[] x = new double[n];
+		double[] y = new double[n];
+		double[] z = new double[n];
+		double[] expected = new double[12 * nFrames];
+		for (int t = 0; t < nFrames; t++) {
+			double dx = 0.5 * t;
+			double dy = -0.2 * t;
+			double dz = 0.1 * t * t;
+			for (int b = 0; b < nBeads; b++) {
+				int i = t * nBeads + b;
+				frame[i] = t;
+				trackIDs[i] = b;
+				x[i] = beads[b][0] + dx;
+				y[i] = beads[b][1] + dy;
+				z[i] = beads[b][2] + dz;
+			}
+			double[] m = { 1, 0, 0, -dx, 0, 1, 0, -dy, 0, 0, 1, -dz };
+			System.arraycopy(m, 0, expected, 12 * t, 12);
+		}
+
+		BlockSolver solver = new BlockSolver(6, 3, 2, TileOptimizer::new);
+		solver.solve(PointCloud.fromArrays(frame, x, y, z, trackIDs), 2,
+				RegUtils.suitableModel(RegUtils.DIM3D, RegUtils.TRANSLATION), RegUtils.DIM3D, null);
+
+		assertArrayEquals("Models", expected, solver.getFlatModels(), 1e-4);
+		assertEquals("Costs", nFrames, solver.getModelCosts().length);
+		assertEquals("Blocks", 6, solver.getBlockErrors().length);
+	}
+
+	@Test
+	public void testBlocksMatchSingleConfiguration() {
+		assertBlocksMatchSingleConfiguration(8, 3);
+	}
+
+	@Test
+	public void testLargestOverlapMatchesSingleConfiguration() {
+		assertBlocksMatchSingleConfiguration(8, 4);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testOverlapTooLarge() {
+		new BlockSolver(5, 5, 1, TileOptimizer::new);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testOverlapAboveHalfBlockSize() {
+		new BlockSolver(8, 5, 1, TileOptimizer::new);
+	}
+
+	/**
+	 * Compare block-wise models with a single TileConfiguration over a
+	 * drifting series with localization noise.
+	 */
+	private static void assertBlocksMatchSingleConfiguration(int blockSize, int blockOverlap) {
+		int nFrames = 25;
+		int nBeads = 30;
+		Random random = new Random(7);
+		double[][] beads = new double[nBeads][3];
+		for (double[] bead : beads) {
+			for (int d = 0; d < 3; d++) {
+				bead[d] = 100 * random.nextDouble();
+			}
+		}
+
+		int n = nFrames * nBeads;
+		int[] frame = new int[n];
+		int[] trackIDs = new int[n];
+		double[] x = new double[n];
+		double[] y = new double[n];
+		double[] z = new double[n];
+		for (int t = 0; t < nFrames; t++) {
+			for (int b = 0; b < nBeads; b++) {
+				int i = t * nBeads + b;
+				frame[i] = t;
+				trackIDs[i] = b;
+				x[i] = beads[b][0] + 0.3 * t + 0.01 * random.nextGaussian();
+				y[i] = beads[b][1] - 0.02 * t * t + 0.01 * random.nextGaussian();
+				z[i] = beads[b][2] + 0.1 * t + 0.01 * random.nextGaussian();
+			}
+		}
+
+		RegistrationEngine engine = new RegistrationEngine(RegUtils.DIM3D,
+				RegUtils.suitableModel(RegUtils.DIM3D, RegUtils.TRANSLATION));
+		engine.setRange(2);
+		engine.registerPrematched(frame, x, y, z, trackIDs);
+
+		BlockSolver solver = new BlockSolver(blockSize, blockOverlap, 2, TileOptimizer::new);
+		solver.solve(PointCloud.fromArrays(frame, x, y, z, trackIDs), 2,
+				RegUtils.suitableModel(RegUtils.DIM3D, RegUtils.TRANSLATION), RegUtils.DIM3D, null);
+
+		assertArrayEquals("Models (overlap " + blockOverlap + ")", engine.getFlatModels(), solver.getFlatModels(),
+				0.02);
+	}
+}
@@ -0,0 +1,153 @@
+/*-
+ * #%L
+ * A collection of plugins developed at the FMI Basel.
+ * %%
+ * Copyright (C) 2016 - 2024 FMI Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+package ch.fmi.registration;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThrows;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import mpicbg.models.AffineModel3D;
+import mpicbg.models.IllDefinedDataPointsException;
+import mpicbg.models.NotEnoughDataPointsException;
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+import mpicbg.models.RigidModel3D;
+import mpicbg.models.SimilarityModel2D;
+import mpicbg.models.SimilarityModel3D;
+
+public class ClosedFormFitterTest {
+
+	// rotation by 0.7 rad about (1, 2, 3), scaled by 1.3, shifted far from the origin
+	private static final double[] SIMILARITY = { //
+			1.0161309260791482, -0.6278080694784888, 0.5131617376259232, 10000, //
+			0.7151523999156799, 1.0816391739070284, -0.09281024924326021, -5, //
+			-0.38214524197012745, 0.3548432405548198, 1.1908195869535312, 3 };
+
+	@Test
+	public void testExactSimilarity() {
+		Random random = new Random(1);
+		ClosedFormFitter fitter = new ClosedFormFitter(RegUtils.DIM3D, RegUtils.SIMILARITY);
+		for (int i = 0; i < 50; i++) {
+			double[] p = { 1e5 + 100 * random.nextDouble(), 100 * random.nextDouble(), 10 * random.nextDouble() };
+			double[] q = apply(SIMILARITY, p);
+			fitter.add(p[0], p[1], p[2], q[0], q[1], q[2]);
+		}
+		assertArrayEquals(SIMILARITY, fitter.fit(), 1e-6);
+	}
+
+	@Test
+	public void testNoisyFitsMatchModels() throws NotEnoughDataPointsException, IllDefinedDataPointsException {
+		Random random = new Random(2);
+		List<PointMatch> matches = new ArrayList<>();
+		ClosedFormFitter rigid = new ClosedFormFitter(RegUtils.DIM3D, RegUtils.RIGID);
+		ClosedFormFitter affine = new ClosedFormFitter(RegUtils.DIM3D, RegUtils.AFFINE);
+		for (int i = 0; i < 200; i++) {
+			double[] p = { 100 * random.nextDouble(), 100 * random.nextDouble(), 10 * random.nextDouble() };
+			double[] q = apply(SIMILARITY, p);
+			for (int d = 0; d < 3; d++) {
+				q[d] += random.nextGaussian();
+			}
+			matches.add(new PointMatch(new Point(p.clone()), new Point(q.clone())));
+			rigid.add(p[0], p[1], p[2], q[0], q[1], q[2]);
+			affine.add(p[0], p[1], p[2], q[0], q[1], q[2]);
+		}
+
+		RigidModel3D rigidModel = new RigidModel3D();
+		rigidModel.fit(matches);
+		assertArrayEquals(rigidModel.getMatrix(null), rigid.fit(), 1e-6);
+
+		AffineModel3D affineModel = new AffineModel3D();
+		affineModel.fit(matches);
+		assertArrayEquals(affineModel.getMatrix(null), affine.fit(), 1e-6);
+	}
+
+	@Test
+	public void testNoisySimilarityMatchesModels() throws NotEnoughDataPointsException,
+			IllDefinedDataPointsException {
+		Random random = new Random(3);
+		List<PointMatch> matches = new ArrayList<>();
+		List<PointMatch> matches2D = new ArrayList<>();
+		ClosedFormFitter similarity = new ClosedFormFitter(RegUtils.DIM3D, RegUtils.SIMILARITY);
+		ClosedFormFitter similarity2D = new ClosedFormFitter(RegUtils.DIM2D, RegUtils.SIMILARITY);
+		for (int i = 0; i < 200; i++) {
+			double[] p = { 100 * random.nextDouble(), 100 * random.nextDouble(), 10 * random.nextDouble() };
+			double[] q = apply(SIMILARITY, p);
+			for (int d = 0; d < 3; d++) {
+				q[d] += 2 * random.nextGaussian();
+			}
+			matches.add(new PointMatch(new Point(p.clone()), new Point(q.clone())));
+			matches2D.add(new PointMatch(new Point(new double[] { p[0], p[1] }),
+					new Point(new double[] { q[0], q[1] })));
+			similarity.add(p[0], p[1], p[2], q[0], q[1], q[2]);
+			similarity2D.add(p[0], p[1], 0, q[0], q[1], 0);
+		}
+
+		// 3D uses the symmetric scale, 2D the least-squares scale
+		SimilarityModel3D model = new SimilarityModel3D();
+		model.fit(matches);
+		assertArrayEquals(model.getMatrix(null), similarity.fit(), 1e-6);
+
+		SimilarityModel2D model2D = new SimilarityModel2D();
+		model2D.fit(matches2D);
+		double[] m = new double[6];
+		model2D.toArray(m);
+		double[] expected2D = { //
+				m[0], m[2], 0, m[4], //
+				m[1], m[3], 0, m[5], //
+				0, 0, 1, 0 };
+		assertArrayEquals(expected2D, similarity2D.fit(), 1e-6);
+	}
+
+	@Test
+	public void test2DAffine() {
+		ClosedFormFitter fitter = new ClosedFormFitter(RegUtils.DIM2D, RegUtils.AFFINE);
+		fitter.addAll(new double[] { 0, 1, 1, 0 }, new double[] { 0, 0, 1, 1 }, null, //
+				new double[] { 2, 2, 4, 4 }, new double[] { 0, -2, -3, -1 }, null);
+		double[] expected = { //
+				0, 2, 0, 2, //
+				-2, -1, 0, 0, //
+				0, 0, 1, 0 };
+		assertArrayEquals(expected, fitter.fit(), 1e-9);
+	}
+
+	@Test
+	public void testNotEnoughPoints() {
+		ClosedFormFitter fitter = new ClosedFormFitter(RegUtils.DIM3D, RegUtils.AFFINE);
+		fitter.add(0, 0, 0, 1, 1, 1);
+		fitter.add(1, 0, 0, 2, 1, 1);
+		fitter.add(0, 1, 0, 1, 2, 1);
+		assertThrows(RuntimeException.class, fitter::fit);
+	}
+
+	private static double[] apply(double[] m, double[] p) {
+		double[] q = new double[3];
+		for (int i = 0; i < 3; i++) {
+			q[i] = m[4 * i] * p[0] + m[4 * i + 1] * p[1] + m[4 * i + 2] * p[2] + m[4 * i + 3];
+		}
+		return q;
+	}
+}
@@ -0,0 +1,122 @@
+/*-
+ * #%L
+ * A collection of plugins developed at the FMI Basel.
+ * %%
+ * Copyright (C) 2016 - 2024 FMI Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+package ch.fmi.registration;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import mpicbg.imglib.algorithm.scalespace.DifferenceOfGaussianPeak;
+import mpicbg.imglib.type.numeric.real.FloatType;
+import mpicbg.models.TranslationModel3D;
+import net.imglib2.util.Pair;
+import process.ComparePair;
+
+/**
+ * Reports the time of the track ID join of
+ * {@link RegUtils#addCorrespondingPoints} and of the nested-loop matching
+ * previously used in {@link RegUtils#populateComparePairs}.
+ * <p>
+ * Opt-in benchmark, skipped unless run with {@code -Dbenchmark=true}; the
+ * equality of both joins is checked by {@link CorrespondenceJoinTest}.
+ * </p>
+ */
+public class CorrespondenceJoinBenchmarkTest {
+
+	private static final int N_FRAMES = 30;
+	private static final int N_BEADS = 500;
+	private static final int RANGE = 10;
+
+	@Before
+	public void requireBenchmark() {
+		Assume.assumeTrue("Benchmarks run with -Dbenchmark=true", Boolean.getBoolean("benchmark"));
+	}
+
+	@Test
+	public void testJoinTime() {
+		// Create drifting bead series with shuffled track IDs per frame
+		Random random = new Random(42);
+		double[] beadX = random.doubles(N_BEADS, 0, 100).toArray();
+		double[] beadY = random.doubles(N_BEADS, 0, 100).toArray();
+		double[] beadZ = random.doubles(N_BEADS, 0, 20).toArray();
+
+		int n = N_FRAMES * N_BEADS;
+		int[] frames = new int[n];
+		int[] trackIDs = new int[n];
+		double[] x = new double[n];
+		double[] y = new double[n];
+		double[] z = new double[n];
+		List<Integer> order = new ArrayList<>();
+		for (int b = 0; b < N_BEADS; b++) {
+			order.add(b);
+		}
+		for (int f = 0; f < N_FRAMES; f++) {
+			Collections.shuffle(order, random);
+			for (int i = 0; i < N_BEADS; i++) {
+				int index = f * N_BEADS + i;
+				int bead = order.get(i);
+				frames[index] = f;
+				trackIDs[index] = bead;
+				x[index] = beadX[bead] + 0.5 * f;
+				y[index] = beadY[bead] - 0.2 * f;
+				z[index] = beadZ[bead] + 0.1 * f;
+			}
+		}
+
+		Integer[] frameLookup = RegUtils.getSortedUniqueFrames(frames);
+		Pair<ArrayList<ArrayList<DifferenceOfGaussianPeak<FloatType>>>, List<List<Integer>>> values = RegUtils
+				.getPeaksAndCorrespondencesFromArrays(Arrays.asList(frameLookup), frames, x, y, z, trackIDs);
+		ArrayList<ArrayList<DifferenceOfGaussianPeak<FloatType>>> peaks = values.getA();
+		List<List<Integer>> correspondences = values.getB();
+
+		List<ComparePair> naivePairs = RegUtils.getComparePairs(frameLookup, peaks, RANGE, new TranslationModel3D());
+		List<ComparePair> joinedPairs = RegUtils.getComparePairs(frameLookup, peaks, RANGE, new TranslationModel3D());
+
+		// Nested loop (previous implementation)
+		long start = System.nanoTime();
+		for (ComparePair pair : naivePairs) {
+			CorrespondenceJoinTest.addCorrespondingPointsNaive(pair, peaks, correspondences);
+		}
+		long naiveTime = System.nanoTime() - start;
+
+		// Track ID join
+		start = System.nanoTime();
+		List<TrackIdIndex> indices = RegUtils.createTrackIdIndices(correspondences);
+		for (ComparePair pair : joinedPairs) {
+			RegUtils.addCorrespondingPoints(pair, peaks, indices);
+		}
+		long joinTime = System.nanoTime() - start;
+
+		System.out.println("Nested loop: " + naiveTime / 1e6 + " ms, track ID join: " + joinTime / 1e6 + " ms ("
+				+ naivePairs.size() + " pairs)");
+
+		assertEquals(naivePairs.size(), joinedPairs.size());
+	}
+}
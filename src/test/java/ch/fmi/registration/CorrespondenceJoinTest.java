@@ -0,0 +1,135 @@
+/*-
+ * #%L
+ * A collection of plugins developed at the FMI Basel.
+ * %%
+ * Copyright (C) 2016 - 2024 FMI Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+package ch.fmi.registration;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import mpicbg.imglib.algorithm.scalespace.DifferenceOfGaussianPeak;
+import mpicbg.imglib.type.numeric.real.FloatType;
+import mpicbg.models.PointMatch;
+import mpicbg.models.TranslationModel3D;
+import net.imglib2.util.Pair;
+import process.ComparePair;
+import process.Particle;
+
+/**
+ * Compares the track ID join of {@link RegUtils#addCorrespondingPoints} with
+ * the nested-loop matching previously used in
+ * {@link RegUtils#populateComparePairs}.
+ */
+public class CorrespondenceJoinTest {
+
+	private static final int N_FRAMES = 5;
+	private static final int N_BEADS = 50;
+	private static final int RANGE = 3;
+
+	@Test
+	public void testTrackIdJoinAgainstNestedLoop() {
+		// Create drifting bead series with shuffled track IDs per frame
+		Random random = new Random(42);
+		double[] beadX = random.doubles(N_BEADS, 0, 100).toArray();
+		double[] beadY = random.doubles(N_BEADS, 0, 100).toArray();
+		double[] beadZ = random.doubles(N_BEADS, 0, 20).toArray();
+
+		int n = N_FRAMES * N_BEADS;
+		int[] frames = new int[n];
+		int[] trackIDs = new int[n];
+		double[] x = new double[n];
+		double[] y = new double[n];
+		double[] z = new double[n];
+		List<Integer> order = new ArrayList<>();
+		for (int b = 0; b < N_BEADS; b++) {
+			order.add(b);
+		}
+		for (int f = 0; f < N_FRAMES; f++) {
+			Collections.shuffle(order, random);
+			for (int i = 0; i < N_BEADS; i++) {
+				int index = f * N_BEADS + i;
+				int bead = order.get(i);
+				frames[index] = f;
+				trackIDs[index] = bead;
+				x[index] = beadX[bead] + 0.5 * f;
+				y[index] = beadY[bead] - 0.2 * f;
+				z[index] = beadZ[bead] + 0.1 * f;
+			}
+		}
+
+		Integer[] frameLookup = RegUtils.getSortedUniqueFrames(frames);
+		Pair<ArrayList<ArrayList<DifferenceOfGaussianPeak<FloatType>>>, List<List<Integer>>> values = RegUtils
+				.getPeaksAndCorrespondencesFromArrays(Arrays.asList(frameLookup), frames, x, y, z, trackIDs);
+		ArrayList<ArrayList<DifferenceOfGaussianPeak<FloatType>>> peaks = values.getA();
+		List<List<Integer>> correspondences = values.getB();
+
+		List<ComparePair> naivePairs = RegUtils.getComparePairs(frameLookup, peaks, RANGE, new TranslationModel3D());
+		List<ComparePair> joinedPairs = RegUtils.getComparePairs(frameLookup, peaks, RANGE, new TranslationModel3D());
+
+		// Nested loop (previous implementation)
+		for (ComparePair pair : naivePairs) {
+			addCorrespondingPointsNaive(pair, peaks, correspondences);
+		}
+
+		// Track ID join
+		List<TrackIdIndex> indices = RegUtils.createTrackIdIndices(correspondences);
+		for (ComparePair pair : joinedPairs) {
+			RegUtils.addCorrespondingPoints(pair, peaks, indices);
+		}
+
+		assertEquals(naivePairs.size(), joinedPairs.size());
+		for (int i = 0; i < naivePairs.size(); i++) {
+			List<PointMatch> expected = naivePairs.get(i).inliers;
+			List<PointMatch> actual = joinedPairs.get(i).inliers;
+			assertEquals(N_BEADS, actual.size());
+			assertEquals(expected.size(), actual.size());
+			for (int m = 0; m < expected.size(); m++) {
+				assertArrayEquals(expected.get(m).getP1().getL(), actual.get(m).getP1().getL(), 0.0);
+				assertArrayEquals(expected.get(m).getP2().getL(), actual.get(m).getP2().getL(), 0.0);
+			}
+		}
+	}
+
+	static void addCorrespondingPointsNaive(ComparePair pair,
+			ArrayList<ArrayList<DifferenceOfGaussianPeak<FloatType>>> peaks, List<List<Integer>> correspondences) {
+		ArrayList<DifferenceOfGaussianPeak<FloatType>> peaksA = peaks.get(pair.indexA);
+		ArrayList<DifferenceOfGaussianPeak<FloatType>> peaksB = peaks.get(pair.indexB);
+		List<Integer> idsA = correspondences.get(pair.indexA);
+		List<Integer> idsB = correspondences.get(pair.indexB);
+
+		int id = 0;
+		for (int a = 0; a < peaksA.size(); a++) {
+			for (int b = 0; b < peaksB.size(); b++) {
+				if (idsA.get(a).equals(idsB.get(b))) {
+					pair.inliers.add(new PointMatch(new Particle(id++, peaksA.get(a), 1.0f),
+							new Particle(id++, peaksB.get(b), 1.0f)));
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,90 @@
+/*-
+ * #%L
+ * A collection of plugins developed at the FMI Basel.
+ * %%
+ * Copyright (C) 2016 - 2024 FMI Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+package ch.fmi.registration;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Reports the descriptor build time of {@link DescriptorMatcher} and the
+ * neighbor search time of {@link NeighborSearch#kdTreeNeighbors} and
+ * {@link NeighborSearch#bruteForceNeighbors} for growing bead clouds.
+ * <p>
+ * Opt-in benchmark, skipped unless run with {@code -Dbenchmark=true}; the
+ * neighbor correctness check is part of {@link NeighborSearchTest}.
+ * </p>
+ */
+public class DescriptorBenchmarkTest {
+
+	// brute force is only run up to this size
+	private static final int MAX_BRUTE_FORCE = 10_000;
+	private static final int NUM_NEIGHBORS = 3;
+	private static final int REDUNDANCY = 1;
+
+	@Before
+	public void requireBenchmark() {
+		Assume.assumeTrue("Benchmarks run with -Dbenchmark=true", Boolean.getBoolean("benchmark"));
+	}
+
+	@Test
+	public void testDescriptorBuildTime() {
+		for (int n : new int[] { 1_000, 10_000, 100_000 }) {
+			PointCloud cloud = randomBeads(n);
+			int m = NUM_NEIGHBORS + REDUNDANCY;
+
+			long start = System.nanoTime();
+			int[] kdTree = NeighborSearch.kdTreeNeighbors(cloud, 0, m);
+			long kdTreeTime = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			DescriptorMatcher.Descriptors descriptors = new DescriptorMatcher(NUM_NEIGHBORS, REDUNDANCY, 3, 5)
+					.describe(cloud, 0);
+			long describeTime = System.nanoTime() - start;
+			assertEquals(4 * n, descriptors.size());
+
+			String report = n + " points: KD-tree " + kdTreeTime / 1e6 + " ms, descriptors " + describeTime / 1e6
+					+ " ms";
+			if (n <= MAX_BRUTE_FORCE) {
+				start = System.nanoTime();
+				int[] bruteForce = NeighborSearch.bruteForceNeighbors(cloud, 0, m);
+				long bruteForceTime = System.nanoTime() - start;
+				report += ", brute force " + bruteForceTime / 1e6 + " ms";
+				assertArrayEquals("Neighbors of " + n + " points", bruteForce, kdTree);
+			}
+			System.out.println(report);
+		}
+	}
+
+	private static PointCloud randomBeads(int n) {
+		Random random = new Random(42);
+		// constant density of about one bead per 1000 cubic units
+		double size = 10 * Math.cbrt(n);
+		return PointCloud.fromArrays(new int[n], random.doubles(n, 0, size).toArray(),
+				random.doubles(n, 0, size).toArray(), random.doubles(n, 0, size).toArray(), null);
+	}
+}
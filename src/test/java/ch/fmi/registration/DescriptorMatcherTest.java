@@ -0,0 +1,118 @@
+/*-
+ * #%L
+ * A collection of plugins developed at the FMI Basel.
+ * %%
+ * Copyright (C) 2016 - 2024 FMI Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+package ch.fmi.registration;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import process.ComparePair;
+
+public class DescriptorMatcherTest {
+
+	private static final int N_FRAMES = 5;
+	private static final int N_BEADS = 40;
+
+	@Test
+	public void testCombinations() {
+		int[][] expected = { { 0, 1 }, { 0, 2 }, { 0, 3 }, { 1, 2 }, { 1, 3 }, { 2, 3 } };
+		assertArrayEquals(expected, DescriptorMatcher.combinations(4, 2));
+	}
+
+	@Test
+	public void testMatchShiftedBeads() {
+		double[] expected = new double[12 * N_FRAMES];
+		PointCloud cloud = shiftedBeads(expected);
+
+		DescriptorMatcher matcher = new DescriptorMatcher(2, 3, 3, 3);
+		matcher.setNumThreads(2);
+		List<ComparePair> pairs = matcher.match(cloud, 2,
+				RegUtils.suitableModel(RegUtils.DIM3D, RegUtils.TRANSLATION));
+
+		assertEquals("Pairs", 7, pairs.size());
+		for (ComparePair pair : pairs) {
+			assertTrue("Inliers of " + pair.indexA + "-" + pair.indexB, pair.inliers.size() > N_BEADS / 2);
+		}
+	}
+
+	@Test
+	public void testRegisterUnmatched() {
+		double[] expected = new double[12 * N_FRAMES];
+		PointCloud cloud = shiftedBeads(expected);
+		int[] frame = new int[cloud.size()];
+		double[] x = new double[cloud.size()];
+		double[] y = new double[cloud.size()];
+		double[] z = new double[cloud.size()];
+		for (int f = 0; f < cloud.numFrames(); f++) {
+			for (int i = cloud.start(f); i < cloud.end(f); i++) {
+				frame[i] = cloud.frames()[f];
+				x[i] = cloud.x(i);
+				y[i] = cloud.y(i);
+				z[i] = cloud.z(i);
+			}
+		}
+
+		RegistrationEngine engine = new RegistrationEngine(RegUtils.DIM3D,
+				RegUtils.suitableModel(RegUtils.DIM3D, RegUtils.TRANSLATION));
+		engine.setRange(2);
+		engine.setDescriptorMatcher(new DescriptorMatcher(2, 3, 3, 3));
+		engine.registerUnmatched(frame, x, y, z);
+		assertArrayEquals("Models", expected, engine.getFlatModels(), 1e-4);
+	}
+
+	/**
+	 * Random beads shifted by a different translation per frame; the inverse
+	 * translations are written to {@code expected}.
+	 */
+	private static PointCloud shiftedBeads(double[] expected) {
+		Random random = new Random(7);
+		double[][] beads = new double[N_BEADS][3];
+		for (double[] bead : beads) {
+			for (int d = 0; d < 3; d++) {
+				bead[d] = 100 * random.nextDouble();
+			}
+		}
+		int n = N_FRAMES * N_BEADS;
+		int[] frame = new int[n];
+		double[] x = new double[n];
+		double[] y = new double[n];
+		double[] z = new double[n];
+		for (int t = 0; t < N_FRAMES; t++) {
+			double[] shift = { 2.0 * t, -1.5 * t, 0.5 * t };
+			for (int b = 0; b < N_BEADS; b++) {
+				int i = t * N_BEADS + b;
+				frame[i] = t;
+				x[i] = beads[b][0] + shift[0];
+				y[i] = beads[b][1] + shift[1];
+				z[i] = beads[b][2] + shift[2];
+			}
+			double[] m = { 1, 0, 0, -shift[0], 0, 1, 0, -shift[1], 0, 0, 1, -shift[2] };
+			System.arraycopy(m, 0, expected, 12 * t, 12);
+		}
+		return PointCloud.fromArrays(frame, x, y, z, null);
+	}
+}
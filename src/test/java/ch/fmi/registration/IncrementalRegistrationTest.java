@@ -0,0 +1,104 @@
+/*-
+ * #%L
+ * A collection of plugins developed at the FMI Basel.
+ * %%
+ * Copyright (C) 2016 - 2024 FMI Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+package ch.fmi.registration;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThrows;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class IncrementalRegistrationTest {
+
+	// Same point clouds as in PointCloudSeriesRegistrationPrematchedTest
+	private static double[] x = { //
+		0, 0, 1, 1, 1, 2, //
+		1, 2.1, 2, 0.9, 2, 3, //
+		2, 3, 2, 3, 3, 4 //
+	};
+	private static double[] y = { //
+		0, 1, 1, 0, 1, 2, //
+		1, 2, 0.9, 2, 2.1, 3, //
+		1, 2, 2, 1, 2, 3 //
+	};
+	private static double[] z = { //
+		0, 1, 0, 1, 1, 2, //
+		1, 1, 2, 2, 2, 3, //
+		0, 0, 1, 1, 1, 2 //
+	};
+	private static int[] frame = { //
+		0, 0, 0, 0, 0, 0,//
+		1, 1, 1, 1, 1, 1, //
+		3, 3, 3, 3, 3, 3 //
+	};
+	private static int[] trackIDs = { //
+		1, 42, 75, 57, 999, 7, //
+		1, 75, 57, 42, 999, 7, //
+		1, 75, 42, 57, 999, 7 //
+	};
+
+	@Test
+	public void testAppendFrames() {
+		IncrementalRegistration registration = new IncrementalRegistration(RegUtils.DIM3D,
+				RegUtils.suitableModel(RegUtils.DIM3D, RegUtils.TRANSLATION), 3, 1);
+
+		// first two frames
+		registration.addFrames(range(frame, 0, 12), range(x, 0, 12), range(y, 0, 12), range(z, 0, 12),
+				range(trackIDs, 0, 12));
+		assertArrayEquals(new int[] { 0, 1 }, registration.getFrames());
+		double[] expectedModels = { //
+			1, 0, 0,  0,   0, 1, 0,  0,   0, 0, 1,  0, //
+			1, 0, 0, -1,   0, 1, 0, -1,   0, 0, 1, -1, //
+		};
+		assertArrayEquals("Models", expectedModels, registration.getFlatModels(), 0.01);
+
+		// append third frame, optimizing only the last tile
+		registration.addFrames(range(frame, 12, 18), range(x, 12, 18), range(y, 12, 18), range(z, 12, 18),
+				range(trackIDs, 12, 18));
+		assertArrayEquals(new int[] { 0, 1, 3 }, registration.getFrames());
+		expectedModels = new double[] { //
+			1, 0, 0,  0,   0, 1, 0,  0,   0, 0, 1,  0, //
+			1, 0, 0, -1,   0, 1, 0, -1,   0, 0, 1, -1, //
+			1, 0, 0, -2,   0, 1, 0, -1,   0, 0, 1,  0  //
+		};
+		assertArrayEquals("Models", expectedModels, registration.getFlatModels(), 0.01);
+	}
+
+	@Test
+	public void testRejectEarlierFrames() {
+		IncrementalRegistration registration = new IncrementalRegistration(RegUtils.DIM3D,
+				RegUtils.suitableModel(RegUtils.DIM3D, RegUtils.TRANSLATION), 3, 2);
+		registration.addFrames(range(frame, 6, 12), range(x, 6, 12), range(y, 6, 12), range(z, 6, 12),
+				range(trackIDs, 6, 12));
+		assertThrows(IllegalArgumentException.class, () -> registration.addFrames(range(frame, 0, 6),
+				range(x, 0, 6), range(y, 0, 6), range(z, 0, 6), range(trackIDs, 0, 6)));
+	}
+
+	private static double[] range(double[] values, int from, int to) {
+		return Arrays.copyOfRange(values, from, to);
+	}
+
+	private static int[] range(int[] values, int from, int to) {
+		return Arrays.copyOfRange(values, from, to);
+	}
+}
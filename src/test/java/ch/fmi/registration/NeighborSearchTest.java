@@ -0,0 +1,64 @@
+/*-
+ * #%L
+ * A collection of plugins developed at the FMI Basel.
+ * %%
+ * Copyright (C) 2016 - 2024 FMI Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+package ch.fmi.registration;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Compares descriptor neighborhoods of {@link NeighborSearch#kdTreeNeighbors}
+ * with {@link NeighborSearch#bruteForceNeighbors}.
+ */
+public class NeighborSearchTest {
+
+	private static final int NUM_NEIGHBORS = 3;
+	private static final int REDUNDANCY = 1;
+
+	@Test
+	public void testKdTreeNeighbors() {
+		for (int n : new int[] { 10, 1_000 }) {
+			PointCloud cloud = randomBeads(n);
+			int m = NUM_NEIGHBORS + REDUNDANCY;
+
+			int[] kdTree = NeighborSearch.kdTreeNeighbors(cloud, 0, m);
+			int[] bruteForce = NeighborSearch.bruteForceNeighbors(cloud, 0, m);
+			assertArrayEquals("Neighbors of " + n + " points", bruteForce, kdTree);
+
+			DescriptorMatcher.Descriptors descriptors = new DescriptorMatcher(NUM_NEIGHBORS, REDUNDANCY, 3, 5)
+					.describe(cloud, 0);
+			assertEquals(4 * n, descriptors.size());
+		}
+	}
+
+	private static PointCloud randomBeads(int n) {
+		Random random = new Random(42);
+		// constant density of about one bead per 1000 cubic units
+		double size = 10 * Math.cbrt(n);
+		return PointCloud.fromArrays(new int[n], random.doubles(n, 0, size).toArray(),
+				random.doubles(n, 0, size).toArray(), random.doubles(n, 0, size).toArray(), null);
+	}
+}
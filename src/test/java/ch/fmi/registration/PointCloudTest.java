@@ -0,0 +1,90 @@
+/*-
+ * #%L
+ * A collection of plugins developed at the FMI Basel.
+ * %%
+ * Copyright (C) 2016 - 2024 FMI Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+package ch.fmi.registration;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+import org.junit.Test;
+
+import mpicbg.models.PointMatch;
+
+public class PointCloudTest {
+
+	private static int[] frames = { 3, 0, 3, 1, 0 };
+	private static double[] x = { 1, 2, 3, 4, 5 };
+	private static double[] y = { 6, 7, 8, 9, 10 };
+	private static double[] z = { 11, 12, 13, 14, 15 };
+	private static int[] ids = { 42, 7, 43, 7, 8 };
+
+	@Test
+	public void testGroupByFrame() {
+		PointCloud cloud = PointCloud.fromArrays(frames, x, y, z, ids);
+		assertEquals(3, cloud.numDimensions());
+		assertEquals(5, cloud.size());
+		assertArrayEquals(new int[] { 0, 1, 3 }, cloud.frames());
+
+		assertEquals(0, cloud.start(0));
+		assertEquals(2, cloud.end(0));
+		assertEquals(3, cloud.start(2));
+		assertEquals(5, cloud.end(2));
+
+		// input order is kept within each frame
+		assertArrayEquals(new int[] { 7, 8 }, cloud.frameIds(0));
+		assertArrayEquals(new int[] { 7 }, cloud.frameIds(1));
+		assertArrayEquals(new int[] { 42, 43 }, cloud.frameIds(2));
+		assertEquals(2.0, cloud.x(0), 0.0);
+		assertEquals(10.0, cloud.y(1), 0.0);
+		assertEquals(13.0, cloud.z(4), 0.0);
+	}
+
+	@Test
+	public void testMatch2D() {
+		PointCloud cloud = PointCloud.fromArrays(frames, x, y, null, null);
+		assertEquals(2, cloud.numDimensions());
+		PointMatch match = cloud.match(0, cloud, 3);
+		assertArrayEquals(new double[] { 2, 7 }, match.getP1().getL(), 0.0);
+		assertArrayEquals(new double[] { 1, 6 }, match.getP2().getL(), 0.0);
+	}
+
+	@Test
+	public void testWeightedMatch() {
+		double[] weights = { 1, 4, 9, 16, 25 };
+		PointCloud cloud = PointCloud.fromArrays(frames, x, y, z, ids, weights);
+		assertEquals(4.0, cloud.weight(0), 0.0);
+		assertEquals(16.0, cloud.weight(2), 0.0);
+		assertEquals(8.0, cloud.match(0, cloud, 2).getWeight(), 1e-12);
+
+		PointCloud unweighted = PointCloud.fromArrays(frames, x, y, z, ids);
+		assertEquals(1.0, unweighted.weight(0), 0.0);
+		assertEquals(2.0, cloud.match(0, unweighted, 2).getWeight(), 1e-12);
+	}
+
+	@Test
+	public void testWrongInputs() {
+		assertThrows(IllegalArgumentException.class,
+				() -> PointCloud.fromArrays(frames, x, new double[] { 1, 2 }, null, null));
+		assertThrows(IllegalArgumentException.class,
+				() -> PointCloud.fromArrays(frames, x, y, null, null, new double[] { 1, 1, -1, 1, 1 }));
+	}
+}
@@ -25,11 +25,12 @@ import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
-import java.util.Vector;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
@@ -45,10 +46,12 @@ import mpicbg.models.InterpolatedAffineModel3D;
 import mpicbg.models.InvertibleBoundable;
 import mpicbg.models.RigidModel2D;
 import mpicbg.models.RigidModel3D;
+import mpicbg.models.Tile;
 import mpicbg.models.TranslationModel2D;
 import mpicbg.models.TranslationModel3D;
 import net.imglib2.util.Pair;
 import process.ComparePair;
+import process.Matching;
 
 public class RegUtilsTest {
 
@@ -99,6 +102,29 @@ public class RegUtilsTest {
 		assertArrayEquals(expected, unique);
 	}
 
+	@Test
+	public void testFrameIndex() {
+		FrameIndex dense = new FrameIndex(new int[] { 2, 3, 5, 6 });
+		assertEquals(4, dense.size());
+		assertEquals(0, dense.indexOf(2));
+		assertEquals(2, dense.indexOf(5));
+		assertEquals(-1, dense.indexOf(4));
+		assertEquals(-1, dense.indexOf(-7));
+		assertEquals(-1, dense.indexOf(100));
+
+		FrameIndex sparse = new FrameIndex(new int[] { -5, 17, 1000, 250000 });
+		assertEquals(1, sparse.indexOf(17));
+		assertEquals(3, sparse.indexOf(250000));
+		assertEquals(-1, sparse.indexOf(18));
+
+		assertArrayEquals(new int[] { 3, 0, 0, 2 }, sparse.indicesOf(new int[] { 250000, -5, -5, 1000 }));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testFrameIndexMissingFrame() {
+		new FrameIndex(new int[] { 0, 1, 3 }).indicesOf(new int[] { 0, 2 });
+	}
+
 	@Test
 	public void testGetPeaksFromArrays3D() {
 		List<Integer> sortedUniqueFrames = Arrays.asList(RegUtils.getSortedUniqueFrames(frames));
@@ -176,7 +202,7 @@ public class RegUtilsTest {
 				.getPeaksFromArrays(Arrays.asList(frameLookup), frames, x, y, z);
 		int range = 3;
 
-		Vector<ComparePair> pairs = RegUtils.getComparePairs(frameLookup, peaks, range, new AffineModel3D());
+		List<ComparePair> pairs = RegUtils.getComparePairs(frameLookup, peaks, range, new AffineModel3D());
 
 		assertEquals(3, pairs.size());
 
@@ -190,6 +216,54 @@ public class RegUtilsTest {
 		assertEquals(2, pairs.get(2).indexB);
 	}
 
+	@Test
+	public void testPopulateComparePairsUnfittable() {
+		// two shared track IDs are not enough to fit the pair's affine 3D model
+		int[] pairFrames = { 0, 0, 1, 1 };
+		int[] pairIDs = { 1, 2, 1, 2 };
+		double[] px = { 0, 1, 0.5, 1.5 };
+		double[] py = { 0, 1, 0, 1 };
+		double[] pz = { 0, 1, 0, 1 };
+		Integer[] frameLookup = RegUtils.getSortedUniqueFrames(pairFrames);
+		Pair<ArrayList<ArrayList<DifferenceOfGaussianPeak<FloatType>>>, List<List<Integer>>> values = RegUtils
+				.getPeaksAndCorrespondencesFromArrays(Arrays.asList(frameLookup), pairFrames, px, py, pz, pairIDs);
+
+		List<ComparePair> pairs = RegUtils.getComparePairs(frameLookup, values.getA(), 1, new AffineModel3D());
+		RegUtils.populateComparePairs(pairs, values.getA(), values.getB(), 2);
+
+		// the pair keeps its matches and still connects its tiles
+		assertEquals(1, pairs.size());
+		assertEquals(2, pairs.get(0).inliers.size());
+		Tile<AffineModel3D> tileA = new Tile<>(new AffineModel3D());
+		Tile<AffineModel3D> tileB = new Tile<>(new AffineModel3D());
+		Matching.addPointMatches(pairs.get(0).inliers, tileA, tileB);
+		assertTrue(tileA.getConnectedTiles().contains(tileB));
+		assertTrue(tileB.getConnectedTiles().contains(tileA));
+	}
+
+	@Test
+	public void testGetComparePairsBand() {
+		int[] sortedFrames = { 0, 1, 2, 5, 9, 10, 30 };
+		int range = 4;
+
+		List<ComparePair> pairs = RegUtils.getComparePairs(sortedFrames, range, new AffineModel3D());
+		int[][] expected = { { 0, 1 }, { 0, 2 }, { 1, 2 }, { 1, 3 }, { 2, 3 }, { 3, 4 }, { 4, 5 } };
+
+		assertEquals(expected.length, pairs.size());
+		for (int i = 0; i < expected.length; i++) {
+			assertEquals(expected[i][0], pairs.get(i).indexA);
+			assertEquals(expected[i][1], pairs.get(i).indexB);
+		}
+
+		List<ComparePair> streamed = RegUtils.streamComparePairs(sortedFrames, range, new AffineModel3D())
+				.collect(Collectors.toList());
+		assertEquals(expected.length, streamed.size());
+		for (int i = 0; i < expected.length; i++) {
+			assertEquals(expected[i][0], streamed.get(i).indexA);
+			assertEquals(expected[i][1], streamed.get(i).indexB);
+		}
+	}
+
 	@Test
 	public void testPopulateComparePairs() {
 		Integer[] frameLookup = RegUtils.getSortedUniqueFrames(frames);
@@ -200,13 +274,37 @@ public class RegUtilsTest {
 
 		int range = 1;
 
-		Vector<ComparePair> pairs = RegUtils.getComparePairs(frameLookup, peakList, range, new TranslationModel3D());
+		List<ComparePair> pairs = RegUtils.getComparePairs(frameLookup, peakList, range, new TranslationModel3D());
 		RegUtils.populateComparePairs(pairs, peakList, correspondences);
 
 		assertEquals(1, pairs.size());
 		assertEquals(5, pairs.get(0).inliers.size());
 	}
 
+	@Test
+	public void testPopulateComparePairsParallel() {
+		Integer[] frameLookup = RegUtils.getSortedUniqueFrames(frames);
+		Pair<ArrayList<ArrayList<DifferenceOfGaussianPeak<FloatType>>>, List<List<Integer>>> values = RegUtils
+				.getPeaksAndCorrespondencesFromArrays(Arrays.asList(frameLookup), frames, x, y, z, trackIDs);
+		ArrayList<ArrayList<DifferenceOfGaussianPeak<FloatType>>> peakList = values.getA();
+		List<List<Integer>> correspondences = values.getB();
+
+		int range = 3;
+
+		List<ComparePair> sequential = RegUtils.getComparePairs(frameLookup, peakList, range, new TranslationModel3D());
+		RegUtils.populateComparePairs(sequential, peakList, correspondences, 1);
+		List<ComparePair> parallel = RegUtils.getComparePairs(frameLookup, peakList, range, new TranslationModel3D());
+		RegUtils.populateComparePairs(parallel, peakList, correspondences, 4);
+
+		assertEquals(3, parallel.size());
+		double[] origin = new double[3];
+		for (int i = 0; i < parallel.size(); i++) {
+			assertEquals(sequential.get(i).inliers.size(), parallel.get(i).inliers.size());
+			assertArrayEquals(((TranslationModel3D) sequential.get(i).model).apply(origin),
+					((TranslationModel3D) parallel.get(i).model).apply(origin), 0.0);
+		}
+	}
+
 	@Test
 	public void testSuitableModel() {
 		assertTrue(RegUtils.suitableModel(RegUtils.DIM3D, RegUtils.AFFINE) instanceof AffineModel3D);
@@ -302,6 +400,36 @@ public class RegUtilsTest {
 		assertArrayEquals(expected, flattened, 0.0);
 	}
 
+	@Test
+	public void testFlattenModelsIntoBuffer() {
+		AffineModel3D model1 = new AffineModel3D();
+		model1.set(//
+				1.0, 0.0, 0.0, 2.0,//
+				0.0, 1.0, 0.0, 3.5,//
+				0.0, 0.0, 1.0, 4.7);
+		TranslationModel2D model2 = new TranslationModel2D();
+		model2.set(0.5, 7.6);
+
+		double[] expected = {
+				-1.0, //
+				1.0, 0.0, 0.0, 2.0,//
+				0.0, 1.0, 0.0, 3.5,//
+				0.0, 0.0, 1.0, 4.7
+		};
+		double[] target = new double[13];
+		target[0] = -1.0;
+		RegUtils.flattenModels(Arrays.asList(model1), RegUtils.DIM3D, target, 1);
+		assertArrayEquals(expected, target, 0.0);
+
+		DoubleBuffer buffer = ByteBuffer.allocateDirect(12 * Double.BYTES).asDoubleBuffer();
+		RegUtils.flattenModels(Arrays.asList(model2), RegUtils.DIM2D, buffer);
+		assertEquals(12, buffer.position());
+		double[] flattened = new double[12];
+		buffer.flip();
+		buffer.get(flattened);
+		assertArrayEquals(RegUtils.flattenModels(Arrays.asList(model2), RegUtils.DIM2D), flattened, 0.0);
+	}
+
 	@Test
 	public void testInterpolateModels2D() {
 		Integer[] uniqueFrames = new Integer[] { 0, 1, 2, 3, 4, 5, 6 };
@@ -347,4 +475,27 @@ public class RegUtilsTest {
 		double[] expected_d3 = new double[] { 3.0, 0.0 };
 		assertArrayEquals(expected_d3, d3, 0.0001);
 	}
+
+	@Test
+	public void testSmoothFlatModels() {
+		int[] sortedFrames = { 0, 1, 3, 7 };
+		double[] flatModels = new double[12 * sortedFrames.length];
+		double[] tx = { 0.0, 1.0, 5.0, 2.0 };
+		for (int i = 0; i < sortedFrames.length; i++) {
+			flatModels[12 * i] = 1.0;
+			flatModels[12 * i + 3] = tx[i];
+			flatModels[12 * i + 5] = 1.0;
+			flatModels[12 * i + 10] = 1.0;
+		}
+
+		double[] smoothed = RegUtils.smoothFlatModels(sortedFrames, flatModels, 2);
+		double[] expectedTx = { 0.5, 2.0, 3.0, 2.0 };
+		for (int i = 0; i < sortedFrames.length; i++) {
+			assertEquals(expectedTx[i], smoothed[12 * i + 3], 1e-12);
+			assertEquals(1.0, smoothed[12 * i], 1e-12);
+			assertEquals(1.0, smoothed[12 * i + 10], 1e-12);
+		}
+
+		assertArrayEquals(flatModels, RegUtils.smoothFlatModels(sortedFrames, flatModels, 0), 0.0);
+	}
 }
@@ -0,0 +1,77 @@
+/*-
+ * #%L
+ * A collection of plugins developed at the FMI Basel.
+ * %%
+ * Copyright (C) 2016 - 2024 FMI Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+package ch.fmi.registration;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import org.junit.Test;
+
+public class RegistrationEngineTest {
+
+	@Test
+	public void testPrematched2DWithUnconnectedFirstFrame() {
+		double[] x = { //
+			5, //
+			0, 0, 1, 1, 1, 2, //
+			1, 2.1, 2, 0.9, 2, 3, //
+			2, 3, 2, 3, 3, 4 //
+		};
+		double[] y = { //
+			5, //
+			0, 1, 1, 0, 1, 2, //
+			1, 2, 0.9, 2, 2.1, 3, //
+			1, 2, 2, 1, 2, 3 //
+		};
+		int[] frame = { //
+			-1, //
+			0, 0, 0, 0, 0, 0,//
+			1, 1, 1, 1, 1, 1, //
+			3, 3, 3, 3, 3, 3 //
+		};
+		int[] trackIDs = { //
+			1000, //
+			1, 42, 75, 57, 999, 7, //
+			1, 75, 57, 42, 999, 7, //
+			1, 75, 42, 57, 999, 7 //
+		};
+
+		RegistrationEngine engine = new RegistrationEngine(RegUtils.DIM2D,
+				RegUtils.suitableModel(RegUtils.DIM2D, RegUtils.TRANSLATION));
+		engine.setRange(3);
+		engine.registerPrematched(frame, x, y, null, trackIDs);
+
+		assertArrayEquals("Frame list", new int[] { -1, 0, 1, 3 }, engine.getFrameList());
+		double[] expectedModels = { //
+			1, 0, 0,  0,   0, 1, 0,  0,   0, 0, 1,  0, //
+			1, 0, 0,  0,   0, 1, 0,  0,   0, 0, 1,  0, //
+			1, 0, 0, -1,   0, 1, 0, -1,   0, 0, 1,  0, //
+			1, 0, 0, -2,   0, 1, 0, -1,   0, 0, 1,  0  //
+		};
+		assertArrayEquals("Models", expectedModels, engine.getFlatModels(), 0.01);
+		assertArrayEquals("Costs", new double[] { 0.0, 0.00333, 0.00667, 0.00333 }, engine.getModelCosts(), 0.0001);
+
+		// with unit weights, the mean residual equals the tile cost
+		ResidualStatistics residuals = engine.getResiduals();
+		assertArrayEquals("Match counts", new int[] { 0, 12, 12, 12 }, residuals.getMatchCounts());
+		assertArrayEquals("Mean residuals", engine.getModelCosts(), residuals.getMean(), 1e-9);
+	}
+}
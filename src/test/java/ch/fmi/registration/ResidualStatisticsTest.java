@@ -0,0 +1,60 @@
+/*-
+ * #%L
+ * A collection of plugins developed at the FMI Basel.
+ * %%
+ * Copyright (C) 2016 - 2024 FMI Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+package ch.fmi.registration;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+import mpicbg.models.Tile;
+import mpicbg.models.TranslationModel2D;
+
+public class ResidualStatisticsTest {
+
+	@Test
+	public void testStatistics() {
+		// matches with distances 20, 19, ..., 1
+		Tile<TranslationModel2D> tile = new Tile<>(new TranslationModel2D());
+		for (int i = 20; i > 0; i--) {
+			tile.addMatch(new PointMatch(new Point(new double[] { 0, 0 }), new Point(new double[] { 0, i })));
+		}
+		Tile<TranslationModel2D> empty = new Tile<>(new TranslationModel2D());
+
+		ResidualStatistics statistics = new ResidualStatistics(2);
+		statistics.set(0, empty);
+		statistics.set(1, tile);
+
+		assertArrayEquals(new int[] { 0, 20 }, statistics.getMatchCounts());
+		assertEquals(0.0, statistics.getMean()[0], 0.0);
+		assertEquals(10.5, statistics.getMean()[1], 1e-12);
+		assertEquals(10.0, statistics.getMedian()[1], 0.0);
+		assertEquals(19.0, statistics.getPercentile95()[1], 0.0);
+		assertEquals(20.0, statistics.getMax()[1], 0.0);
+
+		ResidualStatistics copy = new ResidualStatistics(1);
+		copy.set(0, statistics, 1);
+		assertEquals(19.0, copy.getPercentile95()[0], 0.0);
+	}
+}
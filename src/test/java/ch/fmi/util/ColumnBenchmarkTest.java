@@ -0,0 +1,124 @@
+/*-
+ * #%L
+ * A collection of plugins developed at the FMI Basel.
+ * %%
+ * Copyright (C) 2016 - 2024 FMI Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+package ch.fmi.util;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.primitives.Doubles;
+
+/**
+ * Reports the heap allocation per spot of collecting command outputs in
+ * {@code ArrayList<Double>}s followed by {@link Doubles#toArray}, as the
+ * TrackMate commands used to, and in presized {@link DoubleColumn}s.
+ * <p>
+ * Opt-in benchmark, skipped unless run with {@code -Dbenchmark=true} or if the
+ * JVM cannot count allocated bytes per thread; {@link ColumnTest} covers the
+ * columns themselves.
+ * </p>
+ */
+public class ColumnBenchmarkTest {
+
+	private static final int NUM_SPOTS = 1_000_000;
+	private static final int NUM_FEATURES = 12;
+
+	@Before
+	public void requireBenchmark() {
+		Assume.assumeTrue("Benchmarks run with -Dbenchmark=true", Boolean.getBoolean("benchmark"));
+	}
+
+	@Test
+	public void testAllocationPerSpot() {
+		com.sun.management.ThreadMXBean threads;
+		try {
+			threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		}
+		catch (ClassCastException exc) {
+			threads = null;
+		}
+		Assume.assumeTrue("Allocation counting not supported", threads != null
+				&& threads.isThreadAllocatedMemorySupported());
+		threads.setThreadAllocatedMemoryEnabled(true);
+		long thread = Thread.currentThread().getId();
+
+		// warm up both paths
+		collectBoxed(10_000);
+		collectColumns(10_000);
+
+		long start = threads.getThreadAllocatedBytes(thread);
+		double[][] boxed = collectBoxed(NUM_SPOTS);
+		long boxedBytes = threads.getThreadAllocatedBytes(thread) - start;
+
+		start = threads.getThreadAllocatedBytes(thread);
+		double[][] columns = collectColumns(NUM_SPOTS);
+		long columnBytes = threads.getThreadAllocatedBytes(thread) - start;
+
+		assertArrayEquals(boxed[NUM_FEATURES - 1], columns[NUM_FEATURES - 1], 0.0);
+		System.out.println(NUM_SPOTS + " spots x " + NUM_FEATURES + " features: ArrayList<Double> "
+				+ boxedBytes / NUM_SPOTS + " bytes/spot, DoubleColumn " + columnBytes / NUM_SPOTS + " bytes/spot");
+	}
+
+	private static double[][] collectBoxed(int n) {
+		List<List<Double>> lists = new ArrayList<>();
+		for (int f = 0; f < NUM_FEATURES; f++) {
+			lists.add(new ArrayList<>());
+		}
+		for (int i = 0; i < n; i++) {
+			for (int f = 0; f < NUM_FEATURES; f++) {
+				lists.get(f).add(feature(i, f));
+			}
+		}
+		double[][] result = new double[NUM_FEATURES][];
+		for (int f = 0; f < NUM_FEATURES; f++) {
+			result[f] = Doubles.toArray(lists.get(f));
+		}
+		return result;
+	}
+
+	private static double[][] collectColumns(int n) {
+		DoubleColumn[] columns = new DoubleColumn[NUM_FEATURES];
+		for (int f = 0; f < NUM_FEATURES; f++) {
+			columns[f] = new DoubleColumn(n);
+		}
+		for (int i = 0; i < n; i++) {
+			for (int f = 0; f < NUM_FEATURES; f++) {
+				columns[f].add(feature(i, f));
+			}
+		}
+		double[][] result = new double[NUM_FEATURES][];
+		for (int f = 0; f < NUM_FEATURES; f++) {
+			result[f] = columns[f].toArray();
+		}
+		return result;
+	}
+
+	private static double feature(int spot, int feature) {
+		return spot * 0.25 + feature;
+	}
+}
@@ -0,0 +1,60 @@
+/*-
+ * #%L
+ * A collection of plugins developed at the FMI Basel.
+ * %%
+ * Copyright (C) 2016 - 2024 FMI Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+package ch.fmi.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class ColumnTest {
+
+	@Test
+	public void testColumns() {
+		DoubleColumn doubles = new DoubleColumn(2);
+		IntColumn ints = new IntColumn(0);
+		for (int i = 0; i < 100; i++) {
+			doubles.add(0.5 * i);
+			ints.add(i);
+		}
+		assertEquals(100, doubles.size());
+		assertEquals(49.5, doubles.get(99), 0.0);
+		assertEquals(100, doubles.toArray().length);
+		assertArrayEquals(new int[] { 0, 1, 2 }, Arrays.copyOf(ints.toArray(), 3));
+		assertEquals(0, new DoubleColumn(10).toArray().length);
+	}
+
+	@Test
+	public void testPresizedColumnReturnsBackingArray() {
+		DoubleColumn column = new DoubleColumn(3);
+		column.add(1.0);
+		column.add(2.0);
+		column.add(3.0);
+		// a full presized column hands out its backing array without copying
+		assertSame(column.toArray(), column.toArray());
+		assertArrayEquals(new double[] { 1.0, 2.0, 3.0 }, column.toArray(), 0.0);
+	}
+}
@@ -0,0 +1,79 @@
+/*-
+ * #%L
+ * A collection of plugins developed at the FMI Basel.
+ * %%
+ * Copyright (C) 2016 - 2024 FMI Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+package ch.fmi.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+
+import java.awt.Rectangle;
+
+import org.junit.Test;
+
+import ij.ImagePlus;
+import ij.gui.Roi;
+import ij.process.ByteProcessor;
+
+public class MaskRoiCacheTest {
+
+	private static ImagePlus createMask(int value) {
+		ByteProcessor ip = new ByteProcessor(16, 16);
+		for (int y = 4; y < 8; y++) {
+			for (int x = 2; x < 10; x++) {
+				ip.set(x, y, value);
+			}
+		}
+		return new ImagePlus("Mask", ip);
+	}
+
+	@Test
+	public void testHitsByContent() {
+		MaskRoiCache cache = new MaskRoiCache(
+			MaskRoiCache.DEFAULT_MAX_VERTICES);
+
+		Roi roi1 = cache.get(createMask(255));
+		// different instance and label value, same foreground
+		Roi roi2 = cache.get(createMask(1));
+
+		assertNotNull(roi1);
+		assertNotSame(roi1, roi2);
+		assertEquals(new Rectangle(2, 4, 8, 4), roi1.getBounds());
+		assertEquals(roi1.getBounds(), roi2.getBounds());
+		assertEquals(1, cache.getStats().missCount());
+		assertEquals(1, cache.getStats().hitCount());
+	}
+
+	@Test
+	public void testEmptyMask() {
+		MaskRoiCache cache = new MaskRoiCache(
+			MaskRoiCache.DEFAULT_MAX_VERTICES);
+
+		assertNull(cache.get(createMask(0)));
+		assertNull(cache.get(createMask(0)));
+		assertEquals(1, cache.getStats().hitCount());
+
+		cache.get(createMask(255));
+		assertEquals(2, cache.getStats().missCount());
+	}
+}
@@ -0,0 +1,91 @@
+/*-
+ * #%L
+ * A collection of plugins developed at the FMI Basel.
+ * %%
+ * Copyright (C) 2016 - 2024 FMI Basel
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ */
+
+package ch.fmi.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import fiji.plugin.trackmate.Settings;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotCollection;
+import ij.ImagePlus;
+import ij.process.ByteProcessor;
+
+public class SpotMaskTest {
+
+	private static ImagePlus createMask() {
+		ByteProcessor ip = new ByteProcessor(16, 16);
+		for (int y = 4; y < 8; y++) {
+			for (int x = 2; x < 10; x++) {
+				ip.set(x, y, 255);
+			}
+		}
+		return new ImagePlus("Mask", ip);
+	}
+
+	@Test
+	public void testContains() {
+		SpotMask mask = new SpotMask(createMask());
+		assertTrue(mask.contains(2, 4));
+		assertTrue(mask.contains(9, 7));
+		assertFalse(mask.contains(10, 7));
+		assertFalse(mask.contains(5, 3));
+		assertFalse(mask.contains(-1, 5));
+		assertFalse(mask.contains(5, 16));
+	}
+
+	@Test
+	public void testFilter() {
+		SpotMask mask = new SpotMask(createMask());
+		SpotCollection spots = new SpotCollection();
+		spots.add(new Spot(5.2, 6.4, 0, 1, 1), 0);
+		spots.add(new Spot(1.4, 6.0, 0, 1, 1), 0);
+		spots.add(new Spot(9.4, 4.4, 0, 1, 1), 1);
+		spots.add(new Spot(3.0, 11.0, 0, 1, 1), 2);
+
+		SpotCollection filtered = mask.filter(spots, 1.0, 1.0);
+		assertEquals(2, filtered.getNSpots(false));
+		assertEquals(1, filtered.getNSpots(0, false));
+		assertEquals(1, filtered.getNSpots(1, false));
+
+		// calibrated positions are converted back to pixels
+		SpotCollection calibrated = new SpotCollection();
+		calibrated.add(new Spot(2.6, 3.0, 0, 1, 1), 0);
+		assertEquals(1, mask.filter(calibrated, 0.5, 0.5).getNSpots(false));
+	}
+
+	@Test
+	public void testCrop() {
+		SpotMask mask = new SpotMask(createMask());
+		Settings settings = new Settings(new ImagePlus("Image",
+			new ByteProcessor(16, 16)));
+		mask.crop(settings);
+		assertEquals(2, settings.xstart);
+		assertEquals(9, settings.xend);
+		assertEquals(4, settings.ystart);
+		assertEquals(7, settings.yend);
+	}
+}